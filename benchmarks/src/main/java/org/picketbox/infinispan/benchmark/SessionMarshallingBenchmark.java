@@ -0,0 +1,132 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.factories.KnownComponentNames;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.marshall.StreamingMarshaller;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.marshall.DefaultSessionIdExternalizer;
+import org.picketbox.infinispan.marshall.PicketBoxSessionExternalizer;
+
+/**
+ * <p>
+ * Measures the time needed to write and read back a {@link PicketBoxSession} with the Java serialization, the default
+ * Infinispan marshaller and the marshaller using the {@link PicketBoxSessionExternalizer}.
+ * </p>
+ * <p>
+ * Run with <code>java -jar target/benchmarks.jar SessionMarshallingBenchmark</code>. Use
+ * <code>-p marshalling=EXTERNALIZER</code> to measure a single form.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SessionMarshallingBenchmark {
+
+    @Param({ "JAVA_SERIALIZATION", "DEFAULT", "EXTERNALIZER" })
+    public String marshalling;
+
+    private DefaultCacheManager cacheManager;
+    private StreamingMarshaller marshaller;
+    private PicketBoxSession session;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        GlobalConfigurationBuilder globalConfiguration = new GlobalConfigurationBuilder();
+
+        if ("EXTERNALIZER".equals(this.marshalling)) {
+            globalConfiguration.serialization().addAdvancedExternalizer(new PicketBoxSessionExternalizer());
+            globalConfiguration.serialization().addAdvancedExternalizer(new DefaultSessionIdExternalizer());
+        }
+
+        this.cacheManager = new DefaultCacheManager(globalConfiguration.build(), new ConfigurationBuilder().build());
+        this.marshaller = this.cacheManager.getCache().getAdvancedCache().getComponentRegistry()
+                .getComponent(StreamingMarshaller.class, KnownComponentNames.CACHE_MARSHALLER);
+
+        this.session = new PicketBoxSession(new DefaultSessionId());
+
+        this.session.setAttribute("username", "admin");
+        this.session.setAttribute("loginTime", System.currentTimeMillis());
+        this.session.setAttribute("locale", "en_US");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.cacheManager.stop();
+    }
+
+    @Benchmark
+    public Object roundTrip() throws Exception {
+        if ("JAVA_SERIALIZATION".equals(this.marshalling)) {
+            return deserialize(serialize(this.session));
+        }
+
+        return this.marshaller.objectFromByteBuffer(this.marshaller.objectToByteBuffer(this.session));
+    }
+
+    private static byte[] serialize(Object object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+
+        output.writeObject(object);
+        output.close();
+
+        return bytes.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws Exception {
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data));
+
+        try {
+            return input.readObject();
+        } finally {
+            input.close();
+        }
+    }
+
+}
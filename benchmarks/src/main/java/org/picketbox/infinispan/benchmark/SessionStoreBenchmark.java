@@ -0,0 +1,182 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.infinispan.benchmark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+
+/**
+ * <p>
+ * Measures the throughput and the latency distribution of the {@link InfinispanSessionStore} operations. The operations are
+ * spread over the nodes of the {@link SessionStoreCluster} and applied to the sessions of its working set, so the caches keep
+ * the same size during the measurements. Everything but the operation under test is prepared outside of the measured code.
+ * </p>
+ * <p>
+ * The remove benchmark can not run against a fixed working set. It stores a batch of sessions before each iteration and
+ * removes one of them per invocation, so it reports the time needed to remove a batch.
+ * </p>
+ * <p>
+ * Run with <code>java -jar target/benchmarks.jar SessionStoreBenchmark</code>. Use <code>-p</code> to choose the parameters
+ * (for example <code>-p cacheMode=DIST_SYNC_4</code>) and <code>-rf json</code> to keep the results for comparison.
+ * </p>
+ * <p>
+ * The number of threads is not a parameter of the benchmarks, JMH sets it for a whole run with <code>-t</code>. The
+ * contention on the caches and the benefit of the {@link org.picketbox.infinispan.session.store.WriteMode#ASYNC} write mode
+ * only show with concurrent callers, so measure a sweep of thread counts, one run and result file each:
+ * </p>
+ *
+ * <pre>
+ * for t in 1 4 16 64; do
+ *     java -jar target/benchmarks.jar SessionStoreBenchmark -t $t -p writeMode=SYNC,ASYNC -rf json -rff threads-$t.json
+ * done
+ * </pre>
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class SessionStoreBenchmark {
+
+    private static final int REMOVE_BATCH_SIZE = 1000;
+
+    @Benchmark
+    public PicketBoxSession load(WorkingSet workingSet) {
+        workingSet.next();
+
+        return workingSet.node.load(workingSet.session.getId());
+    }
+
+    @Benchmark
+    public void store(WorkingSet workingSet) {
+        workingSet.next();
+
+        workingSet.node.store(workingSet.session);
+    }
+
+    /**
+     * <p>
+     * Updates a session of the working set, changing one of its attributes. The session is not loaded first, so only the
+     * update is measured.
+     * </p>
+     */
+    @Benchmark
+    public void update(WorkingSet workingSet) {
+        workingSet.next();
+
+        workingSet.session.setAttribute("attribute0", workingSet.attributeValue);
+
+        workingSet.node.update(workingSet.session);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 5, batchSize = REMOVE_BATCH_SIZE)
+    @Measurement(iterations = 10, batchSize = REMOVE_BATCH_SIZE)
+    public void remove(StoredSessions storedSessions) {
+        storedSessions.removeNext();
+    }
+
+    /**
+     * <p>
+     * Copy of the working set used by a thread. Each invocation moves to the next session and to the next node, the attribute
+     * value alternates between two values prepared beforehand.
+     * </p>
+     */
+    @State(Scope.Thread)
+    public static class WorkingSet {
+
+        private SessionStoreCluster cluster;
+        private List<PicketBoxSession> sessions;
+        private String[] attributeValues;
+        private int index;
+
+        private PicketBoxSession session;
+        private InfinispanSessionStore node;
+        private String attributeValue;
+
+        @Setup(Level.Trial)
+        public void setup(SessionStoreCluster cluster) {
+            this.cluster = cluster;
+            this.sessions = cluster.copyWorkingSet();
+            this.attributeValues = new String[] { cluster.getAttributeValue(), cluster.getAttributeValue().toUpperCase() };
+        }
+
+        void next() {
+            this.index++;
+            this.session = this.sessions.get(this.index % this.sessions.size());
+            this.node = this.cluster.getNode(this.index);
+            this.attributeValue = this.attributeValues[this.index & 1];
+        }
+    }
+
+    /**
+     * <p>
+     * Sessions stored before each iteration of the remove benchmark, one for each invocation of the iteration.
+     * </p>
+     */
+    @State(Scope.Thread)
+    public static class StoredSessions {
+
+        private SessionStoreCluster cluster;
+        private List<SessionId<? extends Serializable>> sessionIds = new ArrayList<SessionId<? extends Serializable>>();
+        private int index;
+
+        @Setup(Level.Iteration)
+        public void setup(SessionStoreCluster cluster) {
+            this.cluster = cluster;
+            this.sessionIds.clear();
+            this.index = 0;
+
+            for (int i = 0; i < REMOVE_BATCH_SIZE; i++) {
+                PicketBoxSession session = cluster.newSession();
+
+                cluster.getNode(i).store(session);
+
+                this.sessionIds.add(session.getId());
+            }
+        }
+
+        void removeNext() {
+            this.cluster.getNode(this.index).remove(this.sessionIds.get(this.index++));
+        }
+    }
+
+}
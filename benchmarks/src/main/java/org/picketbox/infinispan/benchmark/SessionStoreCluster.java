@@ -0,0 +1,197 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.infinispan.benchmark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.InfinispanSessionStoreBuilder;
+import org.picketbox.infinispan.session.store.WriteMode;
+
+/**
+ * <p>
+ * Benchmark state holding a cluster of {@link InfinispanSessionStore} nodes running in the same JVM over loopback JGroups, and
+ * a fixed working set of sessions stored before the measurements start. The benchmarks read and write the sessions of the
+ * working set, so the caches do not grow during the measurements.
+ * </p>
+ */
+@State(Scope.Benchmark)
+public class SessionStoreCluster {
+
+    /**
+     * <p>
+     * LOCAL, for a single node, or one of REPL_SYNC, REPL_ASYNC, DIST_SYNC or DIST_ASYNC followed by the number of nodes, for
+     * example REPL_SYNC_4. The number of nodes is part of the cache mode so the local cache is measured only once.
+     * </p>
+     */
+    @Param({ "LOCAL", "REPL_SYNC_2", "REPL_SYNC_4", "REPL_ASYNC_2", "REPL_ASYNC_4", "DIST_SYNC_2", "DIST_SYNC_4" })
+    public String cacheMode;
+
+    @Param({ "SYNC" })
+    public String writeMode;
+
+    @Param({ "8" })
+    public int attributeCount;
+
+    @Param({ "64", "4096" })
+    public int attributeSize;
+
+    @Param({ "1000" })
+    public int sessionCount;
+
+    private List<InfinispanSessionStore> stores = new ArrayList<InfinispanSessionStore>();
+    private List<SessionId<? extends Serializable>> sessionIds = new ArrayList<SessionId<? extends Serializable>>();
+    private String attributeValue;
+
+    @Setup
+    public void setup() {
+        int nodeCount = isLocal() ? 1 : Integer.parseInt(this.cacheMode.substring(this.cacheMode.lastIndexOf('_') + 1));
+
+        for (int i = 0; i < nodeCount; i++) {
+            InfinispanSessionStore store = createBuilder().build();
+
+            store.start();
+
+            this.stores.add(store);
+        }
+
+        StringBuilder value = new StringBuilder(this.attributeSize);
+
+        for (int i = 0; i < this.attributeSize; i++) {
+            value.append((char) ('a' + i % 26));
+        }
+
+        this.attributeValue = value.toString();
+
+        for (int i = 0; i < this.sessionCount; i++) {
+            PicketBoxSession session = newSession();
+
+            this.stores.get(i % nodeCount).store(session);
+            this.sessionIds.add(session.getId());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (InfinispanSessionStore store : this.stores) {
+            store.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the node with the given index, modulo the number of nodes.
+     * </p>
+     *
+     * @param index
+     * @return
+     */
+    public InfinispanSessionStore getNode(int index) {
+        return this.stores.get(index % this.stores.size());
+    }
+
+    /**
+     * <p>
+     * Creates a copy of the working set in a random order. Each thread works on its own copy, so the benchmarks do not share
+     * session instances.
+     * </p>
+     *
+     * @return
+     */
+    public List<PicketBoxSession> copyWorkingSet() {
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (SessionId<? extends Serializable> sessionId : this.sessionIds) {
+            sessions.add(newSession(sessionId));
+        }
+
+        Collections.shuffle(sessions, ThreadLocalRandom.current());
+
+        return sessions;
+    }
+
+    /**
+     * <p>
+     * Creates a new session with the configured number and size of attributes.
+     * </p>
+     *
+     * @return
+     */
+    public PicketBoxSession newSession() {
+        return newSession(new DefaultSessionId());
+    }
+
+    private PicketBoxSession newSession(SessionId<? extends Serializable> sessionId) {
+        PicketBoxSession session = new PicketBoxSession(sessionId);
+
+        for (int i = 0; i < this.attributeCount; i++) {
+            session.setAttribute("attribute" + i, this.attributeValue);
+        }
+
+        return session;
+    }
+
+    public String getAttributeValue() {
+        return this.attributeValue;
+    }
+
+    protected InfinispanSessionStoreBuilder createBuilder() {
+        InfinispanSessionStoreBuilder builder = new InfinispanSessionStoreBuilder()
+            .clusterName("picketbox-benchmark")
+            .jgroupsConfigurationFile("jgroups.xml")
+            .writeMode(WriteMode.valueOf(this.writeMode));
+
+        if (isLocal()) {
+            builder.local();
+        } else if (this.cacheMode.startsWith("REPL")) {
+            builder.replicated();
+        } else {
+            builder.distributed();
+        }
+
+        if (this.cacheMode.contains("_ASYNC_")) {
+            builder.async();
+        } else {
+            builder.sync();
+        }
+
+        return builder;
+    }
+
+    private boolean isLocal() {
+        return "LOCAL".equals(this.cacheMode);
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan;
+
+import org.jboss.logging.BasicLogger;
+import org.jboss.logging.Cause;
+import org.jboss.logging.LogMessage;
+import org.jboss.logging.Logger;
+import org.jboss.logging.Logger.Level;
+import org.jboss.logging.Message;
+import org.jboss.logging.MessageLogger;
+
+/**
+ * An instance of {@link MessageLogger} from JBoss Logging
+ */
+@MessageLogger(projectCode = "PBOXINF")
+public interface PicketBoxInfinispanLogger extends BasicLogger {
+
+    PicketBoxInfinispanLogger LOGGER = Logger.getMessageLogger(PicketBoxInfinispanLogger.class,
+            PicketBoxInfinispanLogger.class.getPackage().getName());
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 100, value = "Error while handling cache event for session [%s].")
+    void errorHandlingCacheEvent(Object sessionId, @Cause Throwable throwable);
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 101, value = "Error while flushing the session access times of cache [%s].")
+    void errorFlushingAccessTimes(String cacheName, @Cause Throwable throwable);
+
+    @LogMessage(level = Level.ERROR)
+    @Message(id = 102, value = "Asynchronous write to cache [%s] failed.")
+    void errorWritingAsynchronously(String cacheName, @Cause Throwable throwable);
+
+    @LogMessage(level = Level.DEBUG)
+    @Message(id = 103, value = "No session identifier owned by the local node of cache [%s] was generated in time, "
+            + "using a random identifier.")
+    void randomSessionId(String cacheName);
+
+    @LogMessage(level = Level.DEBUG)
+    @Message(id = 104, value = "Session [%s] of cache [%s] was not updated, it is no longer stored.")
+    void sessionNotUpdated(Object sessionId, String cacheName);
+
+    @LogMessage(level = Level.WARN)
+    @Message(id = 105, value = "%d pending asynchronous writes to cache [%s] were not completed in time and are discarded.")
+    void pendingWritesDiscarded(int pendingWrites, String cacheName);
+
+}
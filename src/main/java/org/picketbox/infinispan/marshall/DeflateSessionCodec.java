@@ -0,0 +1,131 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.marshall;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>
+ * {@link SessionCodec} using the JDK deflate implementation.
+ * </p>
+ */
+public class DeflateSessionCodec implements SessionCodec {
+
+    private static final byte ID = 1;
+    private static final int BUFFER_SIZE = 512;
+
+    private final int level;
+
+    /**
+     * <p>
+     * Creates a new instance using the fastest compression level, since sessions are compressed on each write.
+     * </p>
+     */
+    public DeflateSessionCodec() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * <p>
+     * Creates a new instance using the given compression level, from {@link Deflater#BEST_SPEED} to
+     * {@link Deflater#BEST_COMPRESSION}.
+     * </p>
+     *
+     * @param level
+     */
+    public DeflateSessionCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] data) throws IOException {
+        Deflater deflater = new Deflater(this.level);
+
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[BUFFER_SIZE];
+
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+            }
+
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * <p>
+     * Rejects a length above the maximum size of a serialized session before allocating the result, so a corrupted or
+     * forged length can not cause an arbitrary allocation.
+     * </p>
+     */
+    @Override
+    public byte[] decompress(byte[] data, int length) throws IOException {
+        if (length < 0 || length > PicketBoxSessionExternalizer.MAX_PAYLOAD_SIZE) {
+            throw new IOException("Invalid length " + length + " of the compressed session payload.");
+        }
+
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(data);
+
+            byte[] result = new byte[length];
+            int offset = 0;
+
+            while (offset < length && !inflater.finished()) {
+                int count = inflater.inflate(result, offset, length - offset);
+
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed session payload.");
+                }
+
+                offset += count;
+            }
+
+            if (offset != length) {
+                throw new IOException("Unexpected compressed session payload length.");
+            }
+
+            return result;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.infinispan.marshall;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.infinispan.marshall.StreamingMarshaller;
+import org.picketbox.core.exceptions.PicketBoxSessionException;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+import org.picketbox.infinispan.PicketBoxInfinispanMessages;
+
+/**
+ * <p>
+ * {@link PicketBoxSession} read by the {@link PicketBoxSessionExternalizer} with its attributes still serialized. Each
+ * attribute is deserialized the first time it is read, so nodes only pay for the attributes they actually use.
+ * </p>
+ * <p>
+ * Attributes never read keep their serialized form, which is written as is when the session is written again. Attributes
+ * read once are always serialized again, since the returned value may have been modified. Deserializing an attribute is not
+ * counted as a modification of the session.
+ * </p>
+ */
+public class LazyPicketBoxSession extends TrackedPicketBoxSession {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient StreamingMarshaller marshaller;
+    private final transient Map<String, byte[]> serializedAttributes;
+
+    LazyPicketBoxSession(SessionId<? extends Serializable> id, Map<String, byte[]> serializedAttributes,
+            StreamingMarshaller marshaller) {
+        super(id);
+        this.marshaller = marshaller;
+        this.serializedAttributes = new ConcurrentHashMap<String, byte[]>(serializedAttributes);
+    }
+
+    @Override
+    public Object getAttribute(String key) {
+        if (this.serializedAttributes.containsKey(key)) {
+            deserializeAttribute(key);
+        }
+
+        return super.getAttribute(key);
+    }
+
+    /**
+     * <p>
+     * Returns the value of the given attribute without recording the read, deserializing only this attribute if not read yet.
+     * </p>
+     */
+    @Override
+    public Object peekAttribute(String key) {
+        if (this.serializedAttributes.containsKey(key)) {
+            deserializeAttribute(key);
+        }
+
+        return super.peekAttribute(key);
+    }
+
+    @Override
+    public void setAttribute(String key, Object value) {
+        synchronized (this.serializedAttributes) {
+            this.serializedAttributes.remove(key);
+            super.setAttribute(key, value);
+        }
+    }
+
+    @Override
+    public void removeAttribute(String key) {
+        synchronized (this.serializedAttributes) {
+            this.serializedAttributes.remove(key);
+            super.removeAttribute(key);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns all the attributes, deserializing the ones not read yet.
+     * </p>
+     */
+    @Override
+    public Map<String, Object> getAttributes() {
+        for (String key : this.serializedAttributes.keySet()) {
+            deserializeAttribute(key);
+        }
+
+        return super.getAttributes();
+    }
+
+    /**
+     * <p>
+     * Returns the number of attributes not deserialized yet.
+     * </p>
+     *
+     * @return
+     */
+    public int getSerializedAttributeCount() {
+        return this.serializedAttributes.size();
+    }
+
+    /**
+     * <p>
+     * Returns a new valid session with the same id and attributes, without modifications. The attributes not deserialized yet
+     * are copied in their serialized form.
+     * </p>
+     *
+     * @return
+     */
+    public LazyPicketBoxSession copy() {
+        synchronized (this.serializedAttributes) {
+            LazyPicketBoxSession copy = new LazyPicketBoxSession(getId(), this.serializedAttributes, this.marshaller);
+
+            for (Entry<String, Object> attribute : getDeserializedAttributes().entrySet()) {
+                copy.putAttribute(attribute.getKey(), attribute.getValue());
+            }
+
+            return copy;
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the attributes already deserialized, without deserializing the others.
+     * </p>
+     */
+    Map<String, Object> getDeserializedAttributes() {
+        return super.getAttributes();
+    }
+
+    /**
+     * <p>
+     * Returns the attributes not deserialized yet, in their serialized form.
+     * </p>
+     */
+    Map<String, byte[]> getSerializedAttributes() {
+        return this.serializedAttributes;
+    }
+
+    private void deserializeAttribute(String key) {
+        synchronized (this.serializedAttributes) {
+            byte[] data = this.serializedAttributes.get(key);
+
+            if (data == null) {
+                return;
+            }
+
+            try {
+                putAttribute(key, PicketBoxSessionExternalizer.fromBytes(this.marshaller, data));
+            } catch (IOException e) {
+                throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+            } catch (ClassNotFoundException e) {
+                throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+            }
+
+            this.serializedAttributes.remove(key);
+        }
+    }
+
+    /**
+     * <p>
+     * Replaces this session with a {@link PicketBoxSession} holding all the attributes when serialized without the
+     * {@link PicketBoxSessionExternalizer}, since the serialized attributes can only be read with the Infinispan marshaller.
+     * </p>
+     *
+     * @return
+     * @throws ObjectStreamException
+     */
+    protected Object writeReplace() throws ObjectStreamException {
+        PicketBoxSession session = new PicketBoxSession(getId());
+
+        for (Entry<String, Object> attribute : getAttributes().entrySet()) {
+            session.setAttribute(attribute.getKey(), attribute.getValue());
+        }
+
+        if (!isValid()) {
+            try {
+                session.invalidate(false);
+            } catch (PicketBoxSessionException e) {
+                throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+            }
+        }
+
+        return session;
+    }
+
+}
@@ -0,0 +1,47 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.marshall;
+
+import org.infinispan.config.AdvancedExternalizerConfig;
+import org.infinispan.factories.GlobalComponentRegistry;
+import org.infinispan.lifecycle.AbstractModuleLifecycle;
+
+/**
+ * <p>
+ * Infinispan module lifecycle, loaded with the {@link java.util.ServiceLoader}, giving access to the global marshaller to the
+ * {@link PicketBoxSessionExternalizer} registered in each cache manager when it starts. The externalizer needs it to serialize
+ * the sessions it compresses, and Infinispan does not inject components into externalizers.
+ * </p>
+ */
+public class PicketBoxModuleLifecycle extends AbstractModuleLifecycle {
+
+    @Override
+    public void cacheManagerStarted(GlobalComponentRegistry globalComponentRegistry) {
+        for (AdvancedExternalizerConfig config : globalComponentRegistry.getGlobalConfiguration().getExternalizers()) {
+            if (config.getAdvancedExternalizer() instanceof PicketBoxSessionExternalizer) {
+                ((PicketBoxSessionExternalizer) config.getAdvancedExternalizer())
+                        .setGlobalComponentRegistry(globalComponentRegistry);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,516 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.infinispan.marshall;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.infinispan.factories.GlobalComponentRegistry;
+import org.infinispan.factories.KnownComponentNames;
+import org.infinispan.marshall.AbstractExternalizer;
+import org.infinispan.marshall.Marshaller;
+import org.infinispan.marshall.StreamingMarshaller;
+import org.infinispan.util.Util;
+import org.picketbox.core.exceptions.PicketBoxSessionException;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+
+/**
+ * <p>
+ * {@link org.infinispan.marshall.AdvancedExternalizer} for {@link PicketBoxSession} instances. Writes the session id, its state
+ * and the attributes, delegating each attribute value to the marshaller so well known types like strings, numbers and
+ * collections use the compact Infinispan representation instead of the default Java serialization.
+ * </p>
+ * <p>
+ * Each session is preceded by a marker byte: zero for sessions written as is, or the id of the {@link SessionCodec} that
+ * compressed it when a {@link SessionCompression} is set. Compressed sessions are decompressed by the codec registered with
+ * their id, whether compression is enabled or not, so nodes with different compression settings can read each other's
+ * sessions. The {@link DeflateSessionCodec} is always registered, other codecs must be registered on every node reading the
+ * sessions they compress.
+ * </p>
+ * <p>
+ * Sessions are read as {@link TrackedPicketBoxSession} instances. When lazy attributes are enabled each attribute value is
+ * serialized separately and sessions are read as {@link LazyPicketBoxSession} instances, which only deserialize the
+ * attributes that are read.
+ * </p>
+ */
+public class PicketBoxSessionExternalizer extends AbstractExternalizer<PicketBoxSession> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final byte UNCOMPRESSED = 0;
+    private static final byte INLINE_ATTRIBUTES = 0;
+    private static final byte SERIALIZED_ATTRIBUTES = 1;
+    private static final int BUFFER_SIZE = 1024;
+    private static final int ATTRIBUTE_BUFFER_SIZE = 128;
+
+    /**
+     * The maximum size of a serialized session or attribute value accepted when reading, so a corrupted length can not cause
+     * an arbitrary allocation.
+     */
+    static final int MAX_PAYLOAD_SIZE = 64 * 1024 * 1024;
+
+    private static final ThreadLocal<Boolean> UNCOMPRESSED_WRITES = new ThreadLocal<Boolean>();
+
+    private final transient ConcurrentMap<Byte, SessionCodec> codecs = new ConcurrentHashMap<Byte, SessionCodec>();
+
+    private transient volatile GlobalComponentRegistry globalComponentRegistry;
+    private transient volatile SessionCompression compression;
+    private transient volatile boolean lazyAttributes;
+    private transient boolean configured;
+
+    /**
+     * <p>
+     * Sets the registry providing the marshaller used to serialize the sessions before compressing them. Called by the
+     * {@link PicketBoxModuleLifecycle} when the cache manager starts.
+     * </p>
+     *
+     * @param globalComponentRegistry
+     */
+    void setGlobalComponentRegistry(GlobalComponentRegistry globalComponentRegistry) {
+        this.globalComponentRegistry = globalComponentRegistry;
+    }
+
+    public PicketBoxSessionExternalizer() {
+        addCodec(new DeflateSessionCodec());
+    }
+
+    /**
+     * <p>
+     * Sets the compression applied to the sessions written by this externalizer, or null to write them uncompressed. The codec
+     * of the compression is registered to read the sessions it compressed.
+     * </p>
+     *
+     * @param compression
+     */
+    public void setCompression(SessionCompression compression) {
+        if (compression != null) {
+            addCodec(compression.getCodec());
+        }
+
+        this.compression = compression;
+    }
+
+    public SessionCompression getCompression() {
+        return this.compression;
+    }
+
+    /**
+     * <p>
+     * Enables the serialization of each attribute value on its own, so the sessions read by this externalizer only
+     * deserialize their attributes when they are read. Sessions written with lazy attributes can only be read by nodes where
+     * the {@link PicketBoxModuleLifecycle} is loaded.
+     * </p>
+     *
+     * @param lazyAttributes
+     */
+    public void setLazyAttributes(boolean lazyAttributes) {
+        this.lazyAttributes = lazyAttributes;
+    }
+
+    public boolean isLazyAttributes() {
+        return this.lazyAttributes;
+    }
+
+    /**
+     * <p>
+     * Sets the compression and the lazy attributes on behalf of a session store. All the stores of a cache manager share its
+     * externalizer, so the first store sets them and the stores configured later must use the same settings. The settings
+     * then stay in place for the lifetime of the cache manager.
+     * </p>
+     *
+     * @param compression the compression, or null to write the sessions uncompressed.
+     * @param lazyAttributes
+     * @throws IllegalStateException if a store already set different settings.
+     */
+    public synchronized void configure(SessionCompression compression, boolean lazyAttributes) {
+        if (this.configured) {
+            if (!isSameCompression(this.compression, compression) || this.lazyAttributes != lazyAttributes) {
+                throw new IllegalStateException("The sessions of the cache manager are already written with "
+                        + describe(this.compression, this.lazyAttributes) + ", not with "
+                        + describe(compression, lazyAttributes) + ".");
+            }
+
+            return;
+        }
+
+        setCompression(compression);
+        setLazyAttributes(lazyAttributes);
+
+        this.configured = true;
+    }
+
+    private static boolean isSameCompression(SessionCompression compression, SessionCompression other) {
+        if (compression == null || other == null) {
+            return compression == other;
+        }
+
+        return compression.getThreshold() == other.getThreshold()
+                && compression.getCodec().getId() == other.getCodec().getId();
+    }
+
+    private static String describe(SessionCompression compression, boolean lazyAttributes) {
+        String attributes = lazyAttributes ? "lazy attributes" : "inline attributes";
+
+        if (compression == null) {
+            return "no compression and " + attributes;
+        }
+
+        return "compression codec " + compression.getCodec().getId() + " above " + compression.getThreshold()
+                + " bytes and " + attributes;
+    }
+
+    /**
+     * <p>
+     * Registers a codec to read the sessions compressed with its id, replacing any codec registered with the same id.
+     * </p>
+     *
+     * @param codec
+     */
+    public void addCodec(SessionCodec codec) {
+        if (codec.getId() == UNCOMPRESSED) {
+            throw new IllegalArgumentException("The codec id " + UNCOMPRESSED + " marks the uncompressed sessions.");
+        }
+
+        this.codecs.put(codec.getId(), codec);
+    }
+
+    /**
+     * <p>
+     * Marshals the given object with the given marshaller, writing the sessions it holds uncompressed. Used to measure or hash
+     * the serialized form of sessions without paying for their compression.
+     * </p>
+     *
+     * @param marshaller
+     * @param object
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static byte[] toUncompressedBytes(Marshaller marshaller, Object object) throws IOException, InterruptedException {
+        boolean nested = UNCOMPRESSED_WRITES.get() != null;
+
+        UNCOMPRESSED_WRITES.set(Boolean.TRUE);
+
+        try {
+            return marshaller.objectToByteBuffer(object);
+        } finally {
+            if (!nested) {
+                UNCOMPRESSED_WRITES.remove();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Returns true if the sessions can be compressed or written with lazy attributes, which requires the
+     * {@link PicketBoxModuleLifecycle} to be loaded by the cache manager.
+     * </p>
+     *
+     * @return
+     */
+    public boolean isCompressionSupported() {
+        return this.globalComponentRegistry != null;
+    }
+
+    @Override
+    public void writeObject(ObjectOutput output, PicketBoxSession session) throws IOException {
+        SessionCompression compression = this.compression;
+
+        if (compression != null && isCompressionSupported() && UNCOMPRESSED_WRITES.get() == null
+                && writeCompressed(output, session, compression)) {
+            return;
+        }
+
+        output.writeByte(UNCOMPRESSED);
+        writeSession(output, session);
+    }
+
+    @Override
+    public PicketBoxSession readObject(ObjectInput input) throws IOException, ClassNotFoundException {
+        byte format = input.readByte();
+
+        if (format == UNCOMPRESSED) {
+            return readSession(input);
+        }
+
+        return readCompressed(input, format);
+    }
+
+    /**
+     * <p>
+     * Writes the session compressed if its serialized form reaches the threshold and the codec makes it smaller.
+     * </p>
+     *
+     * @return false if the session was not written.
+     */
+    private boolean writeCompressed(ObjectOutput output, PicketBoxSession session, SessionCompression compression)
+            throws IOException {
+        StreamingMarshaller marshaller = getMarshaller();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(BUFFER_SIZE);
+        ObjectOutput nestedOutput = marshaller.startObjectOutput(bytes, true, BUFFER_SIZE);
+
+        try {
+            writeSession(nestedOutput, session);
+        } finally {
+            marshaller.finishObjectOutput(nestedOutput);
+        }
+
+        byte[] data = bytes.toByteArray();
+
+        if (data.length < compression.getThreshold()) {
+            return false;
+        }
+
+        long start = System.nanoTime();
+        byte[] compressed = compression.getCodec().compress(data);
+
+        if (compression.getMetrics() != null) {
+            compression.getMetrics().recordCompression(data.length, compressed.length, System.nanoTime() - start);
+        }
+
+        if (compressed.length >= data.length) {
+            return false;
+        }
+
+        output.writeByte(compression.getCodec().getId());
+        output.writeInt(data.length);
+        output.writeInt(compressed.length);
+        output.write(compressed);
+
+        return true;
+    }
+
+    private PicketBoxSession readCompressed(ObjectInput input, byte codecId) throws IOException, ClassNotFoundException {
+        SessionCodec codec = this.codecs.get(codecId);
+
+        if (codec == null) {
+            throw new IOException("No codec with id " + codecId + " is registered to read the compressed session.");
+        }
+
+        if (!isCompressionSupported()) {
+            throw new IOException("Compressed sessions can not be read, the PicketBoxModuleLifecycle was not loaded.");
+        }
+
+        int length = readLength(input, MAX_PAYLOAD_SIZE);
+        byte[] compressed = new byte[readLength(input, length)];
+
+        input.readFully(compressed);
+
+        SessionCompression compression = this.compression;
+        long start = System.nanoTime();
+        byte[] data = codec.decompress(compressed, length);
+
+        if (compression != null && compression.getMetrics() != null) {
+            compression.getMetrics().recordDecompression(System.nanoTime() - start);
+        }
+
+        StreamingMarshaller marshaller = getMarshaller();
+        ObjectInput nestedInput = marshaller.startObjectInput(new ByteArrayInputStream(data), true);
+
+        try {
+            return readSession(nestedInput);
+        } finally {
+            marshaller.finishObjectInput(nestedInput);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the global marshaller, which is created when the cache manager first marshals an object, so it exists by the time
+     * a session is written or read.
+     * </p>
+     */
+    private StreamingMarshaller getMarshaller() {
+        return this.globalComponentRegistry.getComponent(StreamingMarshaller.class, KnownComponentNames.GLOBAL_MARSHALLER);
+    }
+
+    private void writeSession(ObjectOutput output, PicketBoxSession session) throws IOException {
+        output.writeObject(session.getId());
+        output.writeBoolean(session.isValid());
+
+        if (this.lazyAttributes && isCompressionSupported()) {
+            output.writeByte(SERIALIZED_ATTRIBUTES);
+            writeSerializedAttributes(output, session);
+            return;
+        }
+
+        Map<String, Object> attributes = session.getAttributes();
+
+        output.writeByte(INLINE_ATTRIBUTES);
+        output.writeInt(attributes.size());
+
+        for (Entry<String, Object> attribute : attributes.entrySet()) {
+            output.writeUTF(attribute.getKey());
+            output.writeObject(attribute.getValue());
+        }
+    }
+
+    /**
+     * <p>
+     * Writes each attribute value serialized on its own. The attributes of a {@link LazyPicketBoxSession} that were never
+     * read are written without being deserialized.
+     * </p>
+     */
+    private void writeSerializedAttributes(ObjectOutput output, PicketBoxSession session) throws IOException {
+        StreamingMarshaller marshaller = getMarshaller();
+        Map<String, byte[]> attributes = new HashMap<String, byte[]>();
+
+        if (session instanceof LazyPicketBoxSession) {
+            LazyPicketBoxSession lazySession = (LazyPicketBoxSession) session;
+
+            // taken before the deserialized attributes, an attribute read concurrently is then found in one of them
+            attributes.putAll(lazySession.getSerializedAttributes());
+
+            for (Entry<String, Object> attribute : lazySession.getDeserializedAttributes().entrySet()) {
+                attributes.put(attribute.getKey(), toBytes(marshaller, attribute.getValue()));
+            }
+        } else {
+            for (Entry<String, Object> attribute : session.getAttributes().entrySet()) {
+                attributes.put(attribute.getKey(), toBytes(marshaller, attribute.getValue()));
+            }
+        }
+
+        output.writeInt(attributes.size());
+
+        for (Entry<String, byte[]> attribute : attributes.entrySet()) {
+            output.writeUTF(attribute.getKey());
+            output.writeInt(attribute.getValue().length);
+            output.write(attribute.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private PicketBoxSession readSession(ObjectInput input) throws IOException, ClassNotFoundException {
+        SessionId<? extends Serializable> id = (SessionId<? extends Serializable>) input.readObject();
+        boolean valid = input.readBoolean();
+        byte attributeFormat = input.readByte();
+        int attributeCount = readLength(input, MAX_PAYLOAD_SIZE);
+        TrackedPicketBoxSession session;
+
+        if (attributeFormat == SERIALIZED_ATTRIBUTES) {
+            if (!isCompressionSupported()) {
+                throw new IOException(
+                        "Session attributes can not be deserialized, the PicketBoxModuleLifecycle was not loaded.");
+            }
+
+            Map<String, byte[]> attributes = new HashMap<String, byte[]>();
+
+            for (int i = 0; i < attributeCount; i++) {
+                String name = input.readUTF();
+                byte[] value = new byte[readLength(input, MAX_PAYLOAD_SIZE)];
+
+                input.readFully(value);
+                attributes.put(name, value);
+            }
+
+            session = new LazyPicketBoxSession(id, attributes, getMarshaller());
+        } else {
+            session = new TrackedPicketBoxSession(id);
+
+            for (int i = 0; i < attributeCount; i++) {
+                session.putAttribute(input.readUTF(), input.readObject());
+            }
+        }
+
+        if (!valid) {
+            try {
+                session.invalidate(false);
+            } catch (PicketBoxSessionException e) {
+                throw new IOException(e);
+            }
+        }
+
+        session.markWritten(session.getVersion());
+
+        return session;
+    }
+
+    /**
+     * <p>
+     * Reads a length or a count written before some data, checking it is within the given maximum before anything is
+     * allocated for the data.
+     * </p>
+     */
+    private static int readLength(ObjectInput input, int max) throws IOException {
+        int length = input.readInt();
+
+        if (length < 0 || length > max) {
+            throw new IOException("Invalid length " + length + " read for a session, expected at most " + max + ".");
+        }
+
+        return length;
+    }
+
+    /**
+     * <p>
+     * Serializes an attribute value using a nested stream of the given marshaller, so it can be called while a session is
+     * being written.
+     * </p>
+     */
+    static byte[] toBytes(StreamingMarshaller marshaller, Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(ATTRIBUTE_BUFFER_SIZE);
+        ObjectOutput output = marshaller.startObjectOutput(bytes, true, ATTRIBUTE_BUFFER_SIZE);
+
+        try {
+            output.writeObject(value);
+        } finally {
+            marshaller.finishObjectOutput(output);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    static Object fromBytes(StreamingMarshaller marshaller, byte[] data) throws IOException, ClassNotFoundException {
+        ObjectInput input = marshaller.startObjectInput(new ByteArrayInputStream(data), true);
+
+        try {
+            return input.readObject();
+        } finally {
+            marshaller.finishObjectInput(input);
+        }
+    }
+
+    @Override
+    public Integer getId() {
+        return ExternalizerIds.PICKETBOX_SESSION;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Set<Class<? extends PicketBoxSession>> getTypeClasses() {
+        return Util.<Class<? extends PicketBoxSession>> asSet(PicketBoxSession.class, TrackedPicketBoxSession.class,
+                LazyPicketBoxSession.class);
+    }
+
+}
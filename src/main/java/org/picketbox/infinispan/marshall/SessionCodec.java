@@ -0,0 +1,60 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.marshall;
+
+import java.io.IOException;
+
+/**
+ * <p>
+ * Compresses the serialized form of {@link org.picketbox.core.session.PicketBoxSession} instances. The id of the codec is
+ * written before each compressed payload, so the {@link PicketBoxSessionExternalizer} of every node reading the sessions, or
+ * a cache store holding them, must have a codec registered with that id.
+ * </p>
+ */
+public interface SessionCodec {
+
+    /**
+     * <p>
+     * Returns the id identifying the payloads compressed by this codec. Must not be zero, which marks the uncompressed
+     * payloads.
+     * </p>
+     *
+     * @return
+     */
+    byte getId();
+
+    /**
+     * @param data the serialized session.
+     * @return the compressed data.
+     * @throws IOException
+     */
+    byte[] compress(byte[] data) throws IOException;
+
+    /**
+     * @param data the compressed data.
+     * @param length the length of the serialized session.
+     * @return the serialized session.
+     * @throws IOException
+     */
+    byte[] decompress(byte[] data, int length) throws IOException;
+
+}
@@ -0,0 +1,61 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.marshall;
+
+import org.picketbox.infinispan.metrics.SessionStoreMetrics;
+
+/**
+ * <p>
+ * Settings of the compression applied by the {@link PicketBoxSessionExternalizer}. Sessions whose serialized form is at least
+ * the threshold size are compressed with the codec, smaller ones are written as is.
+ * </p>
+ */
+public class SessionCompression {
+
+    private final SessionCodec codec;
+    private final int threshold;
+    private final SessionStoreMetrics metrics;
+
+    /**
+     * @param codec
+     * @param threshold the minimum size in bytes of the serialized sessions to compress.
+     * @param metrics receives the compression measurements, may be null.
+     */
+    public SessionCompression(SessionCodec codec, int threshold, SessionStoreMetrics metrics) {
+        this.codec = codec;
+        this.threshold = threshold;
+        this.metrics = metrics;
+    }
+
+    public SessionCodec getCodec() {
+        return this.codec;
+    }
+
+    public int getThreshold() {
+        return this.threshold;
+    }
+
+    public SessionStoreMetrics getMetrics() {
+        return this.metrics;
+    }
+
+}
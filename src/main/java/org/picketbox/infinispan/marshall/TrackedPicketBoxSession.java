@@ -0,0 +1,258 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.marshall;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import org.picketbox.core.exceptions.PicketBoxSessionException;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+
+/**
+ * <p>
+ * {@link PicketBoxSession} counting its modifications, so a store can tell if it changed since it was last written without
+ * serializing it. Setting or removing an attribute and invalidating the session are modifications. Reading an attribute whose
+ * value is not of a well known immutable type is not counted as one, but the attribute is reported by
+ * {@link #getReadMutableAttributes()}, since the value may be changed in place. {@link #isModified()} considers such reads as
+ * modifications, unless the store checks the read values itself using {@link #hasCountedModifications()}.
+ * </p>
+ * <p>
+ * The names of the attributes modified since last written are kept, so the modifications can be merged into a session changed
+ * concurrently.
+ * </p>
+ * <p>
+ * Attribute values read through {@link #getAttributes()} and changed in place must be set again for the change to be seen.
+ * </p>
+ * <p>
+ * Sessions read by the {@link PicketBoxSessionExternalizer} are instances of this class, with no modification since written.
+ * </p>
+ */
+public class TrackedPicketBoxSession extends PicketBoxSession {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final AtomicLongFieldUpdater<TrackedPicketBoxSession> VERSION = AtomicLongFieldUpdater.newUpdater(
+            TrackedPicketBoxSession.class, "version");
+
+    private static final AtomicLongFieldUpdater<TrackedPicketBoxSession> WRITTEN_VERSION = AtomicLongFieldUpdater.newUpdater(
+            TrackedPicketBoxSession.class, "writtenVersion");
+
+    private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>> asList(String.class,
+            Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class,
+            BigInteger.class, BigDecimal.class, UUID.class));
+
+    private transient volatile long version;
+    private transient volatile long writtenVersion;
+    private transient ConcurrentMap<String, Long> modifiedAttributes = new ConcurrentHashMap<String, Long>();
+    private transient ConcurrentMap<String, Long> readMutableAttributes = new ConcurrentHashMap<String, Long>();
+
+    public TrackedPicketBoxSession(SessionId<? extends Serializable> id) {
+        super(id);
+    }
+
+    @Override
+    public Object getAttribute(String key) {
+        Object value = super.getAttribute(key);
+
+        if (value != null && !isImmutable(value)) {
+            this.readMutableAttributes.put(key, this.version);
+        }
+
+        return value;
+    }
+
+    @Override
+    public void setAttribute(String key, Object value) {
+        super.setAttribute(key, value);
+        modified(key);
+    }
+
+    @Override
+    public void removeAttribute(String key) {
+        super.removeAttribute(key);
+        modified(key);
+    }
+
+    @Override
+    public void invalidate(boolean notify) throws PicketBoxSessionException {
+        super.invalidate(notify);
+        VERSION.incrementAndGet(this);
+    }
+
+    /**
+     * <p>
+     * Returns the number of modifications of this session, to be passed to {@link #markWritten(long)} once the state read
+     * after this call is written.
+     * </p>
+     *
+     * @return
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * <p>
+     * Records that the state of this session at the given version was written. Modifications made since are still reported
+     * by {@link #isModified()} and {@link #getModifiedAttributes()}. Marking an older version than already marked has no
+     * effect.
+     * </p>
+     *
+     * @param version
+     */
+    public void markWritten(long version) {
+        long writtenVersion = this.writtenVersion;
+
+        while (writtenVersion < version && !WRITTEN_VERSION.compareAndSet(this, writtenVersion, version)) {
+            writtenVersion = this.writtenVersion;
+        }
+
+        for (Entry<String, Long> attribute : this.modifiedAttributes.entrySet()) {
+            if (attribute.getValue() <= version) {
+                this.modifiedAttributes.remove(attribute.getKey(), attribute.getValue());
+            }
+        }
+
+        for (Entry<String, Long> attribute : this.readMutableAttributes.entrySet()) {
+            if (attribute.getValue() <= version) {
+                this.readMutableAttributes.remove(attribute.getKey(), attribute.getValue());
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Returns true if this session was modified or if attributes with mutable values were read since its state was last
+     * written.
+     * </p>
+     *
+     * @return
+     */
+    public boolean isModified() {
+        return hasCountedModifications() || !this.readMutableAttributes.isEmpty();
+    }
+
+    /**
+     * <p>
+     * Returns true if this session was modified since its state was last written, ignoring the attributes with mutable values
+     * that were only read.
+     * </p>
+     *
+     * @return
+     */
+    public boolean hasCountedModifications() {
+        return this.version != this.writtenVersion;
+    }
+
+    /**
+     * <p>
+     * Returns the names of the attributes with mutable values read since this session was last written, which may have been
+     * changed in place.
+     * </p>
+     *
+     * @return
+     */
+    public Set<String> getReadMutableAttributes() {
+        return new HashSet<String>(this.readMutableAttributes.keySet());
+    }
+
+    /**
+     * <p>
+     * Returns the attributes set, removed or read as mutable values since this session was last written, without counting
+     * a modification. Removed attributes are mapped to null.
+     * </p>
+     *
+     * @return
+     */
+    public Map<String, Object> getModifiedAttributes() {
+        Map<String, Object> attributes = new HashMap<String, Object>();
+
+        for (String key : this.modifiedAttributes.keySet()) {
+            attributes.put(key, super.getAttribute(key));
+        }
+
+        for (String key : this.readMutableAttributes.keySet()) {
+            attributes.put(key, super.getAttribute(key));
+        }
+
+        return attributes;
+    }
+
+    /**
+     * <p>
+     * Returns the value of the given attribute without recording the read, for readers that never change the value, like the
+     * index of the sessions by principal.
+     * </p>
+     *
+     * @param key
+     * @return
+     */
+    public Object peekAttribute(String key) {
+        return super.getAttribute(key);
+    }
+
+    /**
+     * <p>
+     * Sets an attribute without counting a modification, for attributes read from their serialized form.
+     * </p>
+     */
+    void putAttribute(String key, Object value) {
+        super.setAttribute(key, value);
+    }
+
+    private void modified(String key) {
+        this.modifiedAttributes.put(key, VERSION.incrementAndGet(this));
+    }
+
+    private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+        input.defaultReadObject();
+        this.modifiedAttributes = new ConcurrentHashMap<String, Long>();
+        this.readMutableAttributes = new ConcurrentHashMap<String, Long>();
+    }
+
+    /**
+     * <p>
+     * Returns true if the given value is of a well known immutable type, so reading it can not lead to a change in place.
+     * </p>
+     *
+     * @param value
+     * @return
+     */
+    public static boolean isImmutable(Object value) {
+        return IMMUTABLE_TYPES.contains(value.getClass()) || value instanceof Enum<?>;
+    }
+
+}
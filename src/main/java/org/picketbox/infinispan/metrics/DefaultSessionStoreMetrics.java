@@ -0,0 +1,382 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.infinispan.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.picketbox.infinispan.PicketBoxInfinispanMessages;
+
+/**
+ * <p>
+ * Default {@link SessionStoreMetrics} implementation. Keeps a {@link LatencyHistogram} per operation and exposes the collected
+ * values through JMX.
+ * </p>
+ */
+public class DefaultSessionStoreMetrics implements SessionStoreMetrics, DefaultSessionStoreMetricsMBean {
+
+    private static final String OBJECT_NAME_PREFIX = "org.picketbox.infinispan:type=SessionStore,name=";
+
+    private final LatencyHistogram loads = new LatencyHistogram();
+    private final LatencyHistogram stores = new LatencyHistogram();
+    private final LatencyHistogram updates = new LatencyHistogram();
+    private final LatencyHistogram removes = new LatencyHistogram();
+    private final LatencyHistogram listenerCallbacks = new LatencyHistogram();
+    private final LatencyHistogram compressions = new LatencyHistogram();
+    private final LatencyHistogram decompressions = new LatencyHistogram();
+    private final AtomicLong loadHits = new AtomicLong();
+    private final AtomicLong updateSkips = new AtomicLong();
+    private final AtomicLong payloadSizeSamples = new AtomicLong();
+    private final AtomicLong totalPayloadSize = new AtomicLong();
+    private final AtomicLong maxPayloadSize = new AtomicLong();
+    private final AtomicLong listenerErrors = new AtomicLong();
+    private final AtomicLong totalCompressionInput = new AtomicLong();
+    private final AtomicLong totalCompressionOutput = new AtomicLong();
+
+    private ObjectName objectName;
+
+    /**
+     * <p>
+     * Registers this instance in the platform MBean server for the store of the given cache. The name of the MBean is the
+     * cache name, followed by the given store name if not null, so it stays the same across restarts.
+     * </p>
+     *
+     * @param cacheName
+     * @param storeName the name distinguishing stores of caches with the same name, or null.
+     * @throws IllegalStateException if an MBean with the same name is already registered.
+     */
+    public void register(String cacheName, String storeName) {
+        register(storeName != null ? cacheName + "." + storeName : cacheName);
+    }
+
+    /**
+     * <p>
+     * Registers this instance in the platform MBean server with the given name.
+     * </p>
+     *
+     * @param name
+     * @throws IllegalStateException if an MBean with the same name is already registered.
+     */
+    public void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(name));
+
+            server.registerMBean(this, objectName);
+
+            this.objectName = objectName;
+        } catch (InstanceAlreadyExistsException e) {
+            throw new IllegalStateException("Statistics of a session store are already registered with the name [" + name
+                    + "], a distinct statistics name must be set for each store of the same cache.", e);
+        } catch (Exception e) {
+            throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+        }
+    }
+
+    /**
+     * <p>
+     * Unregisters this instance from the platform MBean server, if registered.
+     * </p>
+     */
+    public void unregister() {
+        if (this.objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+            this.objectName = null;
+        } catch (Exception e) {
+            throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+        }
+    }
+
+    @Override
+    public void recordLoad(long nanos, boolean hit) {
+        this.loads.record(nanos);
+
+        if (hit) {
+            this.loadHits.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void recordStore(long nanos) {
+        this.stores.record(nanos);
+    }
+
+    @Override
+    public void recordUpdate(long nanos, boolean skipped) {
+        this.updates.record(nanos);
+
+        if (skipped) {
+            this.updateSkips.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void recordRemove(long nanos) {
+        this.removes.record(nanos);
+    }
+
+    @Override
+    public void recordPayloadSize(int bytes) {
+        this.payloadSizeSamples.incrementAndGet();
+        this.totalPayloadSize.addAndGet(bytes);
+
+        long currentMax = this.maxPayloadSize.get();
+
+        while (bytes > currentMax && !this.maxPayloadSize.compareAndSet(currentMax, bytes)) {
+            currentMax = this.maxPayloadSize.get();
+        }
+    }
+
+    @Override
+    public void recordCompression(int bytes, int compressedBytes, long nanos) {
+        this.compressions.record(nanos);
+        this.totalCompressionInput.addAndGet(bytes);
+        this.totalCompressionOutput.addAndGet(compressedBytes);
+    }
+
+    @Override
+    public void recordDecompression(long nanos) {
+        this.decompressions.record(nanos);
+    }
+
+    @Override
+    public void recordListenerCallback(long nanos) {
+        this.listenerCallbacks.record(nanos);
+    }
+
+    @Override
+    public void recordListenerError(Throwable cause) {
+        this.listenerErrors.incrementAndGet();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return this.loads.getCount();
+    }
+
+    @Override
+    public long getLoadHits() {
+        return this.loadHits.get();
+    }
+
+    @Override
+    public double getLoadHitRatio() {
+        long count = this.loads.getCount();
+
+        return count == 0 ? 0 : (double) this.loadHits.get() / count;
+    }
+
+    @Override
+    public long getLoadAverageMicros() {
+        return toMicros(this.loads.getAverage());
+    }
+
+    @Override
+    public long getLoadP99Micros() {
+        return toMicros(this.loads.getPercentile(99));
+    }
+
+    @Override
+    public long getLoadMaxMicros() {
+        return toMicros(this.loads.getMax());
+    }
+
+    @Override
+    public long getStoreCount() {
+        return this.stores.getCount();
+    }
+
+    @Override
+    public long getStoreAverageMicros() {
+        return toMicros(this.stores.getAverage());
+    }
+
+    @Override
+    public long getStoreP99Micros() {
+        return toMicros(this.stores.getPercentile(99));
+    }
+
+    @Override
+    public long getStoreMaxMicros() {
+        return toMicros(this.stores.getMax());
+    }
+
+    @Override
+    public long getUpdateCount() {
+        return this.updates.getCount();
+    }
+
+    @Override
+    public long getUpdateSkips() {
+        return this.updateSkips.get();
+    }
+
+    @Override
+    public double getUpdateSkipRatio() {
+        long count = this.updates.getCount();
+
+        return count == 0 ? 0 : (double) this.updateSkips.get() / count;
+    }
+
+    @Override
+    public long getUpdateAverageMicros() {
+        return toMicros(this.updates.getAverage());
+    }
+
+    @Override
+    public long getUpdateP99Micros() {
+        return toMicros(this.updates.getPercentile(99));
+    }
+
+    @Override
+    public long getUpdateMaxMicros() {
+        return toMicros(this.updates.getMax());
+    }
+
+    @Override
+    public long getRemoveCount() {
+        return this.removes.getCount();
+    }
+
+    @Override
+    public long getRemoveAverageMicros() {
+        return toMicros(this.removes.getAverage());
+    }
+
+    @Override
+    public long getRemoveP99Micros() {
+        return toMicros(this.removes.getPercentile(99));
+    }
+
+    @Override
+    public long getRemoveMaxMicros() {
+        return toMicros(this.removes.getMax());
+    }
+
+    @Override
+    public long getPayloadSizeSamples() {
+        return this.payloadSizeSamples.get();
+    }
+
+    @Override
+    public long getAveragePayloadSize() {
+        long samples = this.payloadSizeSamples.get();
+
+        return samples == 0 ? 0 : this.totalPayloadSize.get() / samples;
+    }
+
+    @Override
+    public long getMaxPayloadSize() {
+        return this.maxPayloadSize.get();
+    }
+
+    @Override
+    public long getCompressionCount() {
+        return this.compressions.getCount();
+    }
+
+    /**
+     * <p>
+     * Returns the ratio between the compressed and the serialized sizes of the compressed sessions.
+     * </p>
+     */
+    @Override
+    public double getCompressionRatio() {
+        long input = this.totalCompressionInput.get();
+
+        return input == 0 ? 0 : (double) this.totalCompressionOutput.get() / input;
+    }
+
+    @Override
+    public long getCompressionAverageMicros() {
+        return toMicros(this.compressions.getAverage());
+    }
+
+    @Override
+    public long getCompressionMaxMicros() {
+        return toMicros(this.compressions.getMax());
+    }
+
+    @Override
+    public long getDecompressionCount() {
+        return this.decompressions.getCount();
+    }
+
+    @Override
+    public long getDecompressionAverageMicros() {
+        return toMicros(this.decompressions.getAverage());
+    }
+
+    @Override
+    public long getListenerCallbackCount() {
+        return this.listenerCallbacks.getCount();
+    }
+
+    @Override
+    public long getListenerCallbackAverageMicros() {
+        return toMicros(this.listenerCallbacks.getAverage());
+    }
+
+    @Override
+    public long getListenerCallbackMaxMicros() {
+        return toMicros(this.listenerCallbacks.getMax());
+    }
+
+    @Override
+    public long getListenerErrorCount() {
+        return this.listenerErrors.get();
+    }
+
+    @Override
+    public void reset() {
+        this.loads.reset();
+        this.stores.reset();
+        this.updates.reset();
+        this.removes.reset();
+        this.listenerCallbacks.reset();
+        this.compressions.reset();
+        this.decompressions.reset();
+        this.loadHits.set(0);
+        this.updateSkips.set(0);
+        this.payloadSizeSamples.set(0);
+        this.totalPayloadSize.set(0);
+        this.maxPayloadSize.set(0);
+        this.listenerErrors.set(0);
+        this.totalCompressionInput.set(0);
+        this.totalCompressionOutput.set(0);
+    }
+
+    private long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+}
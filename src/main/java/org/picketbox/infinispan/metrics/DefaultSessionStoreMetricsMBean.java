@@ -0,0 +1,100 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.infinispan.metrics;
+
+/**
+ * <p>
+ * JMX management interface of the {@link DefaultSessionStoreMetrics}. Latencies are reported in microseconds.
+ * </p>
+ */
+public interface DefaultSessionStoreMetricsMBean {
+
+    long getLoadCount();
+
+    long getLoadHits();
+
+    double getLoadHitRatio();
+
+    long getLoadAverageMicros();
+
+    long getLoadP99Micros();
+
+    long getLoadMaxMicros();
+
+    long getStoreCount();
+
+    long getStoreAverageMicros();
+
+    long getStoreP99Micros();
+
+    long getStoreMaxMicros();
+
+    long getUpdateCount();
+
+    long getUpdateSkips();
+
+    double getUpdateSkipRatio();
+
+    long getUpdateAverageMicros();
+
+    long getUpdateP99Micros();
+
+    long getUpdateMaxMicros();
+
+    long getRemoveCount();
+
+    long getRemoveAverageMicros();
+
+    long getRemoveP99Micros();
+
+    long getRemoveMaxMicros();
+
+    long getPayloadSizeSamples();
+
+    long getAveragePayloadSize();
+
+    long getMaxPayloadSize();
+
+    long getCompressionCount();
+
+    double getCompressionRatio();
+
+    long getCompressionAverageMicros();
+
+    long getCompressionMaxMicros();
+
+    long getDecompressionCount();
+
+    long getDecompressionAverageMicros();
+
+    long getListenerCallbackCount();
+
+    long getListenerCallbackAverageMicros();
+
+    long getListenerCallbackMaxMicros();
+
+    long getListenerErrorCount();
+
+    void reset();
+
+}
@@ -0,0 +1,115 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.infinispan.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Lock free latency histogram using power of two buckets of nanoseconds. Percentiles are reported as the upper bound of the
+ * bucket containing them, so they are accurate within a factor of two.
+ * </p>
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+
+        // values between 2^i and 2^(i+1) - 1 go to the bucket i
+        int bucket = value == 0 ? 0 : BUCKETS - 1 - Long.numberOfLeadingZeros(value);
+
+        this.buckets.incrementAndGet(bucket);
+        this.count.incrementAndGet();
+        this.total.addAndGet(value);
+
+        long currentMax = this.max.get();
+
+        while (value > currentMax && !this.max.compareAndSet(currentMax, value)) {
+            currentMax = this.max.get();
+        }
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /**
+     * @return the average latency in nanoseconds.
+     */
+    public long getAverage() {
+        long currentCount = this.count.get();
+
+        return currentCount == 0 ? 0 : this.total.get() / currentCount;
+    }
+
+    /**
+     * @return the maximum latency in nanoseconds.
+     */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * @param percentile a value between 0 and 100.
+     * @return the upper bound in nanoseconds of the bucket containing the given percentile.
+     */
+    public long getPercentile(double percentile) {
+        long currentCount = this.count.get();
+
+        if (currentCount == 0) {
+            return 0;
+        }
+
+        long threshold = (long) Math.ceil(currentCount * percentile / 100);
+        long accumulated = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            accumulated += this.buckets.get(i);
+
+            if (accumulated >= threshold) {
+                return Math.min(i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets.set(i, 0);
+        }
+
+        this.count.set(0);
+        this.total.set(0);
+        this.max.set(0);
+    }
+
+}
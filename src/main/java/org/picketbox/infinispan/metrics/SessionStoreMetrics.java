@@ -0,0 +1,77 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.infinispan.metrics;
+
+/**
+ * <p>
+ * Receives the measurements taken by the {@link org.picketbox.infinispan.session.store.InfinispanSessionStore} and the {@link
+ * org.picketbox.infinispan.session.CacheListener}. Implementations must be thread safe and should not block, since they are
+ * called on the request and cache notification threads.
+ * </p>
+ */
+public interface SessionStoreMetrics {
+
+    /**
+     * @param nanos the duration of the load operation.
+     * @param hit true if a session was found.
+     */
+    void recordLoad(long nanos, boolean hit);
+
+    void recordStore(long nanos);
+
+    /**
+     * @param nanos the duration of the update operation.
+     * @param skipped true if the session did not change and was not written.
+     */
+    void recordUpdate(long nanos, boolean skipped);
+
+    void recordRemove(long nanos);
+
+    /**
+     * @param bytes the serialized size of a session written to the cache.
+     */
+    void recordPayloadSize(int bytes);
+
+    /**
+     * @param bytes the serialized size of a compressed session.
+     * @param compressedBytes the size of the compressed session.
+     * @param nanos the duration of the compression.
+     */
+    void recordCompression(int bytes, int compressedBytes, long nanos);
+
+    /**
+     * @param nanos the duration of the decompression of a session.
+     */
+    void recordDecompression(long nanos);
+
+    /**
+     * @param nanos the duration of a cache listener callback.
+     */
+    void recordListenerCallback(long nanos);
+
+    /**
+     * @param cause the error raised while handling a cache listener callback.
+     */
+    void recordListenerError(Throwable cause);
+
+}
@@ -21,19 +21,37 @@
  */
 package org.picketbox.infinispan.session;
 
+import static org.picketbox.infinispan.PicketBoxInfinispanLogger.LOGGER;
+
 import java.io.Serializable;
 
 import org.infinispan.notifications.Listener;
 import org.infinispan.notifications.cachelistener.annotation.CacheEntryInvalidated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
 import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
 import org.infinispan.notifications.cachelistener.event.CacheEntryInvalidatedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
 import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
 import org.picketbox.core.exceptions.PicketBoxSessionException;
 import org.picketbox.core.session.PicketBoxSession;
-import org.picketbox.core.session.SessionId;
+import org.picketbox.infinispan.metrics.SessionStoreMetrics;
 
 /**
- * Listens on the Infinispan Cache events. Primary use is to detect when the cache entry is invalidated.
+ * Listens on the Infinispan Cache events. Primary use is to detect when the cache entry is invalidated. If a {@link NearCache}
+ * is provided its entries are invalidated when the corresponding cache entries are modified by other nodes, removed or
+ * invalidated. If a {@link SessionStoreMetrics} is provided the duration and the errors of each callback are recorded.
+ * <p>
+ * If a {@link SessionInvalidator} is provided the listener runs in asynchronous mode: events originated on the local node are
+ * ignored, and the sessions are handed to the invalidator instead of being invalidated on the thread delivering the event.
+ * Infinispan only provides the value of a removed entry on the pre-event, so the session is taken from the pre-event when
+ * available and from the near cache on the post-event otherwise.
+ * </p>
+ * <p>
+ * Infinispan fires no event when an entry expires, so sessions expired by their max idle time are neither invalidated nor
+ * removed from the near cache by this listener. The near cache relies on its own time to live for them, which the
+ * {@link org.picketbox.infinispan.session.store.InfinispanSessionStore} requires to be shorter than the session timeout.
+ * </p>
  *
  * @author anil saldhana
  * @since Aug 2, 2012
@@ -41,30 +59,117 @@ import org.picketbox.core.session.SessionId;
 @Listener
 public class CacheListener {
 
+    private final NearCache nearCache;
+    private final SessionStoreMetrics metrics;
+    private final SessionInvalidator invalidator;
+
+    public CacheListener() {
+        this(null, null);
+    }
+
+    public CacheListener(NearCache nearCache, SessionStoreMetrics metrics) {
+        this(nearCache, metrics, null);
+    }
+
+    public CacheListener(NearCache nearCache, SessionStoreMetrics metrics, SessionInvalidator invalidator) {
+        this.nearCache = nearCache;
+        this.metrics = metrics;
+        this.invalidator = invalidator;
+    }
+
+    @CacheEntryModified
+    public void observeModified(CacheEntryModifiedEvent<Serializable, Object> event) {
+        long start = System.nanoTime();
+
+        // local writes already updated the near cache
+        if (!event.isPre() && !event.isOriginLocal()) {
+            invalidateNearCache(event);
+        }
+
+        recordCallback(start);
+    }
+
     @CacheEntryInvalidated
-    public void observeInvalidated(CacheEntryInvalidatedEvent<SessionId<? extends Serializable>, PicketBoxSession> event) {
-        PicketBoxSession session = event.getValue();
+    public void observeInvalidated(CacheEntryInvalidatedEvent<Serializable, Object> event) {
+        long start = System.nanoTime();
 
-        if (session != null && session.isValid()) {
-            try {
-                session.invalidate(false);
-            } catch (PicketBoxSessionException e) {
-                e.printStackTrace();
-            }
+        if (this.invalidator != null) {
+            scheduleInvalidation(event, event.getValue());
+        } else {
+            invalidateNearCache(event);
+            invalidateSession(event.getValue());
         }
+
+        recordCallback(start);
     }
 
     @CacheEntryRemoved
-    public void observeRemoved(CacheEntryRemovedEvent<SessionId<? extends Serializable>, PicketBoxSession> event) {
-        PicketBoxSession session = event.getValue();
+    public void observeRemoved(CacheEntryRemovedEvent<Serializable, Object> event) {
+        long start = System.nanoTime();
+
+        if (this.invalidator != null) {
+            scheduleInvalidation(event, event.getValue());
+        } else {
+            invalidateNearCache(event);
+            invalidateSession(event.getValue());
+        }
+
+        recordCallback(start);
+    }
+
+    private void recordCallback(long start) {
+        if (this.metrics != null) {
+            this.metrics.recordListenerCallback(System.nanoTime() - start);
+        }
+    }
+
+    private void invalidateNearCache(CacheEntryEvent<Serializable, Object> event) {
+        if (this.nearCache != null) {
+            this.nearCache.invalidate(event.getKey());
+        }
+    }
+
+    private void scheduleInvalidation(CacheEntryEvent<Serializable, Object> event, Object value) {
+        if (event.isOriginLocal()) {
+            return;
+        }
+
+        // the removed or invalidated session is only provided on the pre-event, the near cache entry is a fallback
+        if (event.isPre()) {
+            if (value instanceof PicketBoxSession) {
+                invalidateNearCache(event);
+                this.invalidator.invalidate(event.getKey(), (PicketBoxSession) value);
+            }
 
-        if (session != null && session.isValid()) {
+            return;
+        }
+
+        PicketBoxSession cached = this.nearCache != null ? this.nearCache.invalidate(event.getKey()) : null;
+
+        if (cached != null) {
+            this.invalidator.invalidate(event.getKey(), cached);
+        }
+    }
+
+    private void invalidateSession(Object value) {
+        // the listener is also registered on caches holding other values, like the session attributes
+        if (!(value instanceof PicketBoxSession)) {
+            return;
+        }
+
+        PicketBoxSession session = (PicketBoxSession) value;
+
+        if (session.isValid()) {
             try {
                 session.invalidate(false);
             } catch (PicketBoxSessionException e) {
-                e.printStackTrace();
+                LOGGER.errorHandlingCacheEvent(session.getId(), e);
+
+                if (this.metrics != null) {
+                    this.metrics.recordListenerError(e);
+                }
             }
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,191 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.infinispan.util.concurrent.BoundedConcurrentHashMap;
+import org.infinispan.util.concurrent.BoundedConcurrentHashMap.Eviction;
+import org.picketbox.core.session.PicketBoxSession;
+
+/**
+ * <p>
+ * Bounded, node local cache of {@link PicketBoxSession} instances kept in front of the clustered session cache. Entries are
+ * evicted using the configured {@link Eviction} strategy when the maximum number of entries is reached and expire after the
+ * configured time to live.
+ * </p>
+ * <p>
+ * Entries are invalidated by the {@link CacheListener} when the corresponding cache entry is modified by another node, removed
+ * or invalidated. Sessions read from the clustered cache are added with
+ * {@link #putLoaded(Serializable, PicketBoxSession, long)} and dropped if an invalidation of their key happened since
+ * {@link #beginLoad(Serializable)} was called, so a load racing with an invalidation can not keep a stale session.
+ * </p>
+ * <p>
+ * The time to live bounds how long a session may be stale when this node is not notified of the changes, like a non owner
+ * of a distributed cache, or of the expiration of the session, which produces no cache event.
+ * </p>
+ */
+public class NearCache {
+
+    private static final int INVALIDATION_STRIPES = 64;
+
+    private final ConcurrentMap<Serializable, NearCacheEntry> entries;
+    private final long timeToLive;
+    private final AtomicLongArray invalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+
+    /**
+     * @param maxEntries the maximum number of sessions held by this cache.
+     * @param timeToLive the time in milliseconds a session is kept. Zero or a negative value means no expiration.
+     * @param eviction the strategy used to evict sessions when the maximum number of entries is reached.
+     */
+    public NearCache(int maxEntries, long timeToLive, Eviction eviction) {
+        this.entries = new BoundedConcurrentHashMap<Serializable, NearCacheEntry>(maxEntries, 16, eviction);
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * <p>
+     * Returns the session stored with the given key, or null if there is no session or if it is expired.
+     * </p>
+     *
+     * @param key
+     * @return
+     */
+    public PicketBoxSession get(Serializable key) {
+        NearCacheEntry entry = this.entries.get(key);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.isExpired()) {
+            this.entries.remove(key, entry);
+            return null;
+        }
+
+        return entry.session;
+    }
+
+    public void put(Serializable key, PicketBoxSession session) {
+        this.entries.put(key, createEntry(session));
+    }
+
+    /**
+     * <p>
+     * Starts the load of the session stored with the given key from the clustered cache.
+     * </p>
+     *
+     * @param key
+     * @return the stamp to provide to {@link #putLoaded(Serializable, PicketBoxSession, long)}.
+     */
+    public long beginLoad(Serializable key) {
+        return this.invalidations.get(stripe(key));
+    }
+
+    /**
+     * <p>
+     * Stores a session read from the clustered cache, unless the key was invalidated since the given stamp was obtained.
+     * </p>
+     *
+     * @param key
+     * @param session
+     * @param stamp the stamp returned by {@link #beginLoad(Serializable)} before the session was read.
+     * @return true if the session was stored.
+     */
+    public boolean putLoaded(Serializable key, PicketBoxSession session, long stamp) {
+        int stripe = stripe(key);
+
+        if (this.invalidations.get(stripe) != stamp) {
+            return false;
+        }
+
+        NearCacheEntry entry = createEntry(session);
+
+        this.entries.put(key, entry);
+
+        // an invalidation may have happened between the check and the put
+        if (this.invalidations.get(stripe) != stamp) {
+            this.entries.remove(key, entry);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * <p>
+     * Removes the session stored with the given key.
+     * </p>
+     *
+     * @param key
+     * @return the removed session, or null if there was no session.
+     */
+    public PicketBoxSession invalidate(Serializable key) {
+        this.invalidations.incrementAndGet(stripe(key));
+
+        NearCacheEntry entry = this.entries.remove(key);
+
+        return entry != null ? entry.session : null;
+    }
+
+    public void clear() {
+        for (int i = 0; i < INVALIDATION_STRIPES; i++) {
+            this.invalidations.incrementAndGet(i);
+        }
+
+        this.entries.clear();
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    private NearCacheEntry createEntry(PicketBoxSession session) {
+        long expiration = this.timeToLive > 0 ? System.currentTimeMillis() + this.timeToLive : Long.MAX_VALUE;
+
+        return new NearCacheEntry(session, expiration);
+    }
+
+    private static int stripe(Serializable key) {
+        int hash = key.hashCode();
+
+        return (hash ^ (hash >>> 16)) & (INVALIDATION_STRIPES - 1);
+    }
+
+    private static class NearCacheEntry {
+
+        private final PicketBoxSession session;
+        private final long expiration;
+
+        NearCacheEntry(PicketBoxSession session, long expiration) {
+            this.session = session;
+            this.expiration = expiration;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() > this.expiration;
+        }
+    }
+
+}
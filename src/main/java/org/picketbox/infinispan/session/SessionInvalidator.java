@@ -0,0 +1,171 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session;
+
+import static org.picketbox.infinispan.PicketBoxInfinispanLogger.LOGGER;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.metrics.SessionStoreMetrics;
+
+/**
+ * <p>
+ * Invalidates {@link PicketBoxSession} instances on a single background thread, so the threads delivering the cache events are
+ * not blocked while the sessions are torn down.
+ * </p>
+ * <p>
+ * Pending invalidations are kept by session key, so a session invalidated several times before the worker runs is only
+ * invalidated once. The worker drains all pending invalidations as a single batch. The number of pending invalidations is
+ * bounded; when the bound is reached the session is invalidated on the calling thread.
+ * </p>
+ * <p>
+ * The worker is a plain daemon thread rather than an executor, whose queue could not replace the invalidation pending for a
+ * session. It is named after the cache whose events it handles.
+ * </p>
+ */
+public class SessionInvalidator {
+
+    private static final String THREAD_NAME_PREFIX = "PicketBox-SessionInvalidator-";
+
+    private final Map<Serializable, PicketBoxSession> pending = new LinkedHashMap<Serializable, PicketBoxSession>();
+    private final int maxPending;
+    private final SessionStoreMetrics metrics;
+    private final Thread worker;
+    private boolean running = true;
+
+    /**
+     * @param cacheName the name of the cache whose events are handled, used to name the worker thread.
+     * @param maxPending the maximum number of invalidations waiting for the worker thread.
+     * @param metrics the metrics used to record the errors raised while invalidating a session. May be null.
+     */
+    public SessionInvalidator(String cacheName, int maxPending, SessionStoreMetrics metrics) {
+        this.maxPending = maxPending;
+        this.metrics = metrics;
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processPending();
+            }
+        }, THREAD_NAME_PREFIX + cacheName);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * <p>
+     * Schedules the invalidation of the given session. If an invalidation is already pending for the same key it is replaced.
+     * </p>
+     *
+     * @param key
+     * @param session
+     */
+    public void invalidate(Serializable key, PicketBoxSession session) {
+        synchronized (this.pending) {
+            if (this.running && (this.pending.size() < this.maxPending || this.pending.containsKey(key))) {
+                this.pending.put(key, session);
+                this.pending.notify();
+                return;
+            }
+        }
+
+        // the queue is full or the invalidator is stopped
+        invalidateSession(session);
+    }
+
+    /**
+     * <p>
+     * Stops the worker thread after all pending invalidations are processed, waiting at most the given time.
+     * </p>
+     *
+     * @param timeout
+     * @param unit
+     */
+    public void shutdown(long timeout, TimeUnit unit) {
+        synchronized (this.pending) {
+            this.running = false;
+            this.pending.notify();
+        }
+
+        try {
+            this.worker.join(unit.toMillis(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int size() {
+        synchronized (this.pending) {
+            return this.pending.size();
+        }
+    }
+
+    private void processPending() {
+        while (true) {
+            List<PicketBoxSession> batch;
+
+            synchronized (this.pending) {
+                while (this.running && this.pending.isEmpty()) {
+                    try {
+                        this.pending.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (this.pending.isEmpty()) {
+                    return;
+                }
+
+                batch = new ArrayList<PicketBoxSession>(this.pending.values());
+                this.pending.clear();
+            }
+
+            for (PicketBoxSession session : batch) {
+                invalidateSession(session);
+            }
+        }
+    }
+
+    private void invalidateSession(PicketBoxSession session) {
+        if (!session.isValid()) {
+            return;
+        }
+
+        try {
+            session.invalidate(false);
+        } catch (Exception e) {
+            // a failing session must not stop the worker thread, whatever the failure
+            LOGGER.errorHandlingCacheEvent(session.getId(), e);
+
+            if (this.metrics != null) {
+                this.metrics.recordListenerError(e);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,450 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.infinispan.AdvancedCache;
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.container.DataContainer;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.context.Flag;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryInvalidated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.annotation.DataRehashed;
+import org.infinispan.notifications.cachelistener.annotation.TopologyChanged;
+import org.infinispan.notifications.cachelistener.event.CacheEntryEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.infinispan.notifications.cachelistener.event.Event;
+import org.infinispan.remoting.rpc.RpcManager;
+import org.infinispan.remoting.transport.Address;
+import org.infinispan.transaction.TransactionMode;
+import org.picketbox.infinispan.PicketBoxInfinispanLogger;
+import org.picketbox.infinispan.PicketBoxInfinispanMessages;
+
+/**
+ * <p>
+ * Tracks the last access time of the sessions for the {@link InfinispanSessionStore}. Accesses are recorded in a node local
+ * concurrent map and written to a companion cache in batches when {@link #flush()} is called, so requests that only keep a
+ * session alive do not write to the cluster.
+ * </p>
+ * <p>
+ * Expired sessions are only looked for among the access times this node is the primary owner of, so each expired session is
+ * found by a single node. The keys of these access times are kept in a local set, updated as the access times are written or
+ * removed and rebuilt from the entries held by this node when the cluster topology changes.
+ * </p>
+ * <p>
+ * Once started, the recorded accesses are flushed and the expired sessions are handed to an {@link ExpirationListener} by a
+ * single daemon thread at each touch interval. The listener is also told about each access time written, on every node holding
+ * a copy of it.
+ * </p>
+ * <p>
+ * A flush holds a lock excluding the removals while it takes the pending accesses and writes them, so an access time taken
+ * by a flush is never written after the removal of its session by this node, which would keep it in the cache forever. An
+ * access time flushed by another node while the session is removed is found expired and removed again.
+ * </p>
+ */
+class AccessTimes {
+
+    private final ConcurrentMap<Serializable, Long> pending = new ConcurrentHashMap<Serializable, Long>();
+    private final Set<Serializable> primaryKeys = Collections.newSetFromMap(new ConcurrentHashMap<Serializable, Boolean>());
+    private final ReadWriteLock flushLock = new ReentrantReadWriteLock();
+    private final AdvancedCache<Serializable, Long> cache;
+    private final AdvancedCache<Serializable, Long> removalCache;
+    private final boolean asyncWrites;
+    private volatile boolean primaryKeysStale = true;
+    private List<Address> primaryKeysMembers;
+    private OwnershipListener ownershipListener;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param cache
+     * @param writeMode the write mode of the sessions, access times being removed asynchronously with the
+     *        {@link WriteMode#ASYNC} write mode.
+     */
+    AccessTimes(Cache<Serializable, Long> cache, WriteMode writeMode) {
+        this.cache = cache.getAdvancedCache();
+        this.asyncWrites = WriteMode.ASYNC.equals(writeMode);
+        this.removalCache = this.asyncWrites ? this.cache.withFlags(Flag.SKIP_REMOTE_LOOKUP, Flag.FORCE_ASYNCHRONOUS)
+                : this.cache.withFlags(Flag.SKIP_REMOTE_LOOKUP);
+    }
+
+    /**
+     * <p>
+     * Configures the companion cache from a copy of the session cache configuration. Access time entries are neither evicted
+     * nor expired, they are removed with their sessions.
+     * </p>
+     *
+     * @param builder
+     */
+    static void configure(ConfigurationBuilder builder) {
+        builder.transaction().transactionMode(TransactionMode.NON_TRANSACTIONAL);
+        builder.eviction().strategy(EvictionStrategy.NONE).maxEntries(-1);
+        builder.expiration().lifespan(-1).maxIdle(-1);
+    }
+
+    /**
+     * <p>
+     * Resets the idle time of the entry with the given key held by this node, if any, without reading it through the cache.
+     * </p>
+     *
+     * @param cache
+     * @param key
+     */
+    static void touchEntry(Cache<Serializable, ?> cache, Serializable key) {
+        InternalCacheEntry entry = cache.getAdvancedCache().getDataContainer().peek(key);
+
+        if (entry != null) {
+            entry.touch();
+        }
+    }
+
+    /**
+     * <p>
+     * Starts flushing the recorded accesses at each touch interval. If a max idle time is given the sessions not accessed for
+     * longer are also found and handed to the given listener.
+     * </p>
+     *
+     * @param touchInterval the interval in milliseconds.
+     * @param maxIdle the max idle time in milliseconds, or zero if sessions never expire.
+     * @param listener
+     */
+    void start(long touchInterval, final long maxIdle, final ExpirationListener listener) {
+        final String cacheName = this.cache.getName();
+
+        this.ownershipListener = new OwnershipListener(this, listener);
+        this.cache.addListener(this.ownershipListener);
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PicketBox-SessionTouch-" + cacheName);
+
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        });
+
+        this.executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                // runs on the executor, so errors are logged and not propagated
+                try {
+                    if (maxIdle <= 0) {
+                        flush();
+                        return;
+                    }
+
+                    for (Serializable key : findExpired(maxIdle)) {
+                        listener.expired(key);
+                    }
+                } catch (RuntimeException e) {
+                    PicketBoxInfinispanLogger.LOGGER.errorFlushingAccessTimes(cacheName, e);
+                }
+            }
+        }, touchInterval, touchInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <p>
+     * Stops the periodic flush and flushes the accesses recorded since the last one.
+     * </p>
+     */
+    void stop() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+
+        flush();
+
+        if (this.ownershipListener != null) {
+            this.cache.removeListener(this.ownershipListener);
+        }
+    }
+
+    /**
+     * <p>
+     * Records an access to the session with the given key.
+     * </p>
+     *
+     * @param key
+     */
+    void touch(Serializable key) {
+        this.pending.put(key, System.currentTimeMillis());
+    }
+
+    /**
+     * <p>
+     * Discards the access time of the session with the given key. Waits for a flush in progress, which may be writing it.
+     * </p>
+     *
+     * @param key
+     */
+    void remove(Serializable key) {
+        this.flushLock.readLock().lock();
+
+        try {
+            this.pending.remove(key);
+            this.removalCache.remove(key);
+        } finally {
+            this.flushLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * <p>
+     * Discards the access times of the sessions with the given keys. The removals are issued concurrently and, unless the
+     * {@link WriteMode#ASYNC} write mode is used, awaited before returning.
+     * </p>
+     *
+     * @param keys
+     */
+    void removeAll(Collection<? extends Serializable> keys) {
+        if (this.asyncWrites) {
+            for (Serializable key : keys) {
+                remove(key);
+            }
+
+            return;
+        }
+
+        List<Future<Long>> removals = new ArrayList<Future<Long>>();
+
+        this.flushLock.readLock().lock();
+
+        try {
+            for (Serializable key : keys) {
+                this.pending.remove(key);
+                removals.add(this.removalCache.removeAsync(key));
+            }
+
+            for (Future<Long> removal : removals) {
+                try {
+                    removal.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+                } catch (ExecutionException e) {
+                    throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e.getCause());
+                }
+            }
+        } finally {
+            this.flushLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * <p>
+     * Writes the access times recorded since the last flush with a single <code>putAll</code>. Removals wait until the
+     * batch is written.
+     * </p>
+     *
+     * @return the number of access times written.
+     */
+    int flush() {
+        Map<Serializable, Long> batch = new HashMap<Serializable, Long>();
+
+        this.flushLock.writeLock().lock();
+
+        try {
+            for (Entry<Serializable, Long> entry : this.pending.entrySet()) {
+                // an access recorded after the entry was read stays pending
+                if (this.pending.remove(entry.getKey(), entry.getValue())) {
+                    batch.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                this.cache.withFlags(Flag.SKIP_REMOTE_LOOKUP).putAll(batch);
+            }
+        } finally {
+            this.flushLock.writeLock().unlock();
+        }
+
+        return batch.size();
+    }
+
+    /**
+     * <p>
+     * Returns the keys of the sessions owned by this node that were not accessed for more than the given time. Accesses not
+     * yet flushed by this node are flushed first, accesses pending on other nodes must be covered by the given time.
+     * </p>
+     *
+     * @param maxIdle the time in milliseconds.
+     * @return
+     */
+    List<Serializable> findExpired(long maxIdle) {
+        flush();
+        refreshPrimaryKeys();
+
+        long deadline = System.currentTimeMillis() - maxIdle;
+        DataContainer dataContainer = this.cache.getDataContainer();
+        List<Serializable> expired = new ArrayList<Serializable>();
+
+        for (Serializable key : this.primaryKeys) {
+            InternalCacheEntry entry = dataContainer.peek(key);
+
+            if (entry == null) {
+                this.primaryKeys.remove(key);
+            } else if (entry.getValue() instanceof Long && (Long) entry.getValue() < deadline) {
+                expired.add(key);
+            }
+        }
+
+        return expired;
+    }
+
+    /**
+     * <p>
+     * Rebuilds the set of primary keys from the entries held by this node if the cluster topology changed since it was built.
+     * Keys written while the set is rebuilt are added by the {@link OwnershipListener} or found in the entries.
+     * </p>
+     */
+    private void refreshPrimaryKeys() {
+        List<Address> members = getMembers();
+
+        if (!this.primaryKeysStale && (members == null || members.equals(this.primaryKeysMembers))) {
+            return;
+        }
+
+        this.primaryKeysStale = false;
+        this.primaryKeysMembers = members;
+        this.primaryKeys.clear();
+
+        for (InternalCacheEntry entry : this.cache.getDataContainer()) {
+            updateOwnership((Serializable) entry.getKey());
+        }
+    }
+
+    private void updateOwnership(Serializable key) {
+        if (isPrimaryOwner(key)) {
+            this.primaryKeys.add(key);
+        } else {
+            this.primaryKeys.remove(key);
+        }
+    }
+
+    private List<Address> getMembers() {
+        RpcManager rpcManager = this.cache.getRpcManager();
+
+        return rpcManager != null ? new ArrayList<Address>(rpcManager.getTransport().getMembers()) : null;
+    }
+
+    private boolean isPrimaryOwner(Object key) {
+        DistributionManager distributionManager = this.cache.getDistributionManager();
+
+        if (distributionManager != null) {
+            return distributionManager.getPrimaryLocation(key).equals(this.cache.getRpcManager().getAddress());
+        }
+
+        // replicated caches are scanned by the coordinator only
+        return this.cache.getRpcManager() == null || this.cache.getCacheManager().isCoordinator();
+    }
+
+    /**
+     * <p>
+     * Receives the keys of the sessions found expired, and of the sessions whose access time was written.
+     * </p>
+     */
+    interface ExpirationListener {
+
+        void expired(Serializable key);
+
+        /**
+         * <p>
+         * Called on each node holding a copy of the access time of the session with the given key when it is written, on the
+         * thread writing it.
+         * </p>
+         *
+         * @param key
+         */
+        void accessed(Serializable key);
+
+    }
+
+    /**
+     * <p>
+     * Keeps the set of primary keys up to date as access times are written or removed, and notifies the
+     * {@link ExpirationListener} of the access times written.
+     * </p>
+     */
+    @Listener
+    public static class OwnershipListener {
+
+        private final AccessTimes accessTimes;
+        private final ExpirationListener expirationListener;
+
+        OwnershipListener(AccessTimes accessTimes, ExpirationListener expirationListener) {
+            this.accessTimes = accessTimes;
+            this.expirationListener = expirationListener;
+        }
+
+        @CacheEntryModified
+        public void accessTimeWritten(CacheEntryModifiedEvent<Serializable, Long> event) {
+            if (!event.isPre()) {
+                this.accessTimes.updateOwnership(event.getKey());
+                this.expirationListener.accessed(event.getKey());
+            }
+        }
+
+        @CacheEntryRemoved
+        @CacheEntryInvalidated
+        public void accessTimeRemoved(CacheEntryEvent<Serializable, Long> event) {
+            if (!event.isPre()) {
+                this.accessTimes.primaryKeys.remove(event.getKey());
+            }
+        }
+
+        @DataRehashed
+        @TopologyChanged
+        public void topologyChanged(Event<Serializable, Long> event) {
+            if (!event.isPre()) {
+                this.accessTimes.primaryKeysStale = true;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+import java.security.Principal;
+
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.marshall.TrackedPicketBoxSession;
+
+/**
+ * <p>
+ * {@link PrincipalResolver} reading the principal from a session attribute. The attribute value can be a {@link Principal}, in
+ * which case its name is used, or any other object, in which case its string representation is used.
+ * </p>
+ * <p>
+ * The attribute of a {@link TrackedPicketBoxSession} is read through {@link TrackedPicketBoxSession#peekAttribute(String)},
+ * so the read is not recorded and the other attributes of a lazily deserialized session stay serialized.
+ * </p>
+ */
+public class AttributePrincipalResolver implements PrincipalResolver {
+
+    private final String attributeName;
+
+    public AttributePrincipalResolver(String attributeName) {
+        this.attributeName = attributeName;
+    }
+
+    @Override
+    public String getPrincipal(PicketBoxSession session) {
+        Object value;
+
+        if (session instanceof TrackedPicketBoxSession) {
+            value = ((TrackedPicketBoxSession) session).peekAttribute(this.attributeName);
+        } else {
+            value = session.getAttribute(this.attributeName);
+        }
+
+        if (value instanceof Principal) {
+            return ((Principal) value).getName();
+        }
+
+        return value != null ? value.toString() : null;
+    }
+
+}
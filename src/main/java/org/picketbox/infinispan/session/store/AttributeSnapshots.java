@@ -0,0 +1,115 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+import java.io.Serializable;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+
+import org.infinispan.util.concurrent.BoundedConcurrentHashMap;
+import org.infinispan.util.concurrent.BoundedConcurrentHashMap.Eviction;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.marshall.TrackedPicketBoxSession;
+
+/**
+ * <p>
+ * Keeps a copy of the attributes of each session instance as last read from or written to the cache by this node. Used by
+ * the {@link OptimisticUpdater} to find the attributes changed by an update of a session that does not track its
+ * modifications, so they can be merged into a session changed concurrently. {@link TrackedPicketBoxSession} instances report
+ * their modified attributes themselves and are never copied.
+ * </p>
+ * <p>
+ * Snapshots are shallow copies held in a bounded map, so attribute values changed in place are not detected. A snapshot only
+ * applies to the session instance it was taken from.
+ * </p>
+ */
+class AttributeSnapshots {
+
+    private final ConcurrentMap<Serializable, Snapshot> snapshots;
+
+    AttributeSnapshots(int maxEntries) {
+        this.snapshots = new BoundedConcurrentHashMap<Serializable, Snapshot>(maxEntries, 16, Eviction.LRU);
+    }
+
+    void record(PicketBoxSession session) {
+        if (session instanceof TrackedPicketBoxSession) {
+            this.snapshots.remove(session.getId().getId());
+        } else {
+            this.snapshots.put(session.getId().getId(), new Snapshot(session));
+        }
+    }
+
+    void remove(Serializable key) {
+        this.snapshots.remove(key);
+    }
+
+    /**
+     * <p>
+     * Returns the attributes added, changed or removed in the given session since its snapshot was recorded, removed
+     * attributes being mapped to null.
+     * </p>
+     *
+     * @param session a session that does not track its modifications.
+     * @return the modified attributes, or null if there is no snapshot of the given session instance.
+     */
+    Map<String, Object> getModifiedAttributes(PicketBoxSession session) {
+        Snapshot recorded = this.snapshots.get(session.getId().getId());
+
+        if (recorded == null || recorded.session.get() != session) {
+            return null;
+        }
+
+        Map<String, Object> attributes = session.getAttributes();
+        Map<String, Object> modifiedAttributes = new HashMap<String, Object>();
+
+        for (Entry<String, Object> attribute : attributes.entrySet()) {
+            Object previousValue = recorded.attributes.get(attribute.getKey());
+
+            if (previousValue == null || !previousValue.equals(attribute.getValue())) {
+                modifiedAttributes.put(attribute.getKey(), attribute.getValue());
+            }
+        }
+
+        for (String name : recorded.attributes.keySet()) {
+            if (!attributes.containsKey(name)) {
+                modifiedAttributes.put(name, null);
+            }
+        }
+
+        return modifiedAttributes;
+    }
+
+    private static class Snapshot {
+
+        private final WeakReference<PicketBoxSession> session;
+        private final Map<String, Object> attributes;
+
+        Snapshot(PicketBoxSession session) {
+            this.session = new WeakReference<PicketBoxSession>(session);
+            this.attributes = new HashMap<String, Object>(session.getAttributes());
+        }
+    }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.infinispan.session.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.configuration.parsing.ConfigurationBuilderHolder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.picketbox.infinispan.marshall.DefaultSessionIdExternalizer;
+import org.picketbox.infinispan.marshall.PicketBoxSessionExternalizer;
+
+/**
+ * <p>
+ * Creates the {@link EmbeddedCacheManager} instances used by the {@link InfinispanSessionStore} and keeps a reference counted
+ * registry of the shared ones. Stores sharing a cache manager use a single transport, thread pools and cluster membership. A
+ * shared cache manager is stopped when the last store using it releases it.
+ * </p>
+ * <p>
+ * Shared cache managers are registered by the name given to the stores, so only the stores explicitly given the same name
+ * share a cache manager. The registry is global to the class loader of this class, the name should then be unique to the
+ * application sharing it. The cache manager is created from the configuration of the first store acquiring it, the stores
+ * acquiring it later only define the caches it does not run yet. Stores sharing a cache manager must then use the same
+ * configuration, or different cache names: a store defining a running cache differently is rejected.
+ * </p>
+ * <p>
+ * The configurations given to the registry are never modified, the cache managers are created from copies of them.
+ * </p>
+ */
+final class CacheManagerRegistry {
+
+    private static final Map<String, SharedCacheManager> cacheManagers = new HashMap<String, SharedCacheManager>();
+
+    private CacheManagerRegistry() {
+    }
+
+    /**
+     * <p>
+     * Returns the shared cache manager registered with the given name, creating it from the given configuration if it does
+     * not exist. The named caches defined by the configuration that are not running yet are defined in the cache manager.
+     * </p>
+     *
+     * @param name
+     * @param holder
+     * @return
+     * @throws IllegalStateException if the configuration defines a running cache differently.
+     */
+    static synchronized EmbeddedCacheManager acquire(String name, ConfigurationBuilderHolder holder) {
+        SharedCacheManager sharedCacheManager = cacheManagers.get(name);
+
+        if (sharedCacheManager == null) {
+            sharedCacheManager = new SharedCacheManager(createCacheManager(holder));
+            cacheManagers.put(name, sharedCacheManager);
+        } else {
+            defineConfigurations(sharedCacheManager.cacheManager, holder);
+        }
+
+        sharedCacheManager.references++;
+
+        return sharedCacheManager.cacheManager;
+    }
+
+    /**
+     * <p>
+     * Releases a reference to the shared cache manager registered with the given name. The cache manager is stopped when
+     * there are no more references to it.
+     * </p>
+     *
+     * @param name
+     */
+    static synchronized void release(String name) {
+        SharedCacheManager sharedCacheManager = cacheManagers.get(name);
+
+        if (sharedCacheManager != null && --sharedCacheManager.references == 0) {
+            cacheManagers.remove(name);
+            sharedCacheManager.cacheManager.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Creates and starts a new cache manager from the given configuration. The externalizers for the PicketBox types are always
+     * registered, so they don't need to be declared in the configuration.
+     * </p>
+     *
+     * @param holder
+     * @return
+     */
+    static EmbeddedCacheManager createCacheManager(ConfigurationBuilderHolder holder) {
+        GlobalConfigurationBuilder globalConfiguration = new GlobalConfigurationBuilder().read(holder
+                .getGlobalConfigurationBuilder().build());
+
+        globalConfiguration.serialization().addAdvancedExternalizer(new PicketBoxSessionExternalizer());
+        globalConfiguration.serialization().addAdvancedExternalizer(new DefaultSessionIdExternalizer());
+
+        DefaultCacheManager cacheManager = new DefaultCacheManager(globalConfiguration.build(), holder
+                .getDefaultConfigurationBuilder().build(), false);
+
+        defineConfigurations(cacheManager, holder);
+
+        cacheManager.start();
+
+        return cacheManager;
+    }
+
+    /**
+     * <p>
+     * Returns a copy of the given configuration, which can be changed without affecting the given one.
+     * </p>
+     *
+     * @param holder
+     * @return
+     */
+    static ConfigurationBuilderHolder copy(ConfigurationBuilderHolder holder) {
+        ConfigurationBuilderHolder copy = new ConfigurationBuilderHolder();
+
+        copy.getGlobalConfigurationBuilder().read(holder.getGlobalConfigurationBuilder().build());
+        copy.getDefaultConfigurationBuilder().read(holder.getDefaultConfigurationBuilder().build());
+
+        for (Entry<String, ConfigurationBuilder> namedConfiguration : holder.getNamedConfigurationBuilders().entrySet()) {
+            copy.newConfigurationBuilder(namedConfiguration.getKey()).read(namedConfiguration.getValue().build());
+        }
+
+        return copy;
+    }
+
+    private static void defineConfigurations(EmbeddedCacheManager cacheManager, ConfigurationBuilderHolder holder) {
+        for (Entry<String, ConfigurationBuilder> namedConfiguration : holder.getNamedConfigurationBuilders().entrySet()) {
+            String cacheName = namedConfiguration.getKey();
+            Configuration configuration = namedConfiguration.getValue().build();
+
+            if (cacheManager.isRunning(cacheName)) {
+                validateConfiguration(cacheName, configuration, cacheManager.getCache(cacheName).getCacheConfiguration());
+            } else {
+                cacheManager.defineConfiguration(cacheName, configuration);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Checks if the given configuration of a running cache matches the configuration it is running with, comparing the
+     * settings the stores rely on.
+     * </p>
+     *
+     * @param cacheName
+     * @param configuration
+     * @param runningConfiguration
+     * @throws IllegalStateException if the configurations differ.
+     */
+    private static void validateConfiguration(String cacheName, Configuration configuration,
+            Configuration runningConfiguration) {
+        List<String> differences = new ArrayList<String>();
+
+        compare(differences, "cache mode", configuration.clustering().cacheMode(),
+                runningConfiguration.clustering().cacheMode());
+        compare(differences, "owners", configuration.clustering().hash().numOwners(),
+                runningConfiguration.clustering().hash().numOwners());
+        compare(differences, "L1", configuration.clustering().l1().enabled(),
+                runningConfiguration.clustering().l1().enabled());
+        compare(differences, "L1 lifespan", configuration.clustering().l1().lifespan(),
+                runningConfiguration.clustering().l1().lifespan());
+        compare(differences, "lifespan", configuration.expiration().lifespan(),
+                runningConfiguration.expiration().lifespan());
+        compare(differences, "max idle", configuration.expiration().maxIdle(),
+                runningConfiguration.expiration().maxIdle());
+        compare(differences, "eviction max entries", configuration.eviction().maxEntries(),
+                runningConfiguration.eviction().maxEntries());
+        compare(differences, "eviction strategy", configuration.eviction().strategy(),
+                runningConfiguration.eviction().strategy());
+        compare(differences, "transaction mode", configuration.transaction().transactionMode(),
+                runningConfiguration.transaction().transactionMode());
+        compare(differences, "locking mode", configuration.transaction().lockingMode(),
+                runningConfiguration.transaction().lockingMode());
+        compare(differences, "write skew check", configuration.locking().writeSkewCheck(),
+                runningConfiguration.locking().writeSkewCheck());
+        compare(differences, "invocation batching", configuration.invocationBatching().enabled(),
+                runningConfiguration.invocationBatching().enabled());
+        compare(differences, "store as binary", configuration.storeAsBinary().enabled(),
+                runningConfiguration.storeAsBinary().enabled());
+        compare(differences, "cache loaders", configuration.loaders().cacheLoaders().size(),
+                runningConfiguration.loaders().cacheLoaders().size());
+        compare(differences, "passivation", configuration.loaders().passivation(),
+                runningConfiguration.loaders().passivation());
+
+        if (!differences.isEmpty()) {
+            throw new IllegalStateException("The cache [" + cacheName + "] is already running in the shared cache manager "
+                    + "with a different configuration: " + differences + ".");
+        }
+    }
+
+    private static void compare(List<String> differences, String setting, Object value, Object runningValue) {
+        if (value == null ? runningValue != null : !value.equals(runningValue)) {
+            differences.add(setting + " " + value + " instead of " + runningValue);
+        }
+    }
+
+    private static class SharedCacheManager {
+
+        private final EmbeddedCacheManager cacheManager;
+        private int references;
+
+        SharedCacheManager(EmbeddedCacheManager cacheManager) {
+            this.cacheManager = cacheManager;
+        }
+    }
+
+}
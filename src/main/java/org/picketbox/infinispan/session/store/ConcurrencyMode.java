@@ -0,0 +1,47 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+/**
+ * <p>
+ * Defines how the {@link InfinispanSessionStore} handles sessions updated concurrently by different nodes.
+ * </p>
+ */
+public enum ConcurrencyMode {
+
+    /**
+     * <p>
+     * Updates overwrite the session stored in the cache, so the changes made by a concurrent update may be lost.
+     * </p>
+     */
+    LAST_WRITE_WINS,
+
+    /**
+     * <p>
+     * Updates are written in optimistic transactions using versioned entries. When the session was changed by a concurrent
+     * update the attribute changes are merged into the stored session and the update is retried, failing after a maximum
+     * number of attempts. No lock is held while the session is in use. Updates of sessions no longer stored, because they
+     * were removed, expired or evicted, are dropped instead of writing the sessions again.
+     * </p>
+     */
+    OPTIMISTIC
+}
@@ -0,0 +1,554 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.client.hotrod.RemoteCache;
+import org.infinispan.client.hotrod.RemoteCacheManager;
+import org.infinispan.util.concurrent.BoundedConcurrentHashMap.Eviction;
+import org.picketbox.core.AbstractPicketBoxLifeCycle;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+import org.picketbox.core.session.SessionStore;
+import org.picketbox.infinispan.PicketBoxInfinispanLogger;
+import org.picketbox.infinispan.metrics.DefaultSessionStoreMetrics;
+import org.picketbox.infinispan.metrics.SessionStoreMetrics;
+import org.picketbox.infinispan.session.NearCache;
+
+/**
+ * <p>
+ * {@link SessionStore} implementation storing {@link PicketBoxSession} instances in a remote Infinispan cluster using the Hot
+ * Rod protocol. Unlike the {@link InfinispanSessionStore}, application nodes do not join the cluster: sessions are held by
+ * the Infinispan servers, so the application tier can be scaled and restarted without state transfer and without keeping
+ * the session data on its own heap.
+ * </p>
+ * <p>
+ * The store creates a {@link RemoteCacheManager} from the given Hot Rod client properties, usually created by the
+ * {@link HotRodSessionStoreBuilder}. The client keeps a pool of connections to each server and sends each request to the
+ * server owning the session when the remote cache is distributed. An existing {@link RemoteCacheManager} can also be provided,
+ * in which case the store never stops it. The remote cache with the given name must be defined in the servers, otherwise the
+ * store fails to start.
+ * </p>
+ * <p>
+ * Writes never fetch the previous value. When the {@link WriteMode#ASYNC} write mode is used the sessions are written and
+ * removed asynchronously, the pending writes can be awaited using {@link #awaitPendingWrites(long, TimeUnit)} and are always
+ * awaited when the store is stopped. The sessions read with {@link #loadAll(Collection)} are fetched concurrently.
+ * </p>
+ * <p>
+ * If a session timeout is set the sessions are written with a max idle time equal to the timeout, so abandoned sessions are
+ * expired by the servers.
+ * </p>
+ * <p>
+ * A {@link NearCache} can be enabled by setting a maximum number of near cache entries. The Hot Rod protocol does not notify
+ * the clients of changes, so the sessions written by other application nodes are only seen once the near cache entry
+ * expires. The near cache time to live is then required and must be short, unless the requests of a session always go to
+ * the same node.
+ * </p>
+ * <p>
+ * Operation latencies and the load hit ratio can be recorded by a {@link SessionStoreMetrics}. When statistics are enabled a
+ * {@link DefaultSessionStoreMetrics} is used and registered in the platform MBean server, under the cache name and the
+ * optional name set by {@link #setStatisticsName(String)}.
+ * </p>
+ */
+public class HotRodSessionStore extends AbstractPicketBoxLifeCycle implements SessionStore {
+
+    private static final String DEFAULT_CACHE_NAME = "picketbox-session-cache";
+    private static final long STOP_TIMEOUT = 30;
+
+    private String cacheName = DEFAULT_CACHE_NAME;
+    private final Properties properties;
+    private WriteMode writeMode = WriteMode.SYNC;
+    private int maxPendingWrites = PendingWrites.DEFAULT_MAX_PENDING_WRITES;
+    private int asyncWriteThreads = PendingWrites.DEFAULT_WRITE_THREADS;
+    private int sessionTimeout;
+    private int nearCacheMaxEntries;
+    private long nearCacheTimeToLive;
+    private Eviction nearCacheEviction = Eviction.LRU;
+    private boolean statisticsEnabled;
+    private String statisticsName;
+
+    private RemoteCacheManager cacheManager;
+    private boolean providedCacheManager;
+    private RemoteCache<Serializable, PicketBoxSession> cache;
+
+    private SessionEntries entries;
+
+    private NearCache nearCache;
+
+    private SessionStoreMetrics metrics;
+
+    /**
+     * <p>
+     * Creates a new instance connecting to the servers defined by the given Hot Rod client properties.
+     * </p>
+     *
+     * @param cacheName the name of the remote cache, or null to use the default name.
+     * @param properties
+     */
+    public HotRodSessionStore(String cacheName, Properties properties) {
+        this.properties = properties;
+
+        if (cacheName != null) {
+            this.cacheName = cacheName;
+        }
+    }
+
+    /**
+     * <p>
+     * Creates a new instance using an existing remote cache manager. It is not stopped when this store is stopped.
+     * </p>
+     *
+     * @param cacheName the name of the remote cache, or null to use the default name.
+     * @param cacheManager
+     */
+    public HotRodSessionStore(String cacheName, RemoteCacheManager cacheManager) {
+        this.properties = null;
+        this.cacheManager = cacheManager;
+        this.providedCacheManager = true;
+
+        if (cacheName != null) {
+            this.cacheName = cacheName;
+        }
+    }
+
+    @Override
+    protected void doStart() {
+        try {
+            if (!this.providedCacheManager) {
+                this.cacheManager = new RemoteCacheManager(this.properties, true);
+            }
+
+            // the client pings the servers and returns null when they do not define the cache
+            this.cache = this.cacheManager.getCache(this.cacheName);
+
+            if (this.cache == null) {
+                throw new IllegalStateException("Remote cache " + this.cacheName + " is not defined in the Hot Rod servers.");
+            }
+
+            if (this.nearCacheMaxEntries > 0) {
+                validateNearCache();
+                this.nearCache = new NearCache(this.nearCacheMaxEntries, this.nearCacheTimeToLive, this.nearCacheEviction);
+            }
+
+            if (this.metrics == null && this.statisticsEnabled) {
+                this.metrics = new DefaultSessionStoreMetrics();
+            }
+
+            if (this.metrics instanceof DefaultSessionStoreMetrics) {
+                ((DefaultSessionStoreMetrics) this.metrics).register(this.cacheName, this.statisticsName);
+            }
+
+            this.entries = new SessionEntries(this.cache, this.writeMode, this.maxPendingWrites, this.asyncWriteThreads,
+                    getMaxIdle(), null, null);
+        } catch (RuntimeException e) {
+            if (this.metrics instanceof DefaultSessionStoreMetrics) {
+                ((DefaultSessionStoreMetrics) this.metrics).unregister();
+            }
+
+            if (!this.providedCacheManager && this.cacheManager != null) {
+                this.cacheManager.stop();
+            }
+
+            throw new IllegalStateException("Error while initializing the Hot Rod client.", e);
+        }
+    }
+
+    @Override
+    protected void doStop() {
+        try {
+            if (!this.entries.await(STOP_TIMEOUT, TimeUnit.SECONDS)) {
+                PicketBoxInfinispanLogger.LOGGER.pendingWritesDiscarded(this.entries.getPendingWriteCount(), this.cacheName);
+            }
+        } finally {
+            this.entries.stop();
+
+            if (this.nearCache != null) {
+                this.nearCache.clear();
+            }
+
+            if (this.metrics instanceof DefaultSessionStoreMetrics) {
+                ((DefaultSessionStoreMetrics) this.metrics).unregister();
+            }
+
+            if (!this.providedCacheManager) {
+                this.cacheManager.stop();
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#load(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public PicketBoxSession load(SessionId<? extends Serializable> key) {
+        long start = System.nanoTime();
+        PicketBoxSession session = null;
+
+        if (this.nearCache != null) {
+            session = this.nearCache.get(key.getId());
+        }
+
+        if (session == null) {
+            long stamp = this.nearCache != null ? this.nearCache.beginLoad(key.getId()) : 0;
+
+            session = this.cache.get(key.getId());
+
+            if (session != null && this.nearCache != null) {
+                this.nearCache.putLoaded(key.getId(), session, stamp);
+            }
+        }
+
+        if (this.metrics != null) {
+            this.metrics.recordLoad(System.nanoTime() - start, session != null);
+        }
+
+        return session;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#store(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void store(PicketBoxSession session) {
+        long start = System.nanoTime();
+
+        putSession(session);
+
+        if (this.metrics != null) {
+            this.metrics.recordStore(System.nanoTime() - start);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void update(PicketBoxSession session) {
+        long start = System.nanoTime();
+
+        putSession(session);
+
+        if (this.metrics != null) {
+            this.metrics.recordUpdate(System.nanoTime() - start, false);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#remove(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public void remove(SessionId<? extends Serializable> id) {
+        long start = System.nanoTime();
+
+        if (this.nearCache != null) {
+            this.nearCache.invalidate(id.getId());
+        }
+
+        this.entries.remove(id.getId());
+
+        if (this.metrics != null) {
+            this.metrics.recordRemove(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * <p>
+     * Stores the given sessions using a single <code>putAll</code>.
+     * </p>
+     *
+     * @param sessions
+     */
+    public void storeAll(Collection<PicketBoxSession> sessions) {
+        Map<Serializable, PicketBoxSession> writes = new HashMap<Serializable, PicketBoxSession>();
+
+        for (PicketBoxSession session : sessions) {
+            writes.put(session.getId().getId(), session);
+        }
+
+        this.entries.putAll(writes);
+
+        if (this.nearCache != null) {
+            for (Entry<Serializable, PicketBoxSession> entry : writes.entrySet()) {
+                this.nearCache.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Loads the sessions with the given ids. Sessions missing from the {@link NearCache} are read concurrently.
+     * </p>
+     *
+     * @param ids
+     * @return the sessions found, in no particular order.
+     */
+    public List<PicketBoxSession> loadAll(Collection<SessionId<? extends Serializable>> ids) {
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+        Map<Serializable, Long> missing = new HashMap<Serializable, Long>();
+
+        for (SessionId<? extends Serializable> id : ids) {
+            PicketBoxSession session = this.nearCache != null ? this.nearCache.get(id.getId()) : null;
+
+            if (session != null) {
+                sessions.add(session);
+            } else {
+                missing.put(id.getId(), this.nearCache != null ? this.nearCache.beginLoad(id.getId()) : 0L);
+            }
+        }
+
+        for (Entry<Serializable, PicketBoxSession> entry : this.entries.getAll(missing.keySet()).entrySet()) {
+            if (this.nearCache != null) {
+                this.nearCache.putLoaded(entry.getKey(), entry.getValue(), missing.get(entry.getKey()));
+            }
+
+            sessions.add(entry.getValue());
+        }
+
+        return sessions;
+    }
+
+    /**
+     * <p>
+     * Waits for the asynchronous writes pending at the time of the call.
+     * </p>
+     *
+     * @param timeout
+     * @param unit
+     * @return true if all pending writes completed before the timeout.
+     * @throws IllegalStateException if asynchronous writes failed since the previous call. Failed writes are also logged.
+     */
+    public boolean awaitPendingWrites(long timeout, TimeUnit unit) {
+        return this.entries.await(timeout, unit);
+    }
+
+    /**
+     * <p>
+     * The servers never notify the clients of removed or expired sessions, and reading a session from the near cache does not
+     * reset its max idle time in the servers. The near cache entries must then expire, before the sessions do if a session
+     * timeout is set.
+     * </p>
+     */
+    private void validateNearCache() {
+        if (this.nearCacheTimeToLive <= 0) {
+            throw new IllegalStateException("The near cache of the remote cache [" + this.cacheName
+                    + "] requires a time to live, sessions removed through other clients would never be invalidated.");
+        }
+
+        long maxIdle = getMaxIdle();
+
+        if (maxIdle > 0 && this.nearCacheTimeToLive >= maxIdle) {
+            throw new IllegalStateException("The near cache time to live of the remote cache [" + this.cacheName
+                    + "] must be shorter than the session timeout.");
+        }
+    }
+
+    private void putSession(PicketBoxSession session) {
+        this.entries.put(session);
+
+        if (this.nearCache != null) {
+            this.nearCache.put(session.getId().getId(), session);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the max idle time in milliseconds for the session entries, or -1 if no session timeout was set. The Hot Rod
+     * client sends it in seconds.
+     * </p>
+     */
+    private long getMaxIdle() {
+        if (this.sessionTimeout > 0) {
+            return TimeUnit.MINUTES.toMillis(this.sessionTimeout);
+        }
+
+        return -1;
+    }
+
+    public String getCacheName() {
+        return this.cacheName;
+    }
+
+    public void setWriteMode(WriteMode writeMode) {
+        this.writeMode = writeMode;
+    }
+
+    public WriteMode getWriteMode() {
+        return this.writeMode;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of asynchronous writes pending at the same time. Callers block when the limit is reached.
+     * Defaults to 1024. Zero means no limit, in which case servers slower than the callers let the pending writes grow without
+     * bound. Must be set before the store is started.
+     * </p>
+     *
+     * @param maxPendingWrites
+     */
+    public void setMaxPendingWrites(int maxPendingWrites) {
+        this.maxPendingWrites = maxPendingWrites;
+    }
+
+    public int getMaxPendingWrites() {
+        return this.maxPendingWrites;
+    }
+
+    /**
+     * <p>
+     * Sets the number of threads issuing the asynchronous writes, which bounds the number of writes waiting for the servers
+     * at the same time. The writes to a session are always issued by the same thread, in order. Defaults to twice the number
+     * of processors. Must be set before the store is started.
+     * </p>
+     *
+     * @param asyncWriteThreads
+     */
+    public void setAsyncWriteThreads(int asyncWriteThreads) {
+        this.asyncWriteThreads = asyncWriteThreads;
+    }
+
+    public int getAsyncWriteThreads() {
+        return this.asyncWriteThreads;
+    }
+
+    /**
+     * <p>
+     * Sets the session timeout in minutes, used as the max idle time of the session entries.
+     * </p>
+     *
+     * @param sessionTimeout
+     */
+    public void setSessionTimeout(int sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    public int getSessionTimeout() {
+        return this.sessionTimeout;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of entries of the {@link NearCache}. Zero, the default, disables the near cache. Must be set
+     * before the store is started.
+     * </p>
+     *
+     * @param nearCacheMaxEntries
+     */
+    public void setNearCacheMaxEntries(int nearCacheMaxEntries) {
+        this.nearCacheMaxEntries = nearCacheMaxEntries;
+    }
+
+    public int getNearCacheMaxEntries() {
+        return this.nearCacheMaxEntries;
+    }
+
+    /**
+     * <p>
+     * Sets the time to live in milliseconds of the near cache entries, which bounds how long a session changed or removed
+     * through another application node can be seen with its previous state. Required when the near cache is enabled, and must
+     * be shorter than the session timeout if one is set.
+     * </p>
+     *
+     * @param nearCacheTimeToLive
+     */
+    public void setNearCacheTimeToLive(long nearCacheTimeToLive) {
+        this.nearCacheTimeToLive = nearCacheTimeToLive;
+    }
+
+    public long getNearCacheTimeToLive() {
+        return this.nearCacheTimeToLive;
+    }
+
+    public void setNearCacheEviction(Eviction nearCacheEviction) {
+        this.nearCacheEviction = nearCacheEviction;
+    }
+
+    public Eviction getNearCacheEviction() {
+        return this.nearCacheEviction;
+    }
+
+    /**
+     * <p>
+     * Enables the {@link DefaultSessionStoreMetrics} and its registration in the platform MBean server. Ignored if a
+     * {@link SessionStoreMetrics} was provided. Must be set before the store is started.
+     * </p>
+     *
+     * @param statisticsEnabled
+     */
+    public void setStatisticsEnabled(boolean statisticsEnabled) {
+        this.statisticsEnabled = statisticsEnabled;
+    }
+
+    public boolean isStatisticsEnabled() {
+        return this.statisticsEnabled;
+    }
+
+    /**
+     * <p>
+     * Sets the name distinguishing the statistics of this store from the statistics of other stores of a cache with the same
+     * name in this JVM. The {@link DefaultSessionStoreMetrics} are registered under the cache name followed by this name, or
+     * the cache name alone by default. Starting a store whose statistics name is already registered fails. Must be set before
+     * the store is started.
+     * </p>
+     *
+     * @param statisticsName
+     */
+    public void setStatisticsName(String statisticsName) {
+        this.statisticsName = statisticsName;
+    }
+
+    public String getStatisticsName() {
+        return this.statisticsName;
+    }
+
+    /**
+     * <p>
+     * Sets the {@link SessionStoreMetrics} receiving the measurements of this store. Must be set before the store is started.
+     * </p>
+     *
+     * @param metrics
+     */
+    public void setMetrics(SessionStoreMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public SessionStoreMetrics getMetrics() {
+        return this.metrics;
+    }
+
+}
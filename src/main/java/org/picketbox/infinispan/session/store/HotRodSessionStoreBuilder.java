@@ -0,0 +1,260 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.infinispan.session.store;
+
+import java.util.Properties;
+
+import org.infinispan.util.concurrent.BoundedConcurrentHashMap.Eviction;
+
+/**
+ * <p>
+ * Fluent builder for {@link HotRodSessionStore} instances. The created store can be used with the PicketBox configuration:
+ * </p>
+ *
+ * <pre>
+ * builder.sessionManager().store(
+ *         new HotRodSessionStoreBuilder().server(&quot;node1&quot;, 11222).server(&quot;node2&quot;, 11222).build());
+ * </pre>
+ * <p>
+ * By default the store connects to a single server listening on 127.0.0.1:11222. The connection pool of the Hot Rod client is
+ * configured through its <code>maxActive</code>, <code>maxIdle</code> and <code>minIdle</code> properties, any other Hot Rod
+ * client property can be set using {@link #property(String, String)}.
+ * </p>
+ */
+public class HotRodSessionStoreBuilder {
+
+    private static final String DEFAULT_CACHE_NAME = "picketbox-session-cache";
+    private static final String DEFAULT_SERVER = "127.0.0.1:11222";
+    private static final String SERVER_LIST = "infinispan.client.hotrod.server_list";
+    private static final String TCP_NO_DELAY = "infinispan.client.hotrod.tcp_no_delay";
+    private static final String SOCKET_TIMEOUT = "infinispan.client.hotrod.socket_timeout";
+    private static final String CONNECT_TIMEOUT = "infinispan.client.hotrod.connect_timeout";
+    private static final String MAX_ACTIVE = "maxActive";
+    private static final String MAX_IDLE = "maxIdle";
+    private static final String MIN_IDLE = "minIdle";
+
+    private String cacheName = DEFAULT_CACHE_NAME;
+    private StringBuilder servers = new StringBuilder();
+    private Properties properties = new Properties();
+    private boolean statisticsEnabled;
+    private String statisticsName;
+
+    private WriteMode writeMode = WriteMode.SYNC;
+    private int maxPendingWrites = PendingWrites.DEFAULT_MAX_PENDING_WRITES;
+    private int asyncWriteThreads = PendingWrites.DEFAULT_WRITE_THREADS;
+    private int sessionTimeout;
+    private int nearCacheMaxEntries;
+    private long nearCacheTimeToLive;
+    private Eviction nearCacheEviction = Eviction.LRU;
+
+    public HotRodSessionStoreBuilder() {
+        this.properties.setProperty(TCP_NO_DELAY, "true");
+    }
+
+    public HotRodSessionStoreBuilder cacheName(String cacheName) {
+        this.cacheName = cacheName;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Adds a server to the list of servers the client initially connects to. The client then learns the cluster topology from
+     * the servers.
+     * </p>
+     *
+     * @param host
+     * @param port
+     * @return
+     */
+    public HotRodSessionStoreBuilder server(String host, int port) {
+        if (this.servers.length() > 0) {
+            this.servers.append(';');
+        }
+
+        this.servers.append(host).append(':').append(port);
+        return this;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of connections to each server. Callers block when all connections are in use.
+     * </p>
+     *
+     * @param maxActive
+     * @return
+     */
+    public HotRodSessionStoreBuilder maxActive(int maxActive) {
+        return property(MAX_ACTIVE, String.valueOf(maxActive));
+    }
+
+    /**
+     * <p>
+     * Sets the maximum and minimum number of idle connections kept to each server.
+     * </p>
+     *
+     * @param maxIdle
+     * @param minIdle
+     * @return
+     */
+    public HotRodSessionStoreBuilder idleConnections(int maxIdle, int minIdle) {
+        property(MAX_IDLE, String.valueOf(maxIdle));
+        return property(MIN_IDLE, String.valueOf(minIdle));
+    }
+
+    /**
+     * <p>
+     * Sets the socket read and connect timeouts in milliseconds.
+     * </p>
+     *
+     * @param socketTimeout
+     * @param connectTimeout
+     * @return
+     */
+    public HotRodSessionStoreBuilder timeouts(int socketTimeout, int connectTimeout) {
+        property(SOCKET_TIMEOUT, String.valueOf(socketTimeout));
+        return property(CONNECT_TIMEOUT, String.valueOf(connectTimeout));
+    }
+
+    /**
+     * <p>
+     * Sets a property of the Hot Rod client.
+     * </p>
+     *
+     * @param name
+     * @param value
+     * @return
+     */
+    public HotRodSessionStoreBuilder property(String name, String value) {
+        this.properties.setProperty(name, value);
+        return this;
+    }
+
+    /**
+     * <p>
+     * Enables the store statistics, exposed through JMX.
+     * </p>
+     *
+     * @return
+     */
+    public HotRodSessionStoreBuilder statistics() {
+        this.statisticsEnabled = true;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Enables the store statistics, exposed through JMX under the cache name followed by the given name. Each store of a cache
+     * with the same name in a JVM must be given a distinct name, or it fails to start.
+     * </p>
+     *
+     * @param name
+     * @return
+     */
+    public HotRodSessionStoreBuilder statistics(String name) {
+        this.statisticsEnabled = true;
+        this.statisticsName = name;
+        return this;
+    }
+
+    public HotRodSessionStoreBuilder writeMode(WriteMode writeMode) {
+        this.writeMode = writeMode;
+        return this;
+    }
+
+    public HotRodSessionStoreBuilder maxPendingWrites(int maxPendingWrites) {
+        this.maxPendingWrites = maxPendingWrites;
+        return this;
+    }
+
+    public HotRodSessionStoreBuilder asyncWriteThreads(int asyncWriteThreads) {
+        this.asyncWriteThreads = asyncWriteThreads;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Sets the session timeout in minutes. The servers expire the sessions not written during this time.
+     * </p>
+     *
+     * @param sessionTimeout
+     * @return
+     */
+    public HotRodSessionStoreBuilder sessionTimeout(int sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Enables a near cache keeping up to the given number of sessions for the given time to live in milliseconds. The time to
+     * live must be positive and shorter than the session timeout, if one is set.
+     * </p>
+     *
+     * @param maxEntries
+     * @param timeToLive
+     * @return
+     */
+    public HotRodSessionStoreBuilder nearCache(int maxEntries, long timeToLive) {
+        this.nearCacheMaxEntries = maxEntries;
+        this.nearCacheTimeToLive = timeToLive;
+        return this;
+    }
+
+    public HotRodSessionStoreBuilder nearCacheEviction(Eviction nearCacheEviction) {
+        this.nearCacheEviction = nearCacheEviction;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Creates the Hot Rod client properties defined by this builder.
+     * </p>
+     *
+     * @return
+     */
+    public Properties buildProperties() {
+        Properties properties = new Properties();
+
+        properties.putAll(this.properties);
+        properties.setProperty(SERVER_LIST, this.servers.length() > 0 ? this.servers.toString() : DEFAULT_SERVER);
+
+        return properties;
+    }
+
+    public HotRodSessionStore build() {
+        HotRodSessionStore store = new HotRodSessionStore(this.cacheName, buildProperties());
+
+        store.setWriteMode(this.writeMode);
+        store.setMaxPendingWrites(this.maxPendingWrites);
+        store.setAsyncWriteThreads(this.asyncWriteThreads);
+        store.setSessionTimeout(this.sessionTimeout);
+        store.setNearCacheMaxEntries(this.nearCacheMaxEntries);
+        store.setNearCacheTimeToLive(this.nearCacheTimeToLive);
+        store.setNearCacheEviction(this.nearCacheEviction);
+        store.setStatisticsEnabled(this.statisticsEnabled);
+        store.setStatisticsName(this.statisticsName);
+
+        return store;
+    }
+
+}
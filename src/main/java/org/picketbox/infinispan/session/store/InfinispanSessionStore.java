@@ -23,14 +23,43 @@
 package org.picketbox.infinispan.session.store;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
 
 import org.infinispan.Cache;
-import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.FileCacheStoreConfigurationBuilder;
+import org.infinispan.configuration.parsing.ConfigurationBuilderHolder;
+import org.infinispan.configuration.parsing.Parser;
+import org.infinispan.context.Flag;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.factories.KnownComponentNames;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.marshall.AdvancedExternalizer;
+import org.infinispan.marshall.StreamingMarshaller;
+import org.infinispan.util.concurrent.BoundedConcurrentHashMap.Eviction;
 import org.picketbox.core.AbstractPicketBoxLifeCycle;
 import org.picketbox.core.session.PicketBoxSession;
 import org.picketbox.core.session.SessionId;
 import org.picketbox.core.session.SessionStore;
+import org.picketbox.infinispan.PicketBoxInfinispanLogger;
+import org.picketbox.infinispan.marshall.DeflateSessionCodec;
+import org.picketbox.infinispan.marshall.ExternalizerIds;
+import org.picketbox.infinispan.marshall.PicketBoxSessionExternalizer;
+import org.picketbox.infinispan.marshall.SessionCodec;
+import org.picketbox.infinispan.marshall.SessionCompression;
+import org.picketbox.infinispan.marshall.TrackedPicketBoxSession;
+import org.picketbox.infinispan.metrics.DefaultSessionStoreMetrics;
+import org.picketbox.infinispan.metrics.SessionStoreMetrics;
 import org.picketbox.infinispan.session.CacheListener;
+import org.picketbox.infinispan.session.NearCache;
+import org.picketbox.infinispan.session.SessionInvalidator;
 
 /**
  * <p>
@@ -42,6 +71,88 @@ import org.picketbox.infinispan.session.CacheListener;
  * </p>
  * <p>
  * To provide a different name for the configuration file or the internal cache name you can use one of the others constructors.
+ * The configuration can also be provided programmatically using a {@link ConfigurationBuilderHolder}, usually created by the
+ * {@link InfinispanSessionStoreBuilder}.
+ * </p>
+ * <p>
+ * Each store creates its own cache manager by default. Stores given the same cache manager name share a single cache
+ * manager, so several stores in the same JVM don't start one transport each. An existing {@link EmbeddedCacheManager} can
+ * also be provided, in which case the store never stops it. The provided {@link ConfigurationBuilderHolder} is never
+ * modified, the store applies its settings to a copy of it.
+ * </p>
+ * <p>
+ * When the {@link ReplicationGranularity#ATTRIBUTE} granularity is used the session attributes are kept in an atomic map stored
+ * in a companion cache named after the session cache with the <b>.attributes</b> suffix. This cache is defined automatically
+ * from the session cache configuration with invocation batching enabled.
+ * </p>
+ * <p>
+ * If a {@link PrincipalResolver} is set the sessions are also indexed by principal in a companion cache named after the session
+ * cache with the <b>.principals</b> suffix, so the sessions of a principal can be found or removed without iterating the
+ * session cache. This cache must not use the invalidation mode.
+ * </p>
+ * <p>
+ * Writes never fetch the previous value from the cache. When the {@link WriteMode#ASYNC} write mode is used the session entries
+ * are written and removed asynchronously and the calling thread does not wait for the replication. Pending writes can be
+ * awaited using {@link #awaitPendingWrites(long, TimeUnit)} and are awaited for up to 30 seconds when the store is stopped. The
+ * writes still pending after that are discarded and their number is logged.
+ * </p>
+ * <p>
+ * Many sessions can be written, read or removed at once using {@link #storeAll(Collection)}, {@link #loadAll(Collection)} and
+ * {@link #removeAll(Collection)}. Writes are sent as a single <code>putAll</code>, while reads and removals are issued
+ * concurrently, so bulk operations take a few network round trips instead of one per session.
+ * </p>
+ * <p>
+ * If a session timeout is set the session entries are written with a max idle time equal to the timeout, so abandoned sessions
+ * are expired by the cache itself. The number of sessions held in memory by each node can be bounded by setting a maximum
+ * number of entries, in which case the least recently used sessions are evicted.
+ * </p>
+ * <p>
+ * Sessions can survive a restart of the whole cluster by setting the location of a local file cache store. Writes to the store
+ * happen in the background, sessions are optionally passivated to the store when evicted and the stored sessions are preloaded
+ * when the cache starts.
+ * </p>
+ * <p>
+ * Preloading is disabled when passivation is used with a maximum number of entries, since evicting preloaded sessions would
+ * lose them. The sessions are then loaded from the cache store when first accessed. Each node only stores the sessions it
+ * owns, and with the distribution mode the owners of the sessions are reassigned when the nodes rejoin the cluster. A session
+ * is then only found after a restart of the whole cluster if one of its new owners stored it, which is only guaranteed when
+ * every node owns every session, that is when the number of owners is at least the number of nodes.
+ * </p>
+ * <p>
+ * When the sessions are stored as binary the session cache keeps them serialized, so nodes holding sessions they never read,
+ * like backup owners, do not deserialize them. Loaded sessions are
+ * {@link org.picketbox.infinispan.marshall.LazyPicketBoxSession} instances deserializing each attribute when it is first
+ * read.
+ * </p>
+ * <p>
+ * A {@link NearCache} can be enabled by setting a maximum number of near cache entries. Loaded and written sessions are then
+ * kept in a bounded node local cache, avoiding remote reads and deserialization for sessions owned by other nodes.
+ * </p>
+ * <p>
+ * Dirty tracking can be enabled by setting a maximum number of tracked sessions. Updates of sessions that did not change since
+ * they were read or written by this node are then skipped. Sessions read from the cache are
+ * {@link TrackedPicketBoxSession} instances counting their own modifications, so checking them only serializes the attributes
+ * with mutable values that were read, to find out if they were changed in place. A fingerprint of the other sessions, like
+ * the instances passed to {@link #store(PicketBoxSession)}, is kept instead.
+ * </p>
+ * <p>
+ * When a touch interval is set the session accesses are recorded locally and written in batches at each interval to a
+ * companion cache named after the session cache with the <b>.access</b> suffix. Sessions not accessed for longer than the
+ * session timeout plus the touch interval are removed by the primary owner of their access time entry. The session entries
+ * keep twice this time as max idle time, reset on each node holding them when their access time is written, so sessions
+ * whose accesses were never flushed still expire.
+ * </p>
+ * <p>
+ * With the {@link ConcurrencyMode#OPTIMISTIC} concurrency mode the session cache uses optimistic transactions with versioned
+ * entries and write skew checks. An update conflicting with a concurrent update is retried after merging its attribute
+ * changes into the stored session. Sessions are stored as {@link TrackedPicketBoxSession} instances, which report their
+ * attribute changes. This mode requires the {@link ReplicationGranularity#SESSION} granularity and the {@link WriteMode#SYNC}
+ * write mode.
+ * </p>
+ * <p>
+ * Operation latencies, the load hit ratio, sampled payload sizes and the listener callbacks can be recorded by a
+ * {@link SessionStoreMetrics}. When statistics are enabled a {@link DefaultSessionStoreMetrics} is used and registered in the
+ * platform MBean server, under the cache name and the optional name set by {@link #setStatisticsName(String)}.
  * </p>
  *
  * @author <a href="mailto:psilva@redhat.com">Pedro Silva</a>
@@ -51,13 +162,72 @@ public class InfinispanSessionStore extends AbstractPicketBoxLifeCycle implement
 
     private static final String DEFAULT_CONFIG_FILE = "picketbox-ispn.xml";
     private static final String DEFAULT_CACHE_NAME = "picketbox-session-cache";
+    private static final String ATTRIBUTE_CACHE_SUFFIX = ".attributes";
+    private static final String PRINCIPAL_CACHE_SUFFIX = ".principals";
+    private static final String ACCESS_CACHE_SUFFIX = ".access";
+    private static final long STOP_TIMEOUT = 30;
+    private static final int DEFAULT_MAX_PENDING_INVALIDATIONS = 1024;
+    private static final int DEFAULT_MAX_UPDATE_ATTEMPTS = 10;
+    private static final int MAX_ATTRIBUTE_SNAPSHOTS = 16384;
+    private static final int ACCESS_TIMES_SAFETY_FACTOR = 2;
 
     private String configurationFile = DEFAULT_CONFIG_FILE;
     private String cacheName = DEFAULT_CACHE_NAME;
+    private ConfigurationBuilderHolder configuration;
+    private ReplicationGranularity replicationGranularity = ReplicationGranularity.SESSION;
+    private WriteMode writeMode = WriteMode.SYNC;
+    private int maxPendingWrites = PendingWrites.DEFAULT_MAX_PENDING_WRITES;
+    private int asyncWriteThreads = PendingWrites.DEFAULT_WRITE_THREADS;
+    private int sessionTimeout;
+    private int maxEntries;
+    private String cacheStoreLocation;
+    private boolean passivation;
+    private boolean preload = true;
+    private int writeBehindThreads = 1;
+    private int dirtyTrackingMaxEntries;
+    private long touchInterval;
+    private ConcurrencyMode concurrencyMode = ConcurrencyMode.LAST_WRITE_WINS;
+    private int maxUpdateAttempts = DEFAULT_MAX_UPDATE_ATTEMPTS;
+    private int sessionIdBufferSize;
+    private int compressionThreshold;
+    private SessionCodec sessionCodec = new DeflateSessionCodec();
+    private boolean storeAsBinary;
+    private int nearCacheMaxEntries;
+    private long nearCacheTimeToLive;
+    private Eviction nearCacheEviction = Eviction.LRU;
+    private boolean statisticsEnabled;
+    private String statisticsName;
+    private boolean asyncListener;
+    private int maxPendingInvalidations = DEFAULT_MAX_PENDING_INVALIDATIONS;
+    private PrincipalResolver principalResolver;
 
     private Cache<Serializable, PicketBoxSession> cache;
+    private SessionAttributes sessionAttributes;
+    private PrincipalIndex principalIndex;
+
+    private EmbeddedCacheManager cacheManager;
+    private boolean providedCacheManager;
+    private String cacheManagerName;
+    private PicketBoxSessionExternalizer sessionExternalizer;
+
+    private CacheListener cacheListener;
+    private SessionInvalidator sessionInvalidator;
+
+    private SessionEntries entries;
+
+    private OptimisticUpdater optimisticUpdater;
 
-    private DefaultCacheManager cacheManager;
+    private NearCache nearCache;
+
+    private SessionFingerprints fingerprints;
+
+    private AttributeSnapshots attributeSnapshots;
+
+    private AccessTimes accessTimes;
+
+    private LocalSessionIdGenerator sessionIdGenerator;
+
+    private SessionStoreMetrics metrics;
 
     /**
      * <p>
@@ -94,73 +264,1465 @@ public class InfinispanSessionStore extends AbstractPicketBoxLifeCycle implement
 
     /**
      * <p>
-     * Loads the configuration and starts the {@link DefaultCacheManager}.
+     * Creates a new instance using a programmatic configuration. The configuration must define a named cache with the given
+     * name.
      * </p>
      *
-     * @param configurationFile
+     * @param cacheName
+     * @param configuration
+     */
+    public InfinispanSessionStore(String cacheName, ConfigurationBuilderHolder configuration) {
+        this.configurationFile = null;
+        this.configuration = configuration;
+
+        if (cacheName != null) {
+            this.cacheName = cacheName;
+        }
+    }
+
+    /**
+     * <p>
+     * Creates a new instance using an existing cache manager. The cache manager must be started and define a cache with the
+     * given name. It is not stopped when this store is stopped.
+     * </p>
+     *
+     * @param cacheName
+     * @param cacheManager
      */
-    private void startCache(String configurationFile) {
+    public InfinispanSessionStore(String cacheName, EmbeddedCacheManager cacheManager) {
+        this.configurationFile = null;
+        this.cacheManager = cacheManager;
+        this.providedCacheManager = true;
+
+        if (cacheName != null) {
+            this.cacheName = cacheName;
+        }
+    }
+
+    /**
+     * <p>
+     * Loads the configuration, if not provided programmatically, and obtains the cache manager from the
+     * {@link CacheManagerRegistry}, unless an existing cache manager was provided.
+     * </p>
+     */
+    private void startCache() {
         try {
-            this.cacheManager = new DefaultCacheManager(configurationFile);
+            if (!this.providedCacheManager) {
+                // not released if the registry rejects the configuration, even when restarting this store
+                this.cacheManager = null;
+
+                ConfigurationBuilderHolder holder;
+
+                if (this.configuration != null) {
+                    holder = CacheManagerRegistry.copy(this.configuration);
+                } else {
+                    holder = new Parser(Thread.currentThread().getContextClassLoader()).parseFile(this.configurationFile);
+                }
+
+                configureSessionCache(holder);
 
-            cacheManager.start();
+                if (this.cacheManagerName != null) {
+                    this.cacheManager = CacheManagerRegistry.acquire(this.cacheManagerName, holder);
+                } else {
+                    this.cacheManager = CacheManagerRegistry.createCacheManager(holder);
+                }
+            }
+
+            if (this.metrics == null && this.statisticsEnabled) {
+                this.metrics = new DefaultSessionStoreMetrics();
+            }
+
+            if (this.compressionThreshold > 0 || this.storeAsBinary) {
+                configureSessionExternalizer();
+            }
 
             this.cache = cacheManager.getCache(this.cacheName);
 
-            this.cache.addListener(new CacheListener());
+            if (this.sessionExternalizer != null && !this.sessionExternalizer.isCompressionSupported()) {
+                throw new IllegalStateException(
+                        "Sessions can not be compressed or stored as binary, the PicketBoxModuleLifecycle was not loaded.");
+            }
+
+            if (this.nearCacheMaxEntries > 0) {
+                validateNearCache();
+                this.nearCache = new NearCache(this.nearCacheMaxEntries, this.nearCacheTimeToLive, this.nearCacheEviction);
+            }
+
+            validateConcurrencyMode();
+
+            if (isOptimistic()) {
+                this.attributeSnapshots = new AttributeSnapshots(MAX_ATTRIBUTE_SNAPSHOTS);
+            }
+
+            if (this.dirtyTrackingMaxEntries > 0) {
+                this.fingerprints = new SessionFingerprints(this.dirtyTrackingMaxEntries, getMarshaller());
+            }
+
+            if (this.metrics instanceof DefaultSessionStoreMetrics) {
+                ((DefaultSessionStoreMetrics) this.metrics).register(this.cacheName, this.statisticsName);
+            }
+
+            if (this.asyncListener) {
+                this.sessionInvalidator = new SessionInvalidator(this.cacheName, this.maxPendingInvalidations, this.metrics);
+            }
+
+            this.cacheListener = new CacheListener(this.nearCache, this.metrics, this.sessionInvalidator);
+
+            this.cache.addListener(this.cacheListener);
+
+            this.entries = new SessionEntries(this.cache.getAdvancedCache().withFlags(Flag.SKIP_REMOTE_LOOKUP), this.cache,
+                    this.writeMode, this.maxPendingWrites, this.asyncWriteThreads, getMaxIdle(), getMarshaller(), this.metrics);
+
+            if (isOptimistic()) {
+                this.optimisticUpdater = new OptimisticUpdater(this.cache, this.entries, this.attributeSnapshots,
+                        this.maxUpdateAttempts);
+            }
+
+            if (isAttributeGranularity()) {
+                startAttributeCache();
+            }
+
+            if (this.principalResolver != null) {
+                startPrincipalCache();
+            }
+
+            if (this.touchInterval > 0) {
+                startAccessTimes();
+            }
+
+            if (this.sessionIdBufferSize > 0) {
+                this.sessionIdGenerator = new LocalSessionIdGenerator(this.cache, this.sessionIdBufferSize);
+            }
         } catch (Exception e) {
+            if (this.cacheManager != null) {
+                releaseCacheManager();
+            }
+
             throw new IllegalStateException("Error while initializing ISPN cache configuration.", e);
         }
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * <p>
+     * Applies the eviction and cache store settings of this store to the session cache configuration. If the configuration
+     * does not define the session cache it is defined from the default configuration.
+     * </p>
      *
-     * @see org.picketbox.core.session.SessionStore#load(org.picketbox.core.session.SessionId)
+     * @param holder
      */
-    @Override
-    public PicketBoxSession load(SessionId<? extends Serializable> key) {
-        return this.cache.get(key.getId());
+    private void configureSessionCache(ConfigurationBuilderHolder holder) {
+        if (this.maxEntries <= 0 && this.cacheStoreLocation == null && !isOptimistic() && !this.storeAsBinary) {
+            return;
+        }
+
+        ConfigurationBuilder sessionCacheConfiguration = holder.getNamedConfigurationBuilders().get(this.cacheName);
+
+        if (sessionCacheConfiguration == null) {
+            sessionCacheConfiguration = holder.newConfigurationBuilder(this.cacheName);
+            sessionCacheConfiguration.read(holder.getDefaultConfigurationBuilder().build());
+        }
+
+        if (this.maxEntries > 0) {
+            sessionCacheConfiguration.eviction().maxEntries(this.maxEntries).strategy(EvictionStrategy.LRU);
+        }
+
+        if (this.cacheStoreLocation != null) {
+            configureCacheStore(sessionCacheConfiguration);
+        }
+
+        if (isOptimistic()) {
+            OptimisticUpdater.configure(sessionCacheConfiguration);
+        }
+
+        if (this.storeAsBinary) {
+            sessionCacheConfiguration.storeAsBinary().enable().storeKeysAsBinary(false).storeValuesAsBinary(true);
+        }
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * <p>
+     * Nodes not owning a session of a distributed cache are not notified when it changes, L1 invalidations only reaching them
+     * while their L1 entry lives. The near cache of a distributed cache must then expire its sessions.
+     * </p>
+     * <p>
+     * Reading a session from the near cache does not reset the max idle time of its cache entry, and the expiration of the
+     * entry produces no event invalidating the near cache. When a session timeout is set the near cache entries must then
+     * expire before the cache entries they were read or written with.
+     * </p>
+     */
+    private void validateNearCache() {
+        if (this.cache.getCacheConfiguration().clustering().cacheMode().isDistributed() && this.nearCacheTimeToLive <= 0) {
+            throw new IllegalStateException("The near cache of the distributed cache [" + this.cacheName
+                    + "] requires a time to live, sessions owned by other nodes would never be refreshed.");
+        }
+
+        long maxIdle = getMaxIdle();
+
+        if (maxIdle > 0 && (this.nearCacheTimeToLive <= 0 || this.nearCacheTimeToLive >= maxIdle)) {
+            throw new IllegalStateException("The near cache of the cache [" + this.cacheName
+                    + "] requires a time to live shorter than the session timeout, expired sessions would still be loaded.");
+        }
+    }
+
+    /**
+     * <p>
+     * Checks if the settings of this store and the session cache configuration support the optimistic concurrency mode.
+     * </p>
+     */
+    private void validateConcurrencyMode() {
+        if (!isOptimistic()) {
+            return;
+        }
+
+        if (isAttributeGranularity() || isAsyncWrites()) {
+            throw new IllegalStateException(
+                    "The optimistic concurrency mode requires the session granularity and sync writes.");
+        }
+
+        OptimisticUpdater.validate(this.cache, this.maxUpdateAttempts);
+    }
+
+    /**
+     * <p>
+     * Creates the configuration of a companion cache from the session cache configuration. The optimistic concurrency and
+     * binary storage settings only apply to the session entries.
+     * </p>
      *
-     * @see org.picketbox.core.session.SessionStore#store(org.picketbox.core.session.PicketBoxSession)
+     * @return
      */
-    @Override
-    public void store(PicketBoxSession session) {
-        this.cache.put(session.getId().getId(), session);
+    private ConfigurationBuilder createCompanionConfiguration() {
+        ConfigurationBuilder builder = new ConfigurationBuilder().read(this.cache.getCacheConfiguration());
+
+        builder.locking().writeSkewCheck(false);
+        builder.versioning().disable();
+        builder.storeAsBinary().disable();
+
+        return builder;
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * <p>
+     * Adds a file cache store to the session cache. The companion caches are defined from the session cache configuration, so
+     * they use the same store. Each cache is stored in a directory named after the cache inside the store location.
+     * </p>
      *
-     * @see org.picketbox.core.session.SessionStore#remove(org.picketbox.core.session.SessionId)
+     * @param builder
      */
-    @Override
-    public void remove(SessionId<? extends Serializable> id) {
-        this.cache.remove(id.getId());
+    private void configureCacheStore(ConfigurationBuilder builder) {
+        // preloading a bounded container evicts some of the preloaded sessions, which are then lost if passivation is enabled
+        boolean preloadSafe = !this.passivation || this.maxEntries <= 0;
+
+        builder.loaders().passivation(this.passivation).preload(this.preload && preloadSafe).shared(false);
+
+        FileCacheStoreConfigurationBuilder fileStore = builder.loaders().addFileCacheStore().location(this.cacheStoreLocation)
+                .purgeOnStartup(false);
+
+        if (this.writeBehindThreads > 0) {
+            fileStore.async().enable().threadPoolSize(this.writeBehindThreads);
+        }
+    }
+
+    /**
+     * <p>
+     * Defines a companion cache named after the session cache with the given suffix, unless it is already running, and
+     * returns it.
+     * </p>
+     *
+     * @param suffix
+     * @param builder
+     * @return
+     */
+    private <K, V> Cache<K, V> startCompanionCache(String suffix, ConfigurationBuilder builder) {
+        String companionCacheName = this.cacheName + suffix;
+
+        if (!this.cacheManager.isRunning(companionCacheName)) {
+            this.cacheManager.defineConfiguration(companionCacheName, builder.build());
+        }
+
+        return this.cacheManager.getCache(companionCacheName);
+    }
+
+    /**
+     * <p>
+     * Starts the companion cache used to store the session attributes, configured by {@link SessionAttributes}. Its
+     * attributes are evicted with their sessions by a {@link SessionAttributes.EvictionListener} registered on the session
+     * cache.
+     * </p>
+     */
+    private void startAttributeCache() {
+        ConfigurationBuilder builder = createCompanionConfiguration();
+
+        SessionAttributes.configure(builder, getMaxIdle());
+
+        Cache<Serializable, Object> attributeCache = startCompanionCache(ATTRIBUTE_CACHE_SUFFIX, builder);
+
+        if (this.nearCache != null) {
+            attributeCache.addListener(this.cacheListener);
+        }
+
+        this.sessionAttributes = new SessionAttributes(attributeCache, getMarshaller());
+        this.sessionAttributes.addEvictionListener(this.cache);
+    }
+
+    /**
+     * <p>
+     * Starts the cache holding the {@link PrincipalIndex}, configured by the index.
+     * </p>
+     */
+    private void startPrincipalCache() {
+        ConfigurationBuilder builder = createCompanionConfiguration();
+
+        PrincipalIndex.configure(builder);
+
+        Cache<Object, Object> principalCache = startCompanionCache(PRINCIPAL_CACHE_SUFFIX, builder);
+
+        this.principalIndex = new PrincipalIndex(principalCache, this.principalResolver);
+    }
+
+    /**
+     * <p>
+     * Sets the compression and the lazy attributes of the sessions on the externalizer registered in the cache manager. They
+     * must be set before the session cache is started, since the state transferred on startup may already hold compressed
+     * sessions. Stores sharing a cache manager share its externalizer, so a store whose settings differ from those of the
+     * stores started before is rejected.
+     * </p>
+     */
+    private void configureSessionExternalizer() {
+        AdvancedExternalizer<?> externalizer = this.cacheManager.getCacheManagerConfiguration().serialization()
+                .advancedExternalizers().get(ExternalizerIds.PICKETBOX_SESSION);
+
+        if (!(externalizer instanceof PicketBoxSessionExternalizer)) {
+            throw new IllegalStateException(
+                    "Sessions can not be compressed or stored as binary, the PicketBoxSessionExternalizer is not registered.");
+        }
+
+        this.sessionExternalizer = (PicketBoxSessionExternalizer) externalizer;
+
+        SessionCompression compression = null;
+
+        if (this.compressionThreshold > 0) {
+            compression = new SessionCompression(this.sessionCodec, this.compressionThreshold, this.metrics);
+        }
+
+        this.sessionExternalizer.configure(compression, this.storeAsBinary);
+    }
+
+    /**
+     * <p>
+     * Starts the cache holding the session access times, configured by {@link AccessTimes}, and the task flushing them at
+     * each touch interval. If a session timeout is set, the expired sessions owned by this node are removed at each interval.
+     * </p>
+     */
+    private void startAccessTimes() {
+        ConfigurationBuilder builder = createCompanionConfiguration();
+
+        AccessTimes.configure(builder);
+
+        Cache<Serializable, Long> accessCache = startCompanionCache(ACCESS_CACHE_SUFFIX, builder);
+
+        this.accessTimes = new AccessTimes(accessCache, this.writeMode);
+
+        this.accessTimes.start(this.touchInterval, getAccessMaxIdle(), new AccessTimes.ExpirationListener() {
+            @Override
+            public void expired(Serializable key) {
+                removeEntries(key);
+            }
+
+            @Override
+            public void accessed(Serializable key) {
+                touchEntries(key);
+            }
+        });
+    }
+
+    /**
+     * <p>
+     * Returns the time in milliseconds after which a session not accessed is removed by the {@link AccessTimes}, covering the
+     * accesses not flushed yet, or zero if no session timeout was set.
+     * </p>
+     *
+     * @return
+     */
+    private long getAccessMaxIdle() {
+        return this.sessionTimeout > 0 ? TimeUnit.MINUTES.toMillis(this.sessionTimeout) + this.touchInterval : 0;
+    }
+
+    /**
+     * <p>
+     * Resets the idle time of the copies of a session held by this node when its access time is written, so only sessions
+     * whose accesses were never flushed reach the max idle time of their entries.
+     * </p>
+     *
+     * @param key
+     */
+    private void touchEntries(Serializable key) {
+        AccessTimes.touchEntry(this.cache, key);
+
+        if (isAttributeGranularity()) {
+            AccessTimes.touchEntry(this.sessionAttributes.getCache(), key);
+        }
+    }
+
+    /**
+     * <p>
+     * Records an access to the given session, keeping it alive without writing it. The access is written to the cluster at the
+     * next touch interval. Sessions are also touched when loaded, stored or updated.
+     * </p>
+     *
+     * @param id
+     * @throws IllegalStateException if no touch interval is set.
+     */
+    public void touch(SessionId<? extends Serializable> id) {
+        if (this.accessTimes == null) {
+            throw new IllegalStateException("Session accesses are not tracked, no touch interval was set.");
+        }
+
+        this.accessTimes.touch(id.getId());
+    }
+
+    private void recordAccess(Serializable key) {
+        if (this.accessTimes != null) {
+            this.accessTimes.touch(key);
+        }
     }
 
     /*
      * (non-Javadoc)
      *
-     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession)
+     * @see org.picketbox.core.session.SessionStore#load(org.picketbox.core.session.SessionId)
      */
     @Override
-    public void update(PicketBoxSession session) {
-        this.cache.put(session.getId().getId(), session);
+    public PicketBoxSession load(SessionId<? extends Serializable> key) {
+        long start = System.nanoTime();
+
+        PicketBoxSession session = doLoad(key);
+
+        if (session != null) {
+            recordAccess(key.getId());
+        }
+
+        if (this.metrics != null) {
+            this.metrics.recordLoad(System.nanoTime() - start, session != null);
+        }
+
+        return session;
     }
 
-    @Override
-    protected void doStart() {
-        startCache(this.configurationFile);
+    private PicketBoxSession doLoad(SessionId<? extends Serializable> key) {
+        PicketBoxSession session = null;
+
+        if (this.nearCache != null) {
+            session = this.nearCache.get(key.getId());
+
+            if (session != null) {
+                return session;
+            }
+        }
+
+        long stamp = this.nearCache != null ? this.nearCache.beginLoad(key.getId()) : 0;
+
+        session = this.cache.get(key.getId());
+
+        if (session != null && isAttributeGranularity()) {
+            session = this.sessionAttributes.load(session);
+        }
+
+        if (session != null && this.fingerprints != null) {
+            this.fingerprints.recordLoaded(session);
+        }
+
+        if (session != null && this.attributeSnapshots != null) {
+            this.attributeSnapshots.record(session);
+        }
+
+        if (session != null && this.nearCache != null) {
+            this.nearCache.putLoaded(key.getId(), session, stamp);
+        }
+
+        return session;
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#store(org.picketbox.core.session.PicketBoxSession)
+     */
     @Override
-    protected void doStop() {
-        this.cacheManager.stop();
+    public void store(PicketBoxSession session) {
+        long start = System.nanoTime();
+        long version = SessionFingerprints.getVersion(session);
+
+        this.entries.put(createEntry(session));
+
+        if (isAttributeGranularity()) {
+            this.sessionAttributes.store(session);
+        }
+
+        if (this.fingerprints != null) {
+            this.fingerprints.recordWritten(session, version);
+        }
+
+        if (this.attributeSnapshots != null) {
+            this.attributeSnapshots.record(session);
+        }
+
+        if (this.principalIndex != null) {
+            this.principalIndex.index(session);
+        }
+
+        recordAccess(session.getId().getId());
+
+        if (this.nearCache != null) {
+            this.nearCache.put(session.getId().getId(), session);
+        }
+
+        if (this.metrics != null) {
+            this.metrics.recordStore(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the session entry to write for the given session: a session without attributes when they are kept in the
+     * attribute cache, a {@link TrackedPicketBoxSession} with the optimistic concurrency mode, or the session itself.
+     * </p>
+     *
+     * @param session
+     * @return
+     */
+    private PicketBoxSession createEntry(PicketBoxSession session) {
+        if (isAttributeGranularity()) {
+            return SessionAttributes.createEntry(session);
+        }
+
+        if (isOptimistic()) {
+            return OptimisticUpdater.track(session);
+        }
+
+        return session;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.picketbox.core.session.SessionStore#remove(org.picketbox.core.session.SessionId)
+     */
+    @Override
+    public void remove(SessionId<? extends Serializable> id) {
+        long start = System.nanoTime();
+
+        removeEntries(id.getId());
+
+        if (this.metrics != null) {
+            this.metrics.recordRemove(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * <p>
+     * Removes the session with the given key and all the entries kept for it in the companion caches.
+     * </p>
+     *
+     * @param key
+     */
+    private void removeEntries(Serializable key) {
+        if (this.nearCache != null) {
+            this.nearCache.invalidate(key);
+        }
+
+        this.entries.remove(key);
+
+        if (this.fingerprints != null) {
+            this.fingerprints.remove(key);
+        }
+
+        if (this.attributeSnapshots != null) {
+            this.attributeSnapshots.remove(key);
+        }
+
+        if (isAttributeGranularity()) {
+            this.sessionAttributes.remove(key);
+        }
+
+        if (this.principalIndex != null) {
+            this.principalIndex.remove(key);
+        }
+
+        if (this.accessTimes != null) {
+            this.accessTimes.remove(key);
+        }
+    }
+
+    /**
+     * <p>
+     * Writes the given session. With the {@link ConcurrencyMode#OPTIMISTIC} concurrency mode a session that is no longer
+     * stored, because it was removed, expired or evicted, is not written again: the update is dropped, logged at debug level,
+     * and the session is not kept by the {@link NearCache}. Callers needing to know can check with
+     * {@link #load(SessionId)} afterwards. The other modes write the session again.
+     * </p>
+     *
+     * @see org.picketbox.core.session.SessionStore#update(org.picketbox.core.session.PicketBoxSession)
+     */
+    @Override
+    public void update(PicketBoxSession session) {
+        long start = System.nanoTime();
+        long version = SessionFingerprints.getVersion(session);
+        // always true when dirty tracking is disabled
+        boolean changed = this.fingerprints == null || this.fingerprints.recordIfChanged(session);
+
+        if (changed) {
+            boolean written;
+
+            try {
+                written = writeUpdate(session);
+            } catch (RuntimeException e) {
+                if (this.fingerprints != null) {
+                    this.fingerprints.remove(session.getId().getId());
+                }
+
+                throw e;
+            }
+
+            if (!written) {
+                if (this.fingerprints != null) {
+                    this.fingerprints.remove(session.getId().getId());
+                }
+
+                PicketBoxInfinispanLogger.LOGGER.sessionNotUpdated(session.getId().getId(), this.cacheName);
+
+                if (this.metrics != null) {
+                    this.metrics.recordUpdate(System.nanoTime() - start, false);
+                }
+
+                return;
+            }
+
+            // the fingerprint of other sessions was recorded before the write
+            if (session instanceof TrackedPicketBoxSession) {
+                if (this.fingerprints != null) {
+                    this.fingerprints.recordWritten(session, version);
+                } else {
+                    ((TrackedPicketBoxSession) session).markWritten(version);
+                }
+            }
+        }
+
+        recordAccess(session.getId().getId());
+
+        if (this.nearCache != null) {
+            this.nearCache.put(session.getId().getId(), session);
+        }
+
+        if (this.metrics != null) {
+            this.metrics.recordUpdate(System.nanoTime() - start, !changed);
+        }
+    }
+
+
+    /**
+     * <p>
+     * Writes the given session and indexes it by principal.
+     * </p>
+     *
+     * @param session
+     * @return false if the session was not written, because it is no longer stored and is updated optimistically.
+     */
+    private boolean writeUpdate(PicketBoxSession session) {
+        if (isAttributeGranularity()) {
+            this.sessionAttributes.store(session);
+
+            if (!session.isValid()) {
+                // the validity is kept by the session entry, an invalid session never becomes valid again
+                this.entries.put(createEntry(session));
+            }
+        } else if (isOptimistic()) {
+            if (!this.optimisticUpdater.update(session)) {
+                return false;
+            }
+        } else {
+            this.entries.put(session);
+        }
+
+        if (this.principalIndex != null) {
+            this.principalIndex.index(session);
+        }
+
+        return true;
+    }
+
+    /**
+     * <p>
+     * Stores the given sessions using a single write to the session cache and, when the
+     * {@link ReplicationGranularity#ATTRIBUTE} granularity is used, a single batch in the attribute cache. The sessions are
+     * indexed by principal in a single batch as well.
+     * </p>
+     *
+     * @param sessions
+     */
+    public void storeAll(Collection<PicketBoxSession> sessions) {
+        Map<Serializable, PicketBoxSession> writes = new HashMap<Serializable, PicketBoxSession>();
+        List<Long> versions = new ArrayList<Long>(sessions.size());
+
+        for (PicketBoxSession session : sessions) {
+            versions.add(SessionFingerprints.getVersion(session));
+            writes.put(session.getId().getId(), createEntry(session));
+        }
+
+        this.entries.putAll(writes);
+
+        if (isAttributeGranularity()) {
+            this.sessionAttributes.storeAll(sessions);
+        }
+
+        if (this.principalIndex != null) {
+            this.principalIndex.indexAll(sessions);
+        }
+
+        Iterator<Long> version = versions.iterator();
+
+        for (PicketBoxSession session : sessions) {
+            if (this.fingerprints != null) {
+                this.fingerprints.recordWritten(session, version.next());
+            }
+
+            if (this.attributeSnapshots != null) {
+                this.attributeSnapshots.record(session);
+            }
+
+            recordAccess(session.getId().getId());
+
+            if (this.nearCache != null) {
+                this.nearCache.put(session.getId().getId(), session);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Loads the sessions with the given ids. Sessions missing from the {@link NearCache} are read concurrently.
+     * </p>
+     *
+     * @param ids
+     * @return the sessions found, in no particular order.
+     */
+    public List<PicketBoxSession> loadAll(Collection<SessionId<? extends Serializable>> ids) {
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+        Map<Serializable, Long> missing = new HashMap<Serializable, Long>();
+
+        for (SessionId<? extends Serializable> id : ids) {
+            PicketBoxSession session = this.nearCache != null ? this.nearCache.get(id.getId()) : null;
+
+            if (session != null) {
+                recordAccess(id.getId());
+                sessions.add(session);
+            } else {
+                missing.put(id.getId(), this.nearCache != null ? this.nearCache.beginLoad(id.getId()) : 0L);
+            }
+        }
+
+        for (Entry<Serializable, PicketBoxSession> entry : this.entries.getAll(missing.keySet()).entrySet()) {
+            PicketBoxSession session = entry.getValue();
+
+            if (isAttributeGranularity()) {
+                session = this.sessionAttributes.load(session);
+            }
+
+            if (this.fingerprints != null) {
+                this.fingerprints.recordLoaded(session);
+            }
+
+            if (this.attributeSnapshots != null) {
+                this.attributeSnapshots.record(session);
+            }
+
+            recordAccess(entry.getKey());
+
+            if (this.nearCache != null) {
+                this.nearCache.putLoaded(entry.getKey(), session, missing.get(entry.getKey()));
+            }
+
+            sessions.add(session);
+        }
+
+        return sessions;
+    }
+
+    /**
+     * <p>
+     * Removes the sessions with the given ids. The removals are issued concurrently and, when the {@link WriteMode#SYNC} write
+     * mode is used, awaited before returning. The sessions are unindexed by principal in a single batch.
+     * </p>
+     *
+     * @param ids
+     */
+    public void removeAll(Collection<SessionId<? extends Serializable>> ids) {
+        List<Serializable> keys = new ArrayList<Serializable>();
+
+        for (SessionId<? extends Serializable> id : ids) {
+            if (this.nearCache != null) {
+                this.nearCache.invalidate(id.getId());
+            }
+
+            if (this.fingerprints != null) {
+                this.fingerprints.remove(id.getId());
+            }
+
+            if (this.attributeSnapshots != null) {
+                this.attributeSnapshots.remove(id.getId());
+            }
+
+            keys.add(id.getId());
+        }
+
+        this.entries.removeAll(keys);
+
+        if (isAttributeGranularity()) {
+            this.sessionAttributes.removeAll(keys);
+        }
+
+        if (this.principalIndex != null) {
+            this.principalIndex.removeAll(keys);
+        }
+
+        if (this.accessTimes != null) {
+            this.accessTimes.removeAll(keys);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the ids of the sessions owned by the given principal. Sessions that are no longer in the cache, for example
+     * because they expired, are removed from the index.
+     * </p>
+     *
+     * @param principal
+     * @return
+     * @throws IllegalStateException if no {@link PrincipalResolver} is set.
+     */
+    public List<SessionId<? extends Serializable>> findByPrincipal(String principal) {
+        List<SessionId<? extends Serializable>> ids = new ArrayList<SessionId<? extends Serializable>>();
+
+        for (SessionId<? extends Serializable> id : getPrincipalIndex().find(principal)) {
+            if (this.cache.containsKey(id.getId())) {
+                ids.add(id);
+            } else {
+                this.principalIndex.remove(id.getId());
+            }
+        }
+
+        return ids;
+    }
+
+    /**
+     * <p>
+     * Removes all sessions owned by the given principal, using {@link #removeAll(Collection)}.
+     * </p>
+     *
+     * @param principal
+     * @return the number of sessions indexed for the principal, all of them being removed. Sessions that had already expired
+     *         or been removed by another node are counted as well, since the removals do not read the previous values.
+     * @throws IllegalStateException if no {@link PrincipalResolver} is set.
+     */
+    public int removeAllForPrincipal(String principal) {
+        List<SessionId<? extends Serializable>> ids = getPrincipalIndex().find(principal);
+
+        if (!ids.isEmpty()) {
+            removeAll(ids);
+        }
+
+        return ids.size();
+    }
+
+    /**
+     * <p>
+     * Returns the generator of session identifiers owned by this node. Sessions created with its identifiers are stored on
+     * this node when the cache is distributed, so with sticky sessions most loads and updates do not need remote calls.
+     * </p>
+     *
+     * @return
+     * @throws IllegalStateException if no session id buffer size is set.
+     */
+    public LocalSessionIdGenerator getSessionIdGenerator() {
+        if (this.sessionIdGenerator == null) {
+            throw new IllegalStateException("Local session ids are not generated, no session id buffer size was set.");
+        }
+
+        return this.sessionIdGenerator;
+    }
+
+    private PrincipalIndex getPrincipalIndex() {
+        if (this.principalIndex == null) {
+            throw new IllegalStateException("Sessions are not indexed by principal, no PrincipalResolver was set.");
+        }
+
+        return this.principalIndex;
+    }
+
+    /**
+     * <p>
+     * Returns the max idle time in milliseconds for the session entries, or -1 if no session timeout was set. When the session
+     * accesses are tracked using a touch interval, sessions are removed by the {@link AccessTimes} and the max idle time is
+     * only a safety bound for the sessions whose accesses were never flushed, for example because the node recording them
+     * left the cluster.
+     * </p>
+     *
+     * @return
+     */
+    private long getMaxIdle() {
+        if (this.sessionTimeout <= 0) {
+            return -1;
+        }
+
+        if (this.touchInterval > 0) {
+            return ACCESS_TIMES_SAFETY_FACTOR * getAccessMaxIdle();
+        }
+
+        return TimeUnit.MINUTES.toMillis(this.sessionTimeout);
+    }
+
+    private StreamingMarshaller getMarshaller() {
+        return this.cache.getAdvancedCache().getComponentRegistry()
+                .getComponent(StreamingMarshaller.class, KnownComponentNames.CACHE_MARSHALLER);
+    }
+
+    /**
+     * <p>
+     * Waits for the asynchronous writes pending at the time of the call. Useful to make sure a session removal was applied to
+     * the cluster, for example during a logout.
+     * </p>
+     *
+     * @param timeout
+     * @param unit
+     * @return true if all pending writes completed before the timeout.
+     * @throws IllegalStateException if asynchronous writes failed since the previous call. Failed writes are also logged.
+     */
+    public boolean awaitPendingWrites(long timeout, TimeUnit unit) {
+        return this.entries.await(timeout, unit);
+    }
+
+    private boolean isAttributeGranularity() {
+        return ReplicationGranularity.ATTRIBUTE.equals(this.replicationGranularity);
+    }
+
+    /**
+     * <p>
+     * Sets the {@link ReplicationGranularity} used to write sessions to the cache. Must be set before the store is started.
+     * </p>
+     *
+     * @param replicationGranularity
+     */
+    public void setReplicationGranularity(ReplicationGranularity replicationGranularity) {
+        this.replicationGranularity = replicationGranularity;
+    }
+
+    public ReplicationGranularity getReplicationGranularity() {
+        return this.replicationGranularity;
+    }
+
+    private boolean isOptimistic() {
+        return ConcurrencyMode.OPTIMISTIC.equals(this.concurrencyMode);
+    }
+
+    private boolean isAsyncWrites() {
+        return WriteMode.ASYNC.equals(this.writeMode);
+    }
+
+    /**
+     * <p>
+     * Sets the {@link WriteMode} used to write the session entries. Must be set before the store is started.
+     * </p>
+     *
+     * @param writeMode
+     */
+    public void setWriteMode(WriteMode writeMode) {
+        this.writeMode = writeMode;
+    }
+
+    public WriteMode getWriteMode() {
+        return this.writeMode;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of asynchronous writes that can be pending at the same time. When the limit is reached the
+     * calling thread blocks until a pending write completes. Defaults to 1024. Zero means no limit, in which case a cluster
+     * slower than the callers lets the pending writes grow without bound.
+     * </p>
+     *
+     * @param maxPendingWrites
+     */
+    public void setMaxPendingWrites(int maxPendingWrites) {
+        this.maxPendingWrites = maxPendingWrites;
+    }
+
+    public int getMaxPendingWrites() {
+        return this.maxPendingWrites;
+    }
+
+    /**
+     * <p>
+     * Sets the number of threads issuing the asynchronous writes, which bounds the number of writes waiting for the cluster
+     * at the same time. The writes to a session are always issued by the same thread, in order. Defaults to twice the number
+     * of processors. Must be set before the store is started.
+     * </p>
+     *
+     * @param asyncWriteThreads
+     */
+    public void setAsyncWriteThreads(int asyncWriteThreads) {
+        this.asyncWriteThreads = asyncWriteThreads;
+    }
+
+    public int getAsyncWriteThreads() {
+        return this.asyncWriteThreads;
+    }
+
+    /**
+     * <p>
+     * Sets the session timeout in minutes, usually the same value used to configure the PicketBox session manager. Session
+     * entries not accessed during this time are expired by the cache. Zero, the default, means no expiration. Must be set
+     * before the store is started.
+     * </p>
+     * <p>
+     * The expiration of a session fires no cache event, so the expired {@link PicketBoxSession} instances are not invalidated
+     * and the {@link NearCache} only drops them when its own entries expire.
+     * </p>
+     *
+     * @param sessionTimeout
+     */
+    public void setSessionTimeout(int sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    public int getSessionTimeout() {
+        return this.sessionTimeout;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of sessions held in memory by each node. When the limit is reached the least recently used
+     * sessions are evicted. Zero, the default, means no limit. Must be set before the store is started.
+     * </p>
+     *
+     * @param maxEntries
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public int getMaxEntries() {
+        return this.maxEntries;
+    }
+
+    /**
+     * <p>
+     * Sets the directory of the file cache store used to persist the sessions of this node. No store is used by default. Must
+     * be set before the store is started.
+     * </p>
+     *
+     * @param cacheStoreLocation
+     */
+    public void setCacheStoreLocation(String cacheStoreLocation) {
+        this.cacheStoreLocation = cacheStoreLocation;
+    }
+
+    public String getCacheStoreLocation() {
+        return this.cacheStoreLocation;
+    }
+
+    /**
+     * <p>
+     * Enables passivation. Sessions are then written to the cache store only when evicted from memory or when the cache stops,
+     * instead of on every write. Only useful if a maximum number of entries is set.
+     * </p>
+     *
+     * @param passivation
+     */
+    public void setPassivation(boolean passivation) {
+        this.passivation = passivation;
+    }
+
+    public boolean isPassivation() {
+        return this.passivation;
+    }
+
+    /**
+     * <p>
+     * Sets if the sessions in the cache store are loaded in memory when the cache starts. Enabled by default. Ignored when
+     * passivation is used together with a maximum number of entries, in which case sessions are loaded from the cache store
+     * when first accessed.
+     * </p>
+     *
+     * @param preload
+     */
+    public void setPreload(boolean preload) {
+        this.preload = preload;
+    }
+
+    public boolean isPreload() {
+        return this.preload;
+    }
+
+    /**
+     * <p>
+     * Sets the number of threads writing the modifications to the cache store in the background. Zero means the modifications
+     * are written by the thread changing the cache. Defaults to one.
+     * </p>
+     *
+     * @param writeBehindThreads
+     */
+    public void setWriteBehindThreads(int writeBehindThreads) {
+        this.writeBehindThreads = writeBehindThreads;
+    }
+
+    public int getWriteBehindThreads() {
+        return this.writeBehindThreads;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of sessions tracked for changes by this node. Zero, the default, disables dirty tracking. Must be
+     * set before the store is started.
+     * </p>
+     *
+     * @param dirtyTrackingMaxEntries
+     */
+    public void setDirtyTrackingMaxEntries(int dirtyTrackingMaxEntries) {
+        this.dirtyTrackingMaxEntries = dirtyTrackingMaxEntries;
+    }
+
+    public int getDirtyTrackingMaxEntries() {
+        return this.dirtyTrackingMaxEntries;
+    }
+
+    /**
+     * <p>
+     * Sets the interval in milliseconds at which the session accesses recorded by this node are written to the cluster and the
+     * expired sessions are removed. Should be a small fraction of the session timeout, since sessions may live up to the
+     * timeout plus this interval. Zero, the default, disables the access tracking. Must be set before the store is started.
+     * </p>
+     *
+     * @param touchInterval
+     */
+    public void setTouchInterval(long touchInterval) {
+        this.touchInterval = touchInterval;
+    }
+
+    public long getTouchInterval() {
+        return this.touchInterval;
+    }
+
+    /**
+     * <p>
+     * Sets the {@link ConcurrencyMode} used to update sessions. Must be set before the store is started.
+     * </p>
+     *
+     * @param concurrencyMode
+     */
+    public void setConcurrencyMode(ConcurrencyMode concurrencyMode) {
+        this.concurrencyMode = concurrencyMode;
+    }
+
+    public ConcurrencyMode getConcurrencyMode() {
+        return this.concurrencyMode;
+    }
+
+    /**
+     * <p>
+     * Sets how many times an update conflicting with concurrent updates is attempted when the
+     * {@link ConcurrencyMode#OPTIMISTIC} concurrency mode is used, before the update fails. Defaults to 10.
+     * </p>
+     *
+     * @param maxUpdateAttempts
+     */
+    public void setMaxUpdateAttempts(int maxUpdateAttempts) {
+        this.maxUpdateAttempts = maxUpdateAttempts;
+    }
+
+    public int getMaxUpdateAttempts() {
+        return this.maxUpdateAttempts;
+    }
+
+    /**
+     * <p>
+     * Sets how many session identifiers owned by this node are generated in advance by the {@link LocalSessionIdGenerator}.
+     * Zero, the default, disables the generator. Must be set before the store is started.
+     * </p>
+     *
+     * @param sessionIdBufferSize
+     */
+    public void setSessionIdBufferSize(int sessionIdBufferSize) {
+        this.sessionIdBufferSize = sessionIdBufferSize;
+    }
+
+    public int getSessionIdBufferSize() {
+        return this.sessionIdBufferSize;
+    }
+
+    /**
+     * <p>
+     * Sets the minimum serialized size in bytes of the sessions compressed when written to the cluster and the cache store.
+     * Zero, the default, disables the compression. Nodes read compressed sessions whatever their own setting, other codecs
+     * than the {@link DeflateSessionCodec} having to be registered with {@link PicketBoxSessionExternalizer#addCodec} on the
+     * nodes that do not use them. Must be set before the store is started.
+     * </p>
+     *
+     * @param compressionThreshold
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getCompressionThreshold() {
+        return this.compressionThreshold;
+    }
+
+    /**
+     * <p>
+     * Sets the {@link SessionCodec} used to compress the sessions. Defaults to a {@link DeflateSessionCodec}.
+     * </p>
+     *
+     * @param sessionCodec
+     */
+    public void setSessionCodec(SessionCodec sessionCodec) {
+        this.sessionCodec = sessionCodec;
+    }
+
+    public SessionCodec getSessionCodec() {
+        return this.sessionCodec;
+    }
+
+    /**
+     * <p>
+     * Keeps the sessions serialized in the session cache. Sessions replicated to this node are only deserialized when they are
+     * loaded, and each attribute of a loaded session is only deserialized when it is read. The session cache configuration is
+     * changed accordingly, unless an existing cache manager was provided. Must be set before the store is started.
+     * </p>
+     *
+     * @param storeAsBinary
+     */
+    public void setStoreAsBinary(boolean storeAsBinary) {
+        this.storeAsBinary = storeAsBinary;
+    }
+
+    public boolean isStoreAsBinary() {
+        return this.storeAsBinary;
+    }
+
+    /**
+     * <p>
+     * Sets the name of the cache manager shared with the other stores given the same name. The cache manager is created from
+     * the configuration of the first store started, the other stores sharing it must use the same configuration or different
+     * cache names. Ignored if an existing cache manager was provided. Must be set before the store is started.
+     * </p>
+     *
+     * @param cacheManagerName the name of the shared cache manager, or null if the store uses its own cache manager.
+     */
+    public void setCacheManagerName(String cacheManagerName) {
+        this.cacheManagerName = cacheManagerName;
+    }
+
+    public String getCacheManagerName() {
+        return this.cacheManagerName;
+    }
+
+    /**
+     * <p>
+     * Enables the {@link DefaultSessionStoreMetrics} and its registration in the platform MBean server. Ignored if a
+     * {@link SessionStoreMetrics} was provided. Must be set before the store is started.
+     * </p>
+     *
+     * @param statisticsEnabled
+     */
+    public void setStatisticsEnabled(boolean statisticsEnabled) {
+        this.statisticsEnabled = statisticsEnabled;
+    }
+
+    public boolean isStatisticsEnabled() {
+        return this.statisticsEnabled;
+    }
+
+    /**
+     * <p>
+     * Sets the name distinguishing the statistics of this store from the statistics of other stores of a cache with the same
+     * name in this JVM. The {@link DefaultSessionStoreMetrics} are registered under the cache name followed by this name, or
+     * the cache name alone by default. Starting a store whose statistics name is already registered fails. Must be set before
+     * the store is started.
+     * </p>
+     *
+     * @param statisticsName
+     */
+    public void setStatisticsName(String statisticsName) {
+        this.statisticsName = statisticsName;
+    }
+
+    public String getStatisticsName() {
+        return this.statisticsName;
+    }
+
+    /**
+     * <p>
+     * Sets the {@link SessionStoreMetrics} receiving the measurements of this store. Must be set before the store is started.
+     * </p>
+     *
+     * @param metrics
+     */
+    public void setMetrics(SessionStoreMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public SessionStoreMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of sessions kept in the {@link NearCache}. Zero, the default, disables the near cache.
+     * </p>
+     *
+     * @param nearCacheMaxEntries
+     */
+    public void setNearCacheMaxEntries(int nearCacheMaxEntries) {
+        this.nearCacheMaxEntries = nearCacheMaxEntries;
+    }
+
+    public int getNearCacheMaxEntries() {
+        return this.nearCacheMaxEntries;
+    }
+
+    /**
+     * <p>
+     * Sets the time in milliseconds a session is kept in the {@link NearCache}. Zero, the default, means no expiration and is
+     * rejected for distributed caches, nodes not owning a session not being notified of its changes. When a session timeout is
+     * set the time to live is required and must be shorter than the timeout, since the expiration of a session produces no
+     * event and reading it from the near cache does not reset its max idle time. A session may then expire up to this time
+     * earlier than the timeout after its last access.
+     * </p>
+     *
+     * @param nearCacheTimeToLive
+     */
+    public void setNearCacheTimeToLive(long nearCacheTimeToLive) {
+        this.nearCacheTimeToLive = nearCacheTimeToLive;
+    }
+
+    public long getNearCacheTimeToLive() {
+        return this.nearCacheTimeToLive;
+    }
+
+    /**
+     * <p>
+     * Sets the {@link Eviction} strategy used by the {@link NearCache}. {@link Eviction#LRU} is used by default,
+     * {@link Eviction#LIRS} also takes the access frequency into account.
+     * </p>
+     *
+     * @param nearCacheEviction
+     */
+    public void setNearCacheEviction(Eviction nearCacheEviction) {
+        this.nearCacheEviction = nearCacheEviction;
+    }
+
+    public Eviction getNearCacheEviction() {
+        return this.nearCacheEviction;
+    }
+
+    /**
+     * <p>
+     * Enables the asynchronous mode of the {@link CacheListener}. Sessions removed or invalidated by other nodes are then
+     * invalidated by a {@link SessionInvalidator} instead of the thread delivering the cache event.
+     * </p>
+     *
+     * @param asyncListener
+     */
+    public void setAsyncListener(boolean asyncListener) {
+        this.asyncListener = asyncListener;
+    }
+
+    public boolean isAsyncListener() {
+        return this.asyncListener;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of invalidations waiting for the {@link SessionInvalidator} when the asynchronous listener is
+     * enabled. Once reached, sessions are invalidated on the thread delivering the cache event.
+     * </p>
+     *
+     * @param maxPendingInvalidations
+     */
+    public void setMaxPendingInvalidations(int maxPendingInvalidations) {
+        this.maxPendingInvalidations = maxPendingInvalidations;
+    }
+
+    public int getMaxPendingInvalidations() {
+        return this.maxPendingInvalidations;
+    }
+
+    /**
+     * <p>
+     * Sets the {@link PrincipalResolver} used to index the sessions by principal. No index is kept by default. Must be set
+     * before the store is started.
+     * </p>
+     *
+     * @param principalResolver
+     */
+    public void setPrincipalResolver(PrincipalResolver principalResolver) {
+        this.principalResolver = principalResolver;
+    }
+
+    public PrincipalResolver getPrincipalResolver() {
+        return this.principalResolver;
+    }
+
+    @Override
+    protected void doStart() {
+        startCache();
+    }
+
+    @Override
+    protected void doStop() {
+        try {
+            if (this.sessionIdGenerator != null) {
+                this.sessionIdGenerator.stop();
+            }
+
+            if (this.accessTimes != null) {
+                this.accessTimes.stop();
+            }
+
+            if (!this.entries.await(STOP_TIMEOUT, TimeUnit.SECONDS)) {
+                PicketBoxInfinispanLogger.LOGGER.pendingWritesDiscarded(this.entries.getPendingWriteCount(), this.cacheName);
+            }
+        } finally {
+            releaseCacheManager();
+        }
+    }
+
+    private void releaseCacheManager() {
+        if (this.entries != null) {
+            this.entries.stop();
+        }
+
+        if ((this.providedCacheManager || this.cacheManagerName != null) && this.cacheListener != null) {
+            this.cache.removeListener(this.cacheListener);
+
+            if (this.sessionAttributes != null) {
+                this.sessionAttributes.getCache().removeListener(this.cacheListener);
+                this.sessionAttributes.removeEvictionListener();
+            }
+        }
+
+        if (this.sessionInvalidator != null) {
+            this.sessionInvalidator.shutdown(STOP_TIMEOUT, TimeUnit.SECONDS);
+        }
+
+        if (this.metrics instanceof DefaultSessionStoreMetrics) {
+            ((DefaultSessionStoreMetrics) this.metrics).unregister();
+        }
+
+        if (this.cacheManagerName != null && !this.providedCacheManager) {
+            CacheManagerRegistry.release(this.cacheManagerName);
+        } else if (!this.providedCacheManager) {
+            this.cacheManager.stop();
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,568 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.infinispan.session.store;
+
+import java.util.Map.Entry;
+import java.util.Properties;
+
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.configuration.parsing.ConfigurationBuilderHolder;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+import org.infinispan.util.concurrent.BoundedConcurrentHashMap.Eviction;
+import org.picketbox.infinispan.marshall.DeflateSessionCodec;
+import org.picketbox.infinispan.marshall.SessionCodec;
+
+/**
+ * <p>
+ * Fluent builder for {@link InfinispanSessionStore} instances configured programmatically, without an Infinispan configuration
+ * file. The created store can be used with the PicketBox configuration:
+ * </p>
+ *
+ * <pre>
+ * builder.sessionManager().store(new InfinispanSessionStoreBuilder().distributed().numOwners(2).build());
+ * </pre>
+ * <p>
+ * By default a synchronous distributed cache with two owners and without L1 caching is configured. Unlike replication, each
+ * session is only held by its owners, so the memory and network cost of a write does not grow with the number of nodes.
+ * </p>
+ */
+public class InfinispanSessionStoreBuilder {
+
+    private static final String DEFAULT_CACHE_NAME = "picketbox-session-cache";
+    private static final String DEFAULT_CLUSTER_NAME = "picketbox-session-cluster";
+    private static final String JGROUPS_CONFIGURATION_FILE = "configurationFile";
+
+    private String cacheName = DEFAULT_CACHE_NAME;
+    private CacheMode cacheMode = CacheMode.DIST_SYNC;
+    private boolean sync = true;
+    private int numOwners = 2;
+    private long l1Lifespan;
+    private String clusterName = DEFAULT_CLUSTER_NAME;
+    private String nodeName;
+    private Properties transportProperties = new Properties();
+    private String cacheManagerName;
+    private boolean statisticsEnabled;
+    private String statisticsName;
+
+    private ReplicationGranularity replicationGranularity = ReplicationGranularity.SESSION;
+    private WriteMode writeMode = WriteMode.SYNC;
+    private int maxPendingWrites = PendingWrites.DEFAULT_MAX_PENDING_WRITES;
+    private int asyncWriteThreads = PendingWrites.DEFAULT_WRITE_THREADS;
+    private int sessionTimeout;
+    private int maxEntries;
+    private int nearCacheMaxEntries;
+    private long nearCacheTimeToLive;
+    private Eviction nearCacheEviction = Eviction.LRU;
+    private boolean asyncListener;
+    private int maxPendingInvalidations = 1024;
+    private PrincipalResolver principalResolver;
+    private String cacheStoreLocation;
+    private boolean passivation;
+    private boolean preload = true;
+    private int writeBehindThreads = 1;
+    private int dirtyTrackingMaxEntries;
+    private long touchInterval;
+    private ConcurrencyMode concurrencyMode = ConcurrencyMode.LAST_WRITE_WINS;
+    private int maxUpdateAttempts = 10;
+    private int sessionIdBufferSize;
+    private int compressionThreshold;
+    private SessionCodec sessionCodec = new DeflateSessionCodec();
+    private boolean storeAsBinary;
+
+    public InfinispanSessionStoreBuilder cacheName(String cacheName) {
+        this.cacheName = cacheName;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Configures a local, not clustered, cache.
+     * </p>
+     *
+     * @return
+     */
+    public InfinispanSessionStoreBuilder local() {
+        this.cacheMode = CacheMode.LOCAL;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Configures a replicated cache. Every node holds every session.
+     * </p>
+     *
+     * @return
+     */
+    public InfinispanSessionStoreBuilder replicated() {
+        this.cacheMode = CacheMode.REPL_SYNC;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Configures a distributed cache. Each session is held by the number of owners defined by {@link #numOwners(int)}.
+     * </p>
+     *
+     * @return
+     */
+    public InfinispanSessionStoreBuilder distributed() {
+        this.cacheMode = CacheMode.DIST_SYNC;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Configures an invalidation cache. Writes only invalidate the entries held by other nodes.
+     * </p>
+     *
+     * @return
+     */
+    public InfinispanSessionStoreBuilder invalidation() {
+        this.cacheMode = CacheMode.INVALIDATION_SYNC;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder sync() {
+        this.sync = true;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder async() {
+        this.sync = false;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Sets the number of nodes holding each session in distribution mode.
+     * </p>
+     *
+     * @param numOwners
+     * @return
+     */
+    public InfinispanSessionStoreBuilder numOwners(int numOwners) {
+        this.numOwners = numOwners;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Sets the lifespan in milliseconds of the L1 entries kept for sessions owned by other nodes in distribution mode. Zero,
+     * the default, disables the L1 cache.
+     * </p>
+     * <p>
+     * L1 entries save remote reads of the sessions owned by other nodes, but the invalidations of L1 entries are not ordered
+     * with the writes. While nodes join or leave a node may read and write back an outdated L1 copy, losing the updates made
+     * meanwhile. Only enable it for read mostly sessions on a stable cluster.
+     * </p>
+     *
+     * @param l1Lifespan
+     * @return
+     */
+    public InfinispanSessionStoreBuilder l1Lifespan(long l1Lifespan) {
+        this.l1Lifespan = l1Lifespan;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder clusterName(String clusterName) {
+        this.clusterName = clusterName;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder nodeName(String nodeName) {
+        this.nodeName = nodeName;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Sets the JGroups configuration file used by the transport.
+     * </p>
+     *
+     * @param jgroupsConfigurationFile
+     * @return
+     */
+    public InfinispanSessionStoreBuilder jgroupsConfigurationFile(String jgroupsConfigurationFile) {
+        return transportProperty(JGROUPS_CONFIGURATION_FILE, jgroupsConfigurationFile);
+    }
+
+    /**
+     * <p>
+     * Sets a property of the JGroups transport.
+     * </p>
+     *
+     * @param name
+     * @param value
+     * @return
+     */
+    public InfinispanSessionStoreBuilder transportProperty(String name, String value) {
+        this.transportProperties.setProperty(name, value);
+        return this;
+    }
+
+    /**
+     * <p>
+     * Shares the cache manager with the other stores given the same name. Stores sharing a cache manager must configure their
+     * caches alike, or use different cache names.
+     * </p>
+     *
+     * @param cacheManagerName
+     * @return
+     */
+    public InfinispanSessionStoreBuilder sharedCacheManager(String cacheManagerName) {
+        this.cacheManagerName = cacheManagerName;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Enables the store statistics, exposed through JMX.
+     * </p>
+     *
+     * @return
+     */
+    public InfinispanSessionStoreBuilder statistics() {
+        this.statisticsEnabled = true;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Enables the store statistics, exposed through JMX under the cache name followed by the given name. Each store of a cache
+     * with the same name in a JVM must be given a distinct name, or it fails to start.
+     * </p>
+     *
+     * @param name
+     * @return
+     */
+    public InfinispanSessionStoreBuilder statistics(String name) {
+        this.statisticsEnabled = true;
+        this.statisticsName = name;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder replicationGranularity(ReplicationGranularity replicationGranularity) {
+        this.replicationGranularity = replicationGranularity;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder writeMode(WriteMode writeMode) {
+        this.writeMode = writeMode;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder maxPendingWrites(int maxPendingWrites) {
+        this.maxPendingWrites = maxPendingWrites;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder asyncWriteThreads(int asyncWriteThreads) {
+        this.asyncWriteThreads = asyncWriteThreads;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Sets the session timeout in minutes used as the max idle time of the session entries.
+     * </p>
+     *
+     * @param sessionTimeout
+     * @return
+     */
+    public InfinispanSessionStoreBuilder sessionTimeout(int sessionTimeout) {
+        this.sessionTimeout = sessionTimeout;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Sets the maximum number of sessions held in memory by each node.
+     * </p>
+     *
+     * @param maxEntries
+     * @return
+     */
+    public InfinispanSessionStoreBuilder maxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Keeps up to the given number of sessions in a node local near cache. The time to live bounds how long a session changed
+     * by another node may be served stale and is required for distributed caches.
+     * </p>
+     *
+     * @param maxEntries
+     * @param timeToLive
+     * @param eviction
+     * @return
+     */
+    public InfinispanSessionStoreBuilder nearCache(int maxEntries, long timeToLive, Eviction eviction) {
+        this.nearCacheMaxEntries = maxEntries;
+        this.nearCacheTimeToLive = timeToLive;
+        this.nearCacheEviction = eviction;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Invalidates the sessions removed by other nodes on a background thread, keeping at most the given number of pending
+     * invalidations.
+     * </p>
+     *
+     * @param maxPendingInvalidations
+     * @return
+     */
+    public InfinispanSessionStoreBuilder asyncListener(int maxPendingInvalidations) {
+        this.asyncListener = true;
+        this.maxPendingInvalidations = maxPendingInvalidations;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Indexes the sessions by the principal resolved by the given {@link PrincipalResolver}.
+     * </p>
+     *
+     * @param principalResolver
+     * @return
+     */
+    public InfinispanSessionStoreBuilder principalIndex(PrincipalResolver principalResolver) {
+        this.principalResolver = principalResolver;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Persists the sessions of this node in a file cache store at the given location.
+     * </p>
+     *
+     * @param location
+     * @return
+     */
+    public InfinispanSessionStoreBuilder cacheStore(String location) {
+        this.cacheStoreLocation = location;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder passivation(boolean passivation) {
+        this.passivation = passivation;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder preload(boolean preload) {
+        this.preload = preload;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder writeBehindThreads(int writeBehindThreads) {
+        this.writeBehindThreads = writeBehindThreads;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Skips the update of sessions that did not change since they were read or written, tracking at most the given number of
+     * sessions.
+     * </p>
+     *
+     * @param maxEntries
+     * @return
+     */
+    public InfinispanSessionStoreBuilder dirtyTracking(int maxEntries) {
+        this.dirtyTrackingMaxEntries = maxEntries;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Writes the session accesses to the cluster in batches at the given interval in milliseconds, instead of refreshing the
+     * max idle time of the session entries on each write.
+     * </p>
+     *
+     * @param touchInterval
+     * @return
+     */
+    public InfinispanSessionStoreBuilder touchInterval(long touchInterval) {
+        this.touchInterval = touchInterval;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder concurrencyMode(ConcurrencyMode concurrencyMode) {
+        this.concurrencyMode = concurrencyMode;
+        return this;
+    }
+
+    public InfinispanSessionStoreBuilder maxUpdateAttempts(int maxUpdateAttempts) {
+        this.maxUpdateAttempts = maxUpdateAttempts;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Enables the {@link LocalSessionIdGenerator}, keeping the given number of session identifiers owned by the local node
+     * generated in advance.
+     * </p>
+     *
+     * @param bufferSize
+     * @return
+     */
+    public InfinispanSessionStoreBuilder localSessionIds(int bufferSize) {
+        this.sessionIdBufferSize = bufferSize;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Compresses with the JDK deflate the sessions whose serialized size is at least the given threshold in bytes.
+     * </p>
+     *
+     * @param threshold
+     * @return
+     */
+    public InfinispanSessionStoreBuilder compression(int threshold) {
+        return compression(threshold, new DeflateSessionCodec());
+    }
+
+    /**
+     * <p>
+     * Compresses with the given codec the sessions whose serialized size is at least the given threshold in bytes.
+     * </p>
+     *
+     * @param threshold
+     * @param codec
+     * @return
+     */
+    public InfinispanSessionStoreBuilder compression(int threshold, SessionCodec codec) {
+        this.compressionThreshold = threshold;
+        this.sessionCodec = codec;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Keeps the sessions serialized in the cache. Sessions are only deserialized when loaded, and their attributes when read.
+     * </p>
+     *
+     * @return
+     */
+    public InfinispanSessionStoreBuilder storeAsBinary() {
+        this.storeAsBinary = true;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Creates the Infinispan configuration for the values defined in this builder.
+     * </p>
+     *
+     * @return
+     */
+    public ConfigurationBuilderHolder buildConfiguration() {
+        ConfigurationBuilderHolder holder = new ConfigurationBuilderHolder();
+        CacheMode mode = getCacheMode();
+
+        if (mode.isClustered()) {
+            GlobalConfigurationBuilder globalConfiguration = holder.getGlobalConfigurationBuilder();
+
+            globalConfiguration.transport().transport(new JGroupsTransport()).clusterName(this.clusterName);
+
+            if (this.nodeName != null) {
+                globalConfiguration.transport().nodeName(this.nodeName);
+            }
+
+            for (Entry<Object, Object> property : this.transportProperties.entrySet()) {
+                globalConfiguration.transport().addProperty(property.getKey().toString(), property.getValue().toString());
+            }
+        }
+
+        ConfigurationBuilder cacheConfiguration = holder.newConfigurationBuilder(this.cacheName);
+
+        cacheConfiguration.clustering().cacheMode(mode);
+
+        if (mode.isDistributed()) {
+            cacheConfiguration.clustering().hash().numOwners(this.numOwners);
+
+            if (this.l1Lifespan > 0) {
+                cacheConfiguration.clustering().l1().enable().lifespan(this.l1Lifespan);
+            } else {
+                cacheConfiguration.clustering().l1().disable();
+            }
+        }
+
+        return holder;
+    }
+
+    /**
+     * <p>
+     * Creates a new {@link InfinispanSessionStore}. The store is not started.
+     * </p>
+     *
+     * @return
+     */
+    public InfinispanSessionStore build() {
+        InfinispanSessionStore store = new InfinispanSessionStore(this.cacheName, buildConfiguration());
+
+        store.setReplicationGranularity(this.replicationGranularity);
+        store.setWriteMode(this.writeMode);
+        store.setMaxPendingWrites(this.maxPendingWrites);
+        store.setAsyncWriteThreads(this.asyncWriteThreads);
+        store.setSessionTimeout(this.sessionTimeout);
+        store.setMaxEntries(this.maxEntries);
+        store.setNearCacheMaxEntries(this.nearCacheMaxEntries);
+        store.setNearCacheTimeToLive(this.nearCacheTimeToLive);
+        store.setNearCacheEviction(this.nearCacheEviction);
+        store.setCacheManagerName(this.cacheManagerName);
+        store.setStatisticsEnabled(this.statisticsEnabled);
+        store.setStatisticsName(this.statisticsName);
+        store.setAsyncListener(this.asyncListener);
+        store.setMaxPendingInvalidations(this.maxPendingInvalidations);
+        store.setPrincipalResolver(this.principalResolver);
+        store.setCacheStoreLocation(this.cacheStoreLocation);
+        store.setPassivation(this.passivation);
+        store.setPreload(this.preload);
+        store.setWriteBehindThreads(this.writeBehindThreads);
+        store.setDirtyTrackingMaxEntries(this.dirtyTrackingMaxEntries);
+        store.setTouchInterval(this.touchInterval);
+        store.setConcurrencyMode(this.concurrencyMode);
+        store.setMaxUpdateAttempts(this.maxUpdateAttempts);
+        store.setSessionIdBufferSize(this.sessionIdBufferSize);
+        store.setCompressionThreshold(this.compressionThreshold);
+        store.setSessionCodec(this.sessionCodec);
+        store.setStoreAsBinary(this.storeAsBinary);
+
+        return store;
+    }
+
+    private CacheMode getCacheMode() {
+        if (this.cacheMode.isClustered()) {
+            return this.sync ? this.cacheMode.toSync() : this.cacheMode.toAsync();
+        }
+
+        return this.cacheMode;
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+import java.io.Serializable;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.Cache;
+import org.infinispan.affinity.KeyAffinityService;
+import org.infinispan.affinity.KeyAffinityServiceFactory;
+import org.infinispan.affinity.KeyGenerator;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.remoting.transport.Address;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+import org.picketbox.infinispan.PicketBoxInfinispanLogger;
+
+/**
+ * <p>
+ * Generates session identifiers owned by the local node. When the session cache is distributed, identifiers are taken from
+ * a {@link KeyAffinityService} that keeps a buffer of random keys mapping to this node, so a session created here is stored
+ * here and, with sticky sessions, is loaded and updated without remote calls. For other cache modes every key is local and
+ * random identifiers are generated.
+ * </p>
+ * <p>
+ * The keys of the {@link KeyAffinityService} are taken by a background thread, since taking a key blocks until one is
+ * generated, which may never happen while the local node is not part of the consistent hash. A random identifier is generated
+ * instead when no local key is available within {@link #KEY_TIMEOUT} milliseconds.
+ * </p>
+ * <p>
+ * Instances are obtained from {@link InfinispanSessionStore#getSessionIdGenerator()} and are stopped with the store.
+ * </p>
+ */
+public class LocalSessionIdGenerator {
+
+    private static final KeyGenerator<Serializable> RANDOM_KEYS = new KeyGenerator<Serializable>() {
+        @Override
+        public Serializable getKey() {
+            return UUID.randomUUID().toString();
+        }
+    };
+
+    private static final long KEY_TIMEOUT = 100;
+
+    private final KeyAffinityService<Serializable> affinityService;
+    private final ExecutorService executor;
+    private final BlockingQueue<Serializable> keys;
+    private final DistributionManager distributionManager;
+    private final Address localAddress;
+    private final String cacheName;
+
+    LocalSessionIdGenerator(Cache<Serializable, ?> cache, int bufferSize) {
+        this.cacheName = cache.getName();
+
+        if (cache.getCacheConfiguration().clustering().cacheMode().isDistributed()) {
+            // one thread generates the keys, the other takes them from the affinity service
+            this.executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "PicketBox-SessionIdGenerator-" + cacheName);
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                }
+            });
+
+            this.affinityService = KeyAffinityServiceFactory.newLocalKeyAffinityService(cache, RANDOM_KEYS, this.executor,
+                    bufferSize);
+            this.keys = new ArrayBlockingQueue<Serializable>(bufferSize);
+            this.distributionManager = cache.getAdvancedCache().getDistributionManager();
+            this.localAddress = cache.getCacheManager().getAddress();
+
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            Serializable key;
+
+                            try {
+                                key = affinityService.getKeyForAddress(localAddress);
+                            } catch (IllegalStateException e) {
+                                // the local node is not part of the consistent hash yet
+                                Thread.sleep(KEY_TIMEOUT);
+                                continue;
+                            }
+
+                            if (key == null) {
+                                // the affinity service was stopped
+                                return;
+                            }
+
+                            keys.put(key);
+                        }
+                    } catch (InterruptedException e) {
+                        // stopped
+                    }
+                }
+            });
+        } else {
+            this.executor = null;
+            this.keys = null;
+            this.distributionManager = null;
+            this.localAddress = null;
+            this.affinityService = null;
+        }
+    }
+
+    /**
+     * <p>
+     * Generates a new session identifier owned by the local node, or a random identifier if none is available in time.
+     * </p>
+     *
+     * @return
+     */
+    public SessionId<String> generate() {
+        if (this.affinityService == null) {
+            return new DefaultSessionId((String) RANDOM_KEYS.getKey());
+        }
+
+        Serializable key = null;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(KEY_TIMEOUT);
+
+        try {
+            do {
+                // keys taken before a topology change may now be owned by another node
+                key = this.keys.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } while (key != null && !this.localAddress.equals(this.distributionManager.getPrimaryLocation(key)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            key = null;
+        }
+
+        if (key == null) {
+            PicketBoxInfinispanLogger.LOGGER.randomSessionId(this.cacheName);
+            key = RANDOM_KEYS.getKey();
+        }
+
+        return new DefaultSessionId((String) key);
+    }
+
+    /**
+     * <p>
+     * Creates a new session with an identifier owned by the local node.
+     * </p>
+     *
+     * @return
+     */
+    public PicketBoxSession createSession() {
+        return new PicketBoxSession(generate());
+    }
+
+    /**
+     * <p>
+     * Stops the generation of identifiers in background.
+     * </p>
+     */
+    void stop() {
+        if (this.affinityService != null) {
+            this.affinityService.stop();
+            this.executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.TransactionManager;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.VersioningScheme;
+import org.infinispan.transaction.LockingMode;
+import org.infinispan.transaction.TransactionMode;
+import org.infinispan.util.concurrent.IsolationLevel;
+import org.picketbox.core.exceptions.PicketBoxSessionException;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.PicketBoxInfinispanMessages;
+import org.picketbox.infinispan.marshall.LazyPicketBoxSession;
+import org.picketbox.infinispan.marshall.TrackedPicketBoxSession;
+
+/**
+ * <p>
+ * Updates sessions for the {@link InfinispanSessionStore} when the {@link ConcurrencyMode#OPTIMISTIC} concurrency mode is
+ * used. Each update is written in an optimistic transaction, applying the attributes modified in the given session to the
+ * session currently stored. If a concurrent update is detected by the write skew check when committing, the update is
+ * retried with the new stored session after a random backoff growing with the number of attempts, up to
+ * {@link #MAX_UPDATE_BACKOFF} milliseconds. The update fails once the maximum number of attempts is reached.
+ * </p>
+ * <p>
+ * The modified attributes are reported by {@link TrackedPicketBoxSession} instances, and found from the
+ * {@link AttributeSnapshots} for other sessions. A session that does not track its modifications and has no snapshot, for
+ * example a different instance of the session than the one last read or written by this node, replaces the stored session.
+ * </p>
+ */
+class OptimisticUpdater {
+
+    private static final long UPDATE_BACKOFF = 10;
+    private static final long MAX_UPDATE_BACKOFF = 100;
+
+    private final Cache<Serializable, PicketBoxSession> cache;
+    private final SessionEntries entries;
+    private final AttributeSnapshots attributeSnapshots;
+    private final int maxUpdateAttempts;
+
+    /**
+     * @param cache a cache using optimistic transactions with write skew checks.
+     * @param entries the entries of the same cache, used to sample the payload sizes.
+     * @param attributeSnapshots
+     * @param maxUpdateAttempts
+     */
+    OptimisticUpdater(Cache<Serializable, PicketBoxSession> cache, SessionEntries entries,
+            AttributeSnapshots attributeSnapshots, int maxUpdateAttempts) {
+        this.cache = cache;
+        this.entries = entries;
+        this.attributeSnapshots = attributeSnapshots;
+        this.maxUpdateAttempts = maxUpdateAttempts;
+    }
+
+    /**
+     * <p>
+     * Configures the session cache for optimistic updates: optimistic transactions committed automatically for single
+     * operations, repeatable reads and versioned entries with write skew checks.
+     * </p>
+     *
+     * @param builder
+     */
+    static void configure(ConfigurationBuilder builder) {
+        builder.transaction().transactionMode(TransactionMode.TRANSACTIONAL).lockingMode(LockingMode.OPTIMISTIC)
+                .autoCommit(true);
+        builder.locking().isolationLevel(IsolationLevel.REPEATABLE_READ).writeSkewCheck(true);
+        builder.versioning().enable().scheme(VersioningScheme.SIMPLE);
+    }
+
+    /**
+     * <p>
+     * Checks if the given cache and number of attempts support optimistic updates.
+     * </p>
+     *
+     * @param cache
+     * @param maxUpdateAttempts
+     * @throws IllegalStateException if there is no update attempt or the cache does not check write skews.
+     */
+    static void validate(Cache<?, ?> cache, int maxUpdateAttempts) {
+        if (maxUpdateAttempts <= 0) {
+            throw new IllegalStateException("The optimistic concurrency mode requires at least one update attempt.");
+        }
+
+        if (!cache.getCacheConfiguration().locking().writeSkewCheck()) {
+            throw new IllegalStateException("The optimistic concurrency mode requires write skew checks on cache ["
+                    + cache.getName() + "].");
+        }
+    }
+
+    /**
+     * <p>
+     * Writes the given session merged with the stored session. Sessions removed concurrently, expired or evicted are not
+     * written again. Once written, a session that does not track its modifications is updated with the merged attributes, so
+     * its next snapshot matches the stored session. {@link TrackedPicketBoxSession} instances only write the attributes they
+     * modified and are not updated, since they may be used concurrently.
+     * </p>
+     *
+     * @param session
+     * @return false if the session was not written because it is no longer stored.
+     * @throws IllegalStateException if the session could not be written due to concurrent updates after the maximum number of
+     *         attempts.
+     */
+    boolean update(PicketBoxSession session) {
+        Serializable key = session.getId().getId();
+        TransactionManager transactionManager = this.cache.getAdvancedCache().getTransactionManager();
+        RollbackException conflict = null;
+
+        for (int attempt = 1; attempt <= this.maxUpdateAttempts; attempt++) {
+            try {
+                transactionManager.begin();
+
+                PicketBoxSession storedSession = this.cache.get(key);
+
+                if (storedSession == null) {
+                    transactionManager.rollback();
+                    return false;
+                }
+
+                PicketBoxSession mergedSession = storedSession == session ? session : merge(session, storedSession);
+
+                this.entries.recordPayloadSize(mergedSession);
+
+                this.cache.put(key, mergedSession, -1, TimeUnit.MILLISECONDS, this.entries.getMaxIdle(),
+                        TimeUnit.MILLISECONDS);
+
+                transactionManager.commit();
+
+                if (!(session instanceof TrackedPicketBoxSession)) {
+                    applyAttributes(mergedSession, session);
+                }
+
+                this.attributeSnapshots.record(session);
+
+                return true;
+            } catch (RollbackException e) {
+                // write skew detected, merge again with the new stored session after a random backoff
+                conflict = e;
+
+                if (attempt < this.maxUpdateAttempts) {
+                    backoff(attempt);
+                }
+            } catch (Exception e) {
+                rollback(transactionManager);
+                throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+            }
+        }
+
+        throw new IllegalStateException("Could not update session [" + key + "] after " + this.maxUpdateAttempts
+                + " attempts due to concurrent updates.", conflict);
+    }
+
+    /**
+     * <p>
+     * Creates a new session with the attributes of the stored session, updated with the attributes modified in the given
+     * session. The merged session is invalid if either session is invalid. The attributes of a stored
+     * {@link LazyPicketBoxSession} that were never read stay serialized.
+     * </p>
+     *
+     * @param session the session being updated.
+     * @param storedSession the session currently stored in the cache.
+     * @return the merged session, or a session tracking its modifications with the state of the given session if its modified
+     *         attributes are not known.
+     */
+    private PicketBoxSession merge(PicketBoxSession session, PicketBoxSession storedSession) {
+        Map<String, Object> modifiedAttributes;
+
+        if (session instanceof TrackedPicketBoxSession) {
+            modifiedAttributes = ((TrackedPicketBoxSession) session).getModifiedAttributes();
+        } else {
+            modifiedAttributes = this.attributeSnapshots.getModifiedAttributes(session);
+        }
+
+        if (modifiedAttributes == null) {
+            // the given session replaces the stored one, still written as a session tracking its modifications
+            return track(session);
+        }
+
+        TrackedPicketBoxSession merged;
+
+        if (storedSession instanceof LazyPicketBoxSession) {
+            // the stored attributes not modified are written again without being deserialized
+            merged = ((LazyPicketBoxSession) storedSession).copy();
+        } else {
+            merged = new TrackedPicketBoxSession(session.getId());
+
+            for (Entry<String, Object> attribute : storedSession.getAttributes().entrySet()) {
+                merged.setAttribute(attribute.getKey(), attribute.getValue());
+            }
+        }
+
+        for (Entry<String, Object> attribute : modifiedAttributes.entrySet()) {
+            if (attribute.getValue() == null) {
+                merged.removeAttribute(attribute.getKey());
+            } else {
+                merged.setAttribute(attribute.getKey(), attribute.getValue());
+            }
+        }
+
+        if (!session.isValid() || !storedSession.isValid()) {
+            // an invalidation is kept by the concurrent updates merged with it
+            try {
+                merged.invalidate(false);
+            } catch (PicketBoxSessionException e) {
+                throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+            }
+        }
+
+        merged.markWritten(merged.getVersion());
+
+        return merged;
+    }
+
+    /**
+     * <p>
+     * Returns a {@link TrackedPicketBoxSession} with the state of the given session, to be written to the cache. Sessions
+     * later read from the cache of this node then track their modifications, even if they were not read from another node.
+     * </p>
+     *
+     * @param session
+     * @return the given session if it already tracks its modifications, a copy otherwise.
+     */
+    static PicketBoxSession track(PicketBoxSession session) {
+        if (session instanceof TrackedPicketBoxSession) {
+            return session;
+        }
+
+        TrackedPicketBoxSession trackedSession = new TrackedPicketBoxSession(session.getId());
+
+        for (Entry<String, Object> attribute : session.getAttributes().entrySet()) {
+            trackedSession.setAttribute(attribute.getKey(), attribute.getValue());
+        }
+
+        if (!session.isValid()) {
+            try {
+                trackedSession.invalidate(false);
+            } catch (PicketBoxSessionException e) {
+                throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+            }
+        }
+
+        trackedSession.markWritten(trackedSession.getVersion());
+
+        return trackedSession;
+    }
+
+    private void backoff(int attempt) {
+        try {
+            Thread.sleep((long) (Math.random() * Math.min(attempt * UPDATE_BACKOFF, MAX_UPDATE_BACKOFF)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+        }
+    }
+
+    private void rollback(TransactionManager transactionManager) {
+        try {
+            if (transactionManager.getStatus() != Status.STATUS_NO_TRANSACTION) {
+                transactionManager.rollback();
+            }
+        } catch (Exception e) {
+            throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+        }
+    }
+
+    /**
+     * <p>
+     * Makes the attributes of the target session equal to the attributes of the source session.
+     * </p>
+     *
+     * @param source
+     * @param target
+     */
+    private void applyAttributes(PicketBoxSession source, PicketBoxSession target) {
+        if (source == target) {
+            return;
+        }
+
+        Map<String, Object> attributes = source.getAttributes();
+
+        for (String name : new HashSet<String>(target.getAttributes().keySet())) {
+            if (!attributes.containsKey(name)) {
+                target.removeAttribute(name);
+            }
+        }
+
+        for (Entry<String, Object> attribute : attributes.entrySet()) {
+            if (target.getAttribute(attribute.getKey()) != attribute.getValue()) {
+                target.setAttribute(attribute.getKey(), attribute.getValue());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.picketbox.infinispan.PicketBoxInfinispanLogger;
+
+/**
+ * <p>
+ * Issues the asynchronous writes of the session stores and keeps track of the pending ones. If a maximum number of pending
+ * writes is defined, callers block when the limit is reached until one of the pending writes completes. The session stores
+ * define {@link #DEFAULT_MAX_PENDING_WRITES} by default, so a slow cluster slows the callers down instead of filling the heap
+ * with queued writes.
+ * </p>
+ * <p>
+ * Writes run on a small set of daemon threads owned by this instance rather than through the asynchronous cache API, whose
+ * futures notify their listeners before they complete and do not notify them at all when a Hot Rod write fails. Failed
+ * writes are logged when they complete and counted, so the next call to {@link #await(long, TimeUnit)} reports them.
+ * </p>
+ * <p>
+ * Each key is hashed to a single thread, so the writes to a key are applied in the order they were submitted: a removal is
+ * never overtaken by an earlier write of the same session, and an older update never overwrites a newer one. The number of
+ * threads bounds the number of writes waiting for the cluster at the same time, so it defaults to
+ * {@link #DEFAULT_WRITE_THREADS}: the threads mostly wait for the replication, and fewer threads would let the callers of
+ * the synchronous write mode, each issuing its own write, outpace the asynchronous one.
+ * </p>
+ */
+class PendingWrites {
+
+    /**
+     * The maximum number of pending writes used by the session stores unless configured otherwise.
+     */
+    static final int DEFAULT_MAX_PENDING_WRITES = 1024;
+
+    /**
+     * The number of threads issuing the writes used by the session stores unless configured otherwise.
+     */
+    static final int DEFAULT_WRITE_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final String cacheName;
+    private final Semaphore permits;
+    private final ExecutorService[] executors;
+    private final Set<PendingWrite<?>> writes = Collections.newSetFromMap(new ConcurrentHashMap<PendingWrite<?>, Boolean>());
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * @param cacheName the name of the cache written, used when logging failures.
+     * @param maxPendingWrites the maximum number of pending writes. Zero or a negative value means no limit.
+     * @param writeThreads the number of threads issuing the writes.
+     */
+    PendingWrites(final String cacheName, int maxPendingWrites, int writeThreads) {
+        this.cacheName = cacheName;
+        this.executors = new ExecutorService[writeThreads];
+
+        if (maxPendingWrites > 0) {
+            this.permits = new Semaphore(maxPendingWrites);
+        } else {
+            this.permits = null;
+        }
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PicketBox-AsyncWrite-" + cacheName);
+
+                thread.setDaemon(true);
+
+                return thread;
+            }
+        };
+
+        for (int i = 0; i < writeThreads; i++) {
+            this.executors[i] = Executors.newSingleThreadExecutor(threadFactory);
+        }
+    }
+
+    /**
+     * <p>
+     * Issues the given write after the writes previously submitted for the same key. Blocks if the maximum number of pending
+     * writes was reached.
+     * </p>
+     *
+     * @param key the key written, or any key of the given entries if they were partitioned by {@link #partition(Map)}.
+     * @param write a synchronous write to the cache.
+     * @return
+     */
+    <T> Future<T> submit(Object key, Callable<T> write) {
+        if (this.permits != null) {
+            this.permits.acquireUninterruptibly();
+        }
+
+        PendingWrite<T> pendingWrite = new PendingWrite<T>(write);
+
+        this.writes.add(pendingWrite);
+
+        try {
+            this.executors[stripe(key)].execute(pendingWrite);
+        } catch (RejectedExecutionException e) {
+            this.writes.remove(pendingWrite);
+            release();
+            throw e;
+        }
+
+        return pendingWrite;
+    }
+
+    /**
+     * <p>
+     * Splits the given entries by the thread issuing the writes of their keys, so each part can be written by a single write
+     * keeping the order of the writes to each of its keys.
+     * </p>
+     *
+     * @param entries
+     * @return
+     */
+    <K, V> Collection<Map<K, V>> partition(Map<K, V> entries) {
+        Map<Integer, Map<K, V>> parts = new HashMap<Integer, Map<K, V>>();
+
+        for (Entry<K, V> entry : entries.entrySet()) {
+            int stripe = stripe(entry.getKey());
+            Map<K, V> part = parts.get(stripe);
+
+            if (part == null) {
+                part = new HashMap<K, V>();
+                parts.put(stripe, part);
+            }
+
+            part.put(entry.getKey(), entry.getValue());
+        }
+
+        return parts.values();
+    }
+
+    private int stripe(Object key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % this.executors.length;
+    }
+
+    /**
+     * <p>
+     * Unregisters a completed write and releases its permit, counting and logging its failure if any. Called both when the
+     * write completes and by the threads awaiting it, which must not return before the failure is counted.
+     * </p>
+     *
+     * @param write
+     */
+    private void complete(PendingWrite<?> write) {
+        synchronized (write) {
+            if (write.completed) {
+                return;
+            }
+
+            write.completed = true;
+
+            this.writes.remove(write);
+            release();
+
+            try {
+                write.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                this.failures.incrementAndGet();
+                PicketBoxInfinispanLogger.LOGGER.errorWritingAsynchronously(this.cacheName, e.getCause());
+            }
+        }
+    }
+
+    private void release() {
+        if (this.permits != null) {
+            this.permits.release();
+        }
+    }
+
+    /**
+     * <p>
+     * Waits for the writes pending at the time of the call.
+     * </p>
+     *
+     * @param timeout
+     * @param unit
+     * @return true if all pending writes completed before the timeout.
+     * @throws IllegalStateException if writes failed since the previous call. The failures are only reported once.
+     */
+    boolean await(long timeout, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean completed = true;
+
+        for (PendingWrite<?> write : new ArrayList<PendingWrite<?>>(this.writes)) {
+            try {
+                write.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                completed = false;
+                break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                completed = false;
+                break;
+            } catch (ExecutionException e) {
+                // counted by complete
+            }
+
+            complete(write);
+        }
+
+        long failed = this.failures.getAndSet(0);
+
+        if (failed > 0) {
+            throw new IllegalStateException(failed + " asynchronous writes to cache [" + this.cacheName
+                    + "] failed since the pending writes were last awaited.");
+        }
+
+        return completed;
+    }
+
+    /**
+     * <p>
+     * Stops the threads issuing the writes. Writes still pending are discarded, so they should be awaited first.
+     * </p>
+     */
+    void shutdown() {
+        for (ExecutorService executor : this.executors) {
+            executor.shutdownNow();
+        }
+    }
+
+    int size() {
+        return this.writes.size();
+    }
+
+    /**
+     * <p>
+     * Returns the number of failed writes not yet reported by {@link #await(long, TimeUnit)}.
+     * </p>
+     *
+     * @return
+     */
+    long getFailureCount() {
+        return this.failures.get();
+    }
+
+    /**
+     * <p>
+     * Write completed once, either when it is done or when it is awaited.
+     * </p>
+     */
+    private class PendingWrite<T> extends FutureTask<T> {
+
+        private boolean completed;
+
+        PendingWrite(Callable<T> write) {
+            super(write);
+        }
+
+        @Override
+        protected void done() {
+            complete(this);
+        }
+    }
+
+}
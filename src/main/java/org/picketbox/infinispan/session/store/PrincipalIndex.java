@@ -0,0 +1,317 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.infinispan.Cache;
+import org.infinispan.atomic.AtomicMap;
+import org.infinispan.atomic.AtomicMapLookup;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.transaction.TransactionMode;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+
+/**
+ * <p>
+ * Clustered index of the session ids owned by each principal, kept by the {@link InfinispanSessionStore} in a companion cache.
+ * The session ids of a principal are stored in an atomic map keyed by a {@link PrincipalKey}, and the principal of each
+ * session is stored with the session key, so a session can be unindexed knowing only its id. Both entries are always written
+ * in the same batch. The principal of each session is resolved by a {@link PrincipalResolver}.
+ * </p>
+ * <p>
+ * A session is only reindexed when its principal differs from the principal stored with its key, so storing or updating a
+ * session whose principal did not change reads the companion cache but does not write to it. The stored principal is the one
+ * indexed by any node, so a session reindexed elsewhere is never compared against a stale principal.
+ * </p>
+ */
+class PrincipalIndex {
+
+    private final Cache<Object, Object> cache;
+    private final PrincipalResolver principalResolver;
+
+    /**
+     * @param cache a cache with invocation batching enabled.
+     * @param principalResolver
+     * @throws IllegalStateException if the cache uses the invalidation mode.
+     */
+    PrincipalIndex(Cache<Object, Object> cache, PrincipalResolver principalResolver) {
+        if (cache.getCacheConfiguration().clustering().cacheMode().isInvalidation()) {
+            throw new IllegalStateException("The principal index can not be kept in the invalidation cache [" + cache.getName()
+                    + "], the other nodes would not see the indexed sessions.");
+        }
+
+        this.cache = cache;
+        this.principalResolver = principalResolver;
+    }
+
+    /**
+     * <p>
+     * Configures the companion cache from a copy of the session cache configuration. It is transactional with invocation
+     * batching enabled, so both entries of a session are written together. Index entries are neither evicted nor expired,
+     * entries of sessions that expired are discarded when the sessions of a principal are looked up.
+     * </p>
+     *
+     * @param builder
+     */
+    static void configure(ConfigurationBuilder builder) {
+        builder.transaction().transactionMode(TransactionMode.TRANSACTIONAL);
+        builder.invocationBatching().enable();
+        builder.eviction().strategy(EvictionStrategy.NONE).maxEntries(-1);
+        builder.expiration().lifespan(-1).maxIdle(-1);
+    }
+
+    /**
+     * <p>
+     * Indexes the given session under its principal, unless it is already indexed under the same principal. A session that
+     * lost its principal is unindexed.
+     * </p>
+     *
+     * @param session
+     */
+    void index(PicketBoxSession session) {
+        Serializable key = session.getId().getId();
+        String principal = this.principalResolver.getPrincipal(session);
+        String indexedPrincipal = getIndexedPrincipal(key);
+
+        if (principal == null) {
+            if (indexedPrincipal != null) {
+                remove(key);
+            }
+        } else if (!principal.equals(indexedPrincipal)) {
+            add(principal, session.getId());
+        }
+    }
+
+    /**
+     * <p>
+     * Indexes the given sessions under their principals in a single batch, skipping the sessions already indexed under the
+     * same principal. Sessions that lost their principal are unindexed.
+     * </p>
+     *
+     * @param sessions
+     */
+    void indexAll(Collection<PicketBoxSession> sessions) {
+        Map<SessionId<? extends Serializable>, String> additions = new HashMap<SessionId<? extends Serializable>, String>();
+        List<Serializable> removals = new ArrayList<Serializable>();
+
+        for (PicketBoxSession session : sessions) {
+            Serializable key = session.getId().getId();
+            String principal = this.principalResolver.getPrincipal(session);
+            String indexedPrincipal = getIndexedPrincipal(key);
+
+            if (principal == null) {
+                if (indexedPrincipal != null) {
+                    removals.add(key);
+                }
+            } else if (!principal.equals(indexedPrincipal)) {
+                additions.put(session.getId(), principal);
+            }
+        }
+
+        if (additions.isEmpty() && removals.isEmpty()) {
+            return;
+        }
+
+        boolean success = false;
+
+        this.cache.startBatch();
+
+        try {
+            for (Entry<SessionId<? extends Serializable>, String> addition : additions.entrySet()) {
+                doAdd(addition.getValue(), addition.getKey());
+            }
+
+            for (Serializable key : removals) {
+                doRemove(key);
+            }
+
+            success = true;
+        } finally {
+            this.cache.endBatch(success);
+        }
+    }
+
+    /**
+     * <p>
+     * Indexes the given session under the given principal, unindexing it from its previous principal if it changed.
+     * </p>
+     *
+     * @param principal
+     * @param id
+     */
+    void add(String principal, SessionId<? extends Serializable> id) {
+        boolean success = false;
+
+        this.cache.startBatch();
+
+        try {
+            doAdd(principal, id);
+            success = true;
+        } finally {
+            this.cache.endBatch(success);
+        }
+    }
+
+    /**
+     * <p>
+     * Unindexes the session with the given key.
+     * </p>
+     *
+     * @param key
+     */
+    void remove(Serializable key) {
+        boolean success = false;
+
+        this.cache.startBatch();
+
+        try {
+            doRemove(key);
+            success = true;
+        } finally {
+            this.cache.endBatch(success);
+        }
+    }
+
+    /**
+     * <p>
+     * Unindexes the sessions with the given keys in a single batch.
+     * </p>
+     *
+     * @param keys
+     */
+    void removeAll(Collection<? extends Serializable> keys) {
+        boolean success = false;
+
+        this.cache.startBatch();
+
+        try {
+            for (Serializable key : keys) {
+                doRemove(key);
+            }
+
+            success = true;
+        } finally {
+            this.cache.endBatch(success);
+        }
+    }
+
+    /**
+     * <p>
+     * Returns the ids of the sessions indexed under the given principal.
+     * </p>
+     *
+     * @param principal
+     * @return
+     */
+    List<SessionId<? extends Serializable>> find(String principal) {
+        AtomicMap<Serializable, SessionId<? extends Serializable>> sessions = getSessions(principal, false);
+
+        if (sessions == null) {
+            return Collections.emptyList();
+        }
+
+        return new ArrayList<SessionId<? extends Serializable>>(sessions.values());
+    }
+
+    private String getIndexedPrincipal(Serializable key) {
+        return (String) this.cache.get(key);
+    }
+
+    private void doAdd(String principal, SessionId<? extends Serializable> id) {
+        Serializable key = id.getId();
+        String previous = getIndexedPrincipal(key);
+
+        if (!principal.equals(previous)) {
+            if (previous != null) {
+                removeSession(previous, key);
+            }
+
+            getSessions(principal, true).put(key, id);
+            this.cache.put(key, principal);
+        }
+    }
+
+    private void doRemove(Serializable key) {
+        String principal = (String) this.cache.remove(key);
+
+        if (principal != null) {
+            removeSession(principal, key);
+        }
+    }
+
+    private void removeSession(String principal, Serializable key) {
+        AtomicMap<Serializable, SessionId<? extends Serializable>> sessions = getSessions(principal, false);
+
+        if (sessions != null) {
+            sessions.remove(key);
+
+            if (sessions.isEmpty()) {
+                AtomicMapLookup.removeAtomicMap(this.cache, new PrincipalKey(principal));
+            }
+        }
+    }
+
+    private AtomicMap<Serializable, SessionId<? extends Serializable>> getSessions(String principal, boolean create) {
+        return AtomicMapLookup.getAtomicMap(this.cache, new PrincipalKey(principal), create);
+    }
+
+    /**
+     * <p>
+     * Key of the atomic map holding the sessions of a principal, distinct from the session keys stored in the same cache.
+     * </p>
+     */
+    static final class PrincipalKey implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        PrincipalKey(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof PrincipalKey && this.name.equals(((PrincipalKey) obj).name);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.name.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "PrincipalKey[" + this.name + "]";
+        }
+    }
+
+}
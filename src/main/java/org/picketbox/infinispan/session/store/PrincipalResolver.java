@@ -0,0 +1,49 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.marshall.TrackedPicketBoxSession;
+
+/**
+ * <p>
+ * Resolves the name of the principal owning a {@link PicketBoxSession}. Used by the {@link InfinispanSessionStore} to index
+ * the sessions by principal.
+ * </p>
+ * <p>
+ * The principal is resolved after the session is written. Reading an attribute with a mutable value through
+ * {@link PicketBoxSession#getAttribute(String)} is recorded by a {@link TrackedPicketBoxSession}, whose next update then
+ * checks if the value changed in place. Implementations should read the attributes of such sessions through
+ * {@link TrackedPicketBoxSession#peekAttribute(String)}, which neither records the read nor deserializes the other
+ * attributes of a {@link org.picketbox.infinispan.marshall.LazyPicketBoxSession}, unlike
+ * {@link PicketBoxSession#getAttributes()}.
+ * </p>
+ */
+public interface PrincipalResolver {
+
+    /**
+     * @param session
+     * @return the name of the principal owning the session, or null if the session is not authenticated.
+     */
+    String getPrincipal(PicketBoxSession session);
+
+}
@@ -0,0 +1,330 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.infinispan.Cache;
+import org.infinispan.atomic.AtomicMap;
+import org.infinispan.atomic.AtomicMapLookup;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.marshall.StreamingMarshaller;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntriesEvicted;
+import org.infinispan.notifications.cachelistener.event.CacheEntriesEvictedEvent;
+import org.infinispan.transaction.TransactionMode;
+import org.picketbox.core.exceptions.PicketBoxSessionException;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.PicketBoxInfinispanMessages;
+import org.picketbox.infinispan.marshall.TrackedPicketBoxSession;
+
+/**
+ * <p>
+ * Keeps the attributes of the sessions in a companion cache when the {@link ReplicationGranularity#ATTRIBUTE} granularity is
+ * used. The attributes of each session are stored in an atomic map keyed by the session key, so only the attributes that
+ * changed are replicated.
+ * </p>
+ * <p>
+ * The companion cache is not bounded. The {@link EvictionListener} registered on the session cache evicts the attributes of
+ * the sessions evicted from it, so a session is never kept without its attributes.
+ * </p>
+ * <p>
+ * The session cache holds the session entries without their attributes, created by {@link #createEntry(PicketBoxSession)}
+ * with the state of the session other than its attributes.
+ * </p>
+ */
+class SessionAttributes {
+
+    private final Cache<Serializable, Object> cache;
+    private final StreamingMarshaller marshaller;
+    private Cache<?, ?> sessionCache;
+    private EvictionListener evictionListener;
+
+    /**
+     * @param cache a transactional cache with invocation batching enabled.
+     * @param marshaller the marshaller used to copy the attribute values loaded from the cache.
+     */
+    SessionAttributes(Cache<Serializable, Object> cache, StreamingMarshaller marshaller) {
+        this.cache = cache;
+        this.marshaller = marshaller;
+    }
+
+    /**
+     * <p>
+     * Configures the companion cache from a copy of the session cache configuration. It is transactional and with invocation
+     * batching enabled, as required by the {@link AtomicMap} support. Atomic maps can not be written with a per entry
+     * expiration, so the max idle time of the session entries is set on the whole cache. The attributes are read and written
+     * with their sessions, so they expire together.
+     * </p>
+     * <p>
+     * The cache is not bounded, an eviction of its own could leave a session without its attributes.
+     * </p>
+     *
+     * @param builder
+     * @param maxIdle the max idle time of the session entries in milliseconds, or -1 if they do not expire.
+     */
+    static void configure(ConfigurationBuilder builder, long maxIdle) {
+        builder.transaction().transactionMode(TransactionMode.TRANSACTIONAL);
+        builder.invocationBatching().enable();
+        builder.eviction().strategy(EvictionStrategy.NONE).maxEntries(-1);
+
+        if (maxIdle > 0) {
+            builder.expiration().maxIdle(maxIdle);
+        }
+    }
+
+    Cache<Serializable, Object> getCache() {
+        return this.cache;
+    }
+
+    /**
+     * <p>
+     * Creates the entry written to the session cache for the given session: a session with the same id and validity, without
+     * the attributes stored by this instance.
+     * </p>
+     *
+     * @param session
+     * @return
+     */
+    static PicketBoxSession createEntry(PicketBoxSession session) {
+        PicketBoxSession entry = new PicketBoxSession(session.getId());
+
+        if (!session.isValid()) {
+            invalidate(entry);
+        }
+
+        return entry;
+    }
+
+    /**
+     * <p>
+     * Creates a new {@link TrackedPicketBoxSession} instance from the session stored in the cache and populates it with
+     * copies of the stored attributes. Values of well known immutable types are shared, the other values are copied by
+     * marshalling them, so changes in place to the loaded session never reach the instances held by the cache.
+     * </p>
+     *
+     * @param storedSession the entry of the session cache.
+     * @return
+     */
+    PicketBoxSession load(PicketBoxSession storedSession) {
+        TrackedPicketBoxSession session = new TrackedPicketBoxSession(storedSession.getId());
+
+        AtomicMap<String, Object> attributes = AtomicMapLookup.getAtomicMap(this.cache, storedSession.getId().getId(), false);
+
+        if (attributes != null) {
+            for (Entry<String, Object> attribute : attributes.entrySet()) {
+                session.setAttribute(attribute.getKey(), copy(attribute.getValue()));
+            }
+        }
+
+        if (!storedSession.isValid()) {
+            invalidate(session);
+        }
+
+        session.markWritten(session.getVersion());
+
+        return session;
+    }
+
+    private Object copy(Object value) {
+        if (TrackedPicketBoxSession.isImmutable(value)) {
+            return value;
+        }
+
+        try {
+            return this.marshaller.objectFromByteBuffer(this.marshaller.objectToByteBuffer(value));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+        } catch (Exception e) {
+            throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+        }
+    }
+
+    private static void invalidate(PicketBoxSession session) {
+        try {
+            session.invalidate(false);
+        } catch (PicketBoxSessionException e) {
+            throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+        }
+    }
+
+    /**
+     * <p>
+     * Writes only the attributes that were added, changed or removed. The attributes of a {@link TrackedPicketBoxSession}
+     * are written if the session tracked them as modified, so values read through {@link PicketBoxSession#getAttribute(String)}
+     * and changed in place are replicated. The attributes of other sessions are compared to the stored values using their
+     * <code>equals</code> method, so values changed in place must be set again in the session to be replicated.
+     * </p>
+     *
+     * @param session
+     */
+    void store(PicketBoxSession session) {
+        storeAll(Collections.singleton(session));
+    }
+
+    /**
+     * <p>
+     * Writes the changed attributes of the given sessions in a single batch.
+     * </p>
+     *
+     * @param sessions
+     */
+    void storeAll(Collection<PicketBoxSession> sessions) {
+        boolean success = false;
+
+        this.cache.startBatch();
+
+        try {
+            for (PicketBoxSession session : sessions) {
+                write(session);
+            }
+
+            success = true;
+        } finally {
+            this.cache.endBatch(success);
+        }
+    }
+
+    private void write(PicketBoxSession session) {
+        AtomicMap<String, Object> storedAttributes = AtomicMapLookup.getAtomicMap(this.cache, session.getId().getId());
+        Map<String, Object> attributes = session.getAttributes();
+        Set<String> modifiedNames = null;
+
+        if (session instanceof TrackedPicketBoxSession) {
+            modifiedNames = ((TrackedPicketBoxSession) session).getModifiedAttributes().keySet();
+        }
+
+        for (Entry<String, Object> attribute : attributes.entrySet()) {
+            String name = attribute.getKey();
+            Object storedValue = storedAttributes.get(name);
+
+            if (storedValue == null) {
+                storedAttributes.put(name, attribute.getValue());
+            } else if (modifiedNames != null) {
+                // values loaded from this cache are the stored instances, so comparing them would miss changes in place
+                if (modifiedNames.contains(name)) {
+                    storedAttributes.put(name, attribute.getValue());
+                }
+            } else if (!storedValue.equals(attribute.getValue())) {
+                storedAttributes.put(name, attribute.getValue());
+            }
+        }
+
+        for (String name : new HashSet<String>(storedAttributes.keySet())) {
+            if (!attributes.containsKey(name)) {
+                storedAttributes.remove(name);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Removes the attributes of the session with the given key.
+     * </p>
+     *
+     * @param key
+     */
+    void remove(Serializable key) {
+        AtomicMapLookup.removeAtomicMap(this.cache, key);
+    }
+
+    /**
+     * <p>
+     * Removes the attributes of the sessions with the given keys in a single batch.
+     * </p>
+     *
+     * @param keys
+     */
+    void removeAll(Collection<? extends Serializable> keys) {
+        boolean success = false;
+
+        this.cache.startBatch();
+
+        try {
+            for (Serializable key : keys) {
+                AtomicMapLookup.removeAtomicMap(this.cache, key);
+            }
+
+            success = true;
+        } finally {
+            this.cache.endBatch(success);
+        }
+    }
+
+    /**
+     * <p>
+     * Registers an {@link EvictionListener} on the given session cache, evicting the attributes of the sessions evicted from
+     * it.
+     * </p>
+     *
+     * @param sessionCache
+     */
+    void addEvictionListener(Cache<?, ?> sessionCache) {
+        this.sessionCache = sessionCache;
+        this.evictionListener = new EvictionListener(this.cache);
+        this.sessionCache.addListener(this.evictionListener);
+    }
+
+    /**
+     * <p>
+     * Removes the {@link EvictionListener} from the session cache, if registered.
+     * </p>
+     */
+    void removeEvictionListener() {
+        if (this.evictionListener != null) {
+            this.sessionCache.removeListener(this.evictionListener);
+            this.evictionListener = null;
+        }
+    }
+
+    /**
+     * <p>
+     * Evicts the attributes of the sessions evicted from the session cache. Eviction is local to this node and passivates the
+     * attributes along with the sessions if the caches are configured to.
+     * </p>
+     */
+    @Listener
+    public static class EvictionListener {
+
+        private final Cache<Serializable, Object> cache;
+
+        EvictionListener(Cache<Serializable, Object> cache) {
+            this.cache = cache;
+        }
+
+        @CacheEntriesEvicted
+        public void sessionsEvicted(CacheEntriesEvictedEvent<Serializable, Object> event) {
+            for (Object key : event.getEntries().keySet()) {
+                this.cache.evict((Serializable) key);
+            }
+        }
+    }
+
+}
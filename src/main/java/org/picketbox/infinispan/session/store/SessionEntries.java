@@ -0,0 +1,315 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.infinispan.api.BasicCache;
+import org.infinispan.marshall.Marshaller;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.PicketBoxInfinispanMessages;
+import org.picketbox.infinispan.marshall.PicketBoxSessionExternalizer;
+import org.picketbox.infinispan.metrics.SessionStoreMetrics;
+
+/**
+ * <p>
+ * Reads and writes the session entries of a cache for the session stores. Writes never fetch the previous value and use the
+ * configured {@link WriteMode}. Asynchronous writes are issued by {@link PendingWrites}, so they can be awaited and bounded,
+ * and the writes to each session are applied in order. Bulk reads and removals are issued concurrently.
+ * </p>
+ * <p>
+ * If a marshaller and a {@link SessionStoreMetrics} are given, the serialized size of one in every
+ * {@link #PAYLOAD_SIZE_SAMPLING} sessions written is recorded, since measuring it requires an extra serialization.
+ * </p>
+ */
+class SessionEntries {
+
+    private static final int PAYLOAD_SIZE_SAMPLING = 64;
+
+    private final BasicCache<Serializable, PicketBoxSession> cache;
+    private final BasicCache<Serializable, PicketBoxSession> readCache;
+    private final boolean asyncWrites;
+    private final long maxIdle;
+    private final PendingWrites pendingWrites;
+    private final Marshaller marshaller;
+    private final SessionStoreMetrics metrics;
+    private final AtomicLong writeCount = new AtomicLong();
+
+    /**
+     * @param cache the cache used for all reads and writes.
+     * @param writeMode
+     * @param maxPendingWrites the maximum number of pending asynchronous writes. Zero means no limit.
+     * @param writeThreads the number of threads issuing the asynchronous writes.
+     * @param maxIdle the max idle time in milliseconds of the session entries, or -1 for none.
+     * @param marshaller the marshaller used to sample the payload sizes, or null.
+     * @param metrics the metrics receiving the payload sizes, or null.
+     */
+    SessionEntries(BasicCache<Serializable, PicketBoxSession> cache, WriteMode writeMode, int maxPendingWrites,
+            int writeThreads, long maxIdle, Marshaller marshaller, SessionStoreMetrics metrics) {
+        this(cache, cache, writeMode, maxPendingWrites, writeThreads, maxIdle, marshaller, metrics);
+    }
+
+    /**
+     * @param cache the cache used for the writes, usually decorated with flags skipping the remote lookups.
+     * @param readCache the cache used for the reads, which must fetch the entries owned by other nodes.
+     * @param writeMode
+     * @param maxPendingWrites the maximum number of pending asynchronous writes. Zero means no limit.
+     * @param writeThreads the number of threads issuing the asynchronous writes.
+     * @param maxIdle the max idle time in milliseconds of the session entries, or -1 for none.
+     * @param marshaller the marshaller used to sample the payload sizes, or null.
+     * @param metrics the metrics receiving the payload sizes, or null.
+     */
+    SessionEntries(BasicCache<Serializable, PicketBoxSession> cache, BasicCache<Serializable, PicketBoxSession> readCache,
+            WriteMode writeMode, int maxPendingWrites, int writeThreads, long maxIdle, Marshaller marshaller,
+            SessionStoreMetrics metrics) {
+        this.cache = cache;
+        this.readCache = readCache;
+        this.asyncWrites = WriteMode.ASYNC.equals(writeMode);
+        this.maxIdle = maxIdle;
+        this.pendingWrites = this.asyncWrites ? new PendingWrites(cache.getName(), maxPendingWrites, writeThreads) : null;
+        this.marshaller = marshaller;
+        this.metrics = metrics;
+    }
+
+    /**
+     * <p>
+     * Writes the given session entry.
+     * </p>
+     *
+     * @param session
+     */
+    void put(final PicketBoxSession session) {
+        recordPayloadSize(session);
+
+        if (this.asyncWrites) {
+            this.pendingWrites.submit(session.getId().getId(), new Callable<Void>() {
+                @Override
+                public Void call() {
+                    doPut(session);
+                    return null;
+                }
+            });
+        } else {
+            doPut(session);
+        }
+    }
+
+    private void doPut(PicketBoxSession session) {
+        this.cache.put(session.getId().getId(), session, -1, TimeUnit.MILLISECONDS, this.maxIdle, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <p>
+     * Writes the given session entries with a single <code>putAll</code>. When the {@link WriteMode#ASYNC} write mode is used,
+     * the entries are written with one <code>putAll</code> per thread issuing the writes of their keys.
+     * </p>
+     *
+     * @param sessions
+     */
+    void putAll(Map<Serializable, PicketBoxSession> sessions) {
+        for (PicketBoxSession session : sessions.values()) {
+            recordPayloadSize(session);
+        }
+
+        if (this.asyncWrites) {
+            for (final Map<Serializable, PicketBoxSession> part : this.pendingWrites.partition(sessions)) {
+                this.pendingWrites.submit(part.keySet().iterator().next(), new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        doPutAll(part);
+                        return null;
+                    }
+                });
+            }
+        } else {
+            doPutAll(sessions);
+        }
+    }
+
+    private void doPutAll(Map<Serializable, PicketBoxSession> sessions) {
+        this.cache.putAll(sessions, -1, TimeUnit.MILLISECONDS, this.maxIdle, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * <p>
+     * Removes the session entry with the given key.
+     * </p>
+     *
+     * @param key
+     */
+    void remove(final Serializable key) {
+        if (this.asyncWrites) {
+            this.pendingWrites.submit(key, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    cache.remove(key);
+                    return null;
+                }
+            });
+        } else {
+            this.cache.remove(key);
+        }
+    }
+
+    /**
+     * <p>
+     * Removes the session entries with the given keys. The removals are issued concurrently and, when the
+     * {@link WriteMode#SYNC} write mode is used, awaited before returning.
+     * </p>
+     *
+     * @param keys
+     */
+    void removeAll(Collection<? extends Serializable> keys) {
+        if (this.asyncWrites) {
+            for (Serializable key : keys) {
+                remove(key);
+            }
+
+            return;
+        }
+
+        List<Future<PicketBoxSession>> removals = new ArrayList<Future<PicketBoxSession>>();
+
+        for (Serializable key : keys) {
+            removals.add(this.cache.removeAsync(key));
+        }
+
+        for (Future<PicketBoxSession> removal : removals) {
+            getResult(removal);
+        }
+    }
+
+    /**
+     * <p>
+     * Reads the session entries with the given keys concurrently. The entries owned by other nodes are fetched from their
+     * owners, like a single session read.
+     * </p>
+     *
+     * @param keys
+     * @return the sessions found, by key.
+     */
+    Map<Serializable, PicketBoxSession> getAll(Collection<? extends Serializable> keys) {
+        Map<Serializable, Future<PicketBoxSession>> pending = new HashMap<Serializable, Future<PicketBoxSession>>();
+
+        for (Serializable key : keys) {
+            if (!pending.containsKey(key)) {
+                pending.put(key, this.readCache.getAsync(key));
+            }
+        }
+
+        Map<Serializable, PicketBoxSession> sessions = new HashMap<Serializable, PicketBoxSession>();
+
+        for (Entry<Serializable, Future<PicketBoxSession>> entry : pending.entrySet()) {
+            PicketBoxSession session = getResult(entry.getValue());
+
+            if (session != null) {
+                sessions.put(entry.getKey(), session);
+            }
+        }
+
+        return sessions;
+    }
+
+    /**
+     * <p>
+     * Waits for the asynchronous writes pending at the time of the call.
+     * </p>
+     *
+     * @param timeout
+     * @param unit
+     * @return true if all pending writes completed before the timeout.
+     * @throws IllegalStateException if writes failed since the previous call.
+     */
+    boolean await(long timeout, TimeUnit unit) {
+        return this.pendingWrites == null || this.pendingWrites.await(timeout, unit);
+    }
+
+    /**
+     * <p>
+     * Returns the number of asynchronous writes not yet completed.
+     * </p>
+     *
+     * @return
+     */
+    int getPendingWriteCount() {
+        return this.pendingWrites == null ? 0 : this.pendingWrites.size();
+    }
+
+    /**
+     * <p>
+     * Stops issuing asynchronous writes. Pending writes should be awaited first.
+     * </p>
+     */
+    void stop() {
+        if (this.pendingWrites != null) {
+            this.pendingWrites.shutdown();
+        }
+    }
+
+    long getMaxIdle() {
+        return this.maxIdle;
+    }
+
+    /**
+     * <p>
+     * Records the serialized size of the given session if it is sampled. The size is measured before compression, which is
+     * measured by the compression metrics.
+     * </p>
+     *
+     * @param session
+     */
+    void recordPayloadSize(PicketBoxSession session) {
+        if (this.metrics == null || this.marshaller == null
+                || this.writeCount.incrementAndGet() % PAYLOAD_SIZE_SAMPLING != 0) {
+            return;
+        }
+
+        try {
+            this.metrics.recordPayloadSize(PicketBoxSessionExternalizer.toUncompressedBytes(this.marshaller, session).length);
+        } catch (Exception e) {
+            throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+        } catch (ExecutionException e) {
+            throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.infinispan.session.store;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import org.infinispan.marshall.StreamingMarshaller;
+import org.infinispan.util.concurrent.BoundedConcurrentHashMap;
+import org.infinispan.util.concurrent.BoundedConcurrentHashMap.Eviction;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.PicketBoxInfinispanMessages;
+import org.picketbox.infinispan.marshall.LazyPicketBoxSession;
+import org.picketbox.infinispan.marshall.PicketBoxSessionExternalizer;
+import org.picketbox.infinispan.marshall.TrackedPicketBoxSession;
+
+/**
+ * <p>
+ * Keeps a fingerprint of the last state of each session read from or written to the cache by this node, so the
+ * {@link InfinispanSessionStore} can skip the update of sessions that did not change. The fingerprint is a 64 bit FNV-1a hash
+ * of the uncompressed marshalled session, so attribute values changed in place are also detected.
+ * </p>
+ * <p>
+ * Only used for sessions that do not count their own modifications, since computing a fingerprint marshals the whole
+ * session. {@link TrackedPicketBoxSession} instances are never fingerprinted, their own modification count is checked
+ * instead. Only the attributes with mutable values are fingerprinted for them, when read or written, so an update after
+ * reading such an attribute is only written if the value was changed in place. The attributes of a
+ * {@link LazyPicketBoxSession} are not fingerprinted when read, since it would deserialize them, so reading a mutable
+ * attribute of such a session is always considered a modification.
+ * </p>
+ * <p>
+ * Fingerprints are held in a bounded map. Sessions without a fingerprint are always considered changed.
+ * </p>
+ */
+class SessionFingerprints {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final ConcurrentMap<Serializable, Long> fingerprints;
+    private final ConcurrentMap<Serializable, Map<String, Long>> attributeFingerprints;
+    private final StreamingMarshaller marshaller;
+
+    /**
+     * @param maxEntries the maximum number of fingerprints kept.
+     * @param marshaller the marshaller used by the session cache.
+     */
+    SessionFingerprints(int maxEntries, StreamingMarshaller marshaller) {
+        this.fingerprints = new BoundedConcurrentHashMap<Serializable, Long>(maxEntries, 16, Eviction.LRU);
+        this.attributeFingerprints = new BoundedConcurrentHashMap<Serializable, Map<String, Long>>(maxEntries, 16,
+                Eviction.LRU);
+        this.marshaller = marshaller;
+    }
+
+    /**
+     * <p>
+     * Returns the version of the given session to be passed to {@link #recordWritten(PicketBoxSession, long)}, taken before
+     * the session is written.
+     * </p>
+     *
+     * @param session
+     * @return
+     */
+    static long getVersion(PicketBoxSession session) {
+        return session instanceof TrackedPicketBoxSession ? ((TrackedPicketBoxSession) session).getVersion() : 0;
+    }
+
+    /**
+     * <p>
+     * Records the state of a session read from the cache. {@link TrackedPicketBoxSession} instances are read unmodified, or
+     * hold modifications this node did not write yet, so only their attributes with mutable values are recorded.
+     * </p>
+     *
+     * @param session
+     */
+    void recordLoaded(PicketBoxSession session) {
+        if (session instanceof TrackedPicketBoxSession) {
+            recordMutableAttributes((TrackedPicketBoxSession) session);
+        } else {
+            this.fingerprints.put(session.getId().getId(), fingerprint(session));
+        }
+    }
+
+    /**
+     * <p>
+     * Records the state of a session written to the cache, given its version before the write.
+     * </p>
+     *
+     * @param session
+     * @param version
+     */
+    void recordWritten(PicketBoxSession session, long version) {
+        if (session instanceof TrackedPicketBoxSession) {
+            ((TrackedPicketBoxSession) session).markWritten(version);
+            recordMutableAttributes((TrackedPicketBoxSession) session);
+        } else {
+            this.fingerprints.put(session.getId().getId(), fingerprint(session));
+        }
+    }
+
+    /**
+     * <p>
+     * Checks if the given session changed since its state was last recorded. If it changed, its current state is recorded,
+     * unless it is a {@link TrackedPicketBoxSession}, which is marked as written once the write succeeds. The attributes
+     * with mutable values read from a {@link TrackedPicketBoxSession} are compared with their recorded fingerprints.
+     * </p>
+     *
+     * @param session
+     * @return true if the session changed or if its state was never recorded.
+     */
+    boolean recordIfChanged(PicketBoxSession session) {
+        if (session instanceof TrackedPicketBoxSession) {
+            return isChanged((TrackedPicketBoxSession) session);
+        }
+
+        Long current = fingerprint(session);
+        Long previous = this.fingerprints.put(session.getId().getId(), current);
+
+        return !current.equals(previous);
+    }
+
+    void remove(Serializable key) {
+        this.fingerprints.remove(key);
+        this.attributeFingerprints.remove(key);
+    }
+
+    private boolean isChanged(TrackedPicketBoxSession session) {
+        if (session.hasCountedModifications()) {
+            return true;
+        }
+
+        Set<String> readAttributes = session.getReadMutableAttributes();
+
+        if (readAttributes.isEmpty()) {
+            return false;
+        }
+
+        Map<String, Long> recorded = this.attributeFingerprints.get(session.getId().getId());
+
+        if (recorded == null) {
+            return true;
+        }
+
+        for (String name : readAttributes) {
+            Object value = session.getAttributes().get(name);
+            Long previous = recorded.get(name);
+
+            if (previous == null || value == null || !previous.equals(fingerprint(value))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * <p>
+     * Records the fingerprints of the attributes with mutable values of the given session. Nothing is recorded for a
+     * {@link LazyPicketBoxSession}, whose attributes would be deserialized.
+     * </p>
+     *
+     * @param session
+     */
+    private void recordMutableAttributes(TrackedPicketBoxSession session) {
+        if (session instanceof LazyPicketBoxSession) {
+            return;
+        }
+
+        Map<String, Long> recorded = new HashMap<String, Long>();
+
+        for (Entry<String, Object> attribute : session.getAttributes().entrySet()) {
+            Object value = attribute.getValue();
+
+            if (value != null && !TrackedPicketBoxSession.isImmutable(value)) {
+                recorded.put(attribute.getKey(), fingerprint(value));
+            }
+        }
+
+        if (recorded.isEmpty()) {
+            this.attributeFingerprints.remove(session.getId().getId());
+        } else {
+            this.attributeFingerprints.put(session.getId().getId(), recorded);
+        }
+    }
+
+    private Long fingerprint(Object object) {
+        byte[] bytes;
+
+        try {
+            bytes = PicketBoxSessionExternalizer.toUncompressedBytes(this.marshaller, object);
+        } catch (Exception e) {
+            throw PicketBoxInfinispanMessages.MESSAGES.runtimeException(e);
+        }
+
+        long hash = FNV_OFFSET_BASIS;
+
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+
+        return hash;
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.infinispan.session.store;
+
+/**
+ * <p>
+ * Defines how the {@link InfinispanSessionStore} waits for the writes issued to the cache.
+ * </p>
+ */
+public enum WriteMode {
+
+    /**
+     * <p>
+     * Writes block the calling thread until the cache completes them, including any synchronous replication.
+     * </p>
+     */
+    SYNC,
+
+    /**
+     * <p>
+     * Writes are issued asynchronously and the calling thread returns immediately. Pending writes can be awaited using
+     * {@link InfinispanSessionStore#awaitPendingWrites(long, java.util.concurrent.TimeUnit)}.
+     * </p>
+     */
+    ASYNC
+}
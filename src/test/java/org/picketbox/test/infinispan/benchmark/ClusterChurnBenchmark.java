@@ -0,0 +1,566 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.infinispan.benchmark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+import org.picketbox.infinispan.metrics.LatencyHistogram;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.InfinispanSessionStoreBuilder;
+
+/**
+ * <p>
+ * Measures how a cluster of {@link InfinispanSessionStore} nodes behaves when nodes join, leave or crash under load. The nodes
+ * run in the same JVM using the loopback JGroups stack defined by <b>jgroups-churn.xml</b>, which includes the
+ * {@link CrashSimulator} protocol.
+ * </p>
+ * <p>
+ * After a steady phase, each event of the scenario is applied while worker threads keep loading and updating sessions on the
+ * live nodes. For each event the report gives:
+ * </p>
+ * <ul>
+ * <li>the time taken by the event itself, which for a join includes the initial state transfer of the new node;</li>
+ * <li>the time until every live node installed the new view;</li>
+ * <li>the time until the cluster rebalanced, that is until a sweep loading every session from the live nodes completes without
+ * errors;</li>
+ * <li>the operation latencies, errors and missed loads while the event was in progress;</li>
+ * <li>the sessions lost and the acknowledged updates lost, as found by the final sweep.</li>
+ * </ul>
+ * <p>
+ * A steady phase follows each event, so the latencies during rebalance can be compared with the ones of a stable cluster.
+ * </p>
+ */
+public class ClusterChurnBenchmark {
+
+    private static final String JGROUPS_CONFIGURATION_FILE = "jgroups-churn.xml";
+    private static final String COUNTER = "counter";
+    private static final String PAYLOAD = "payload";
+    private static final int UNKNOWN = -1;
+    private static final int PAYLOAD_SIZE = 256;
+    private static final long POLL_INTERVAL = 100;
+
+    /**
+     * <p>
+     * Creates the builders of the nodes of a configuration. The cluster name, node name and JGroups configuration are set by
+     * the benchmark.
+     * </p>
+     */
+    public interface StoreFactory {
+
+        InfinispanSessionStoreBuilder createBuilder();
+
+    }
+
+    private final String configurationName;
+    private final StoreFactory storeFactory;
+    private int initialNodes = 3;
+    private int sessions = 500;
+    private int workers = 4;
+    private double updateRatio = 0.25;
+    private long steadyTime = 2000;
+    private long rebalanceTimeout = 60000;
+    private List<String> scenario = new ArrayList<String>();
+
+    private String clusterName;
+    private int nodeCounter;
+    private final List<Node> liveNodes = new CopyOnWriteArrayList<Node>();
+    private final List<Node> crashedNodes = new ArrayList<Node>();
+    private List<SessionId<? extends Serializable>> ids;
+    private AtomicIntegerArray expected;
+    private volatile Phase phase;
+    private volatile boolean running;
+
+    public ClusterChurnBenchmark(String configurationName, StoreFactory storeFactory) {
+        this.configurationName = configurationName;
+        this.storeFactory = storeFactory;
+    }
+
+    public ClusterChurnBenchmark initialNodes(int initialNodes) {
+        this.initialNodes = initialNodes;
+        return this;
+    }
+
+    public ClusterChurnBenchmark sessions(int sessions) {
+        this.sessions = sessions;
+        return this;
+    }
+
+    public ClusterChurnBenchmark workers(int workers) {
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Sets the ratio of the operations updating a session, the others only load it.
+     * </p>
+     *
+     * @param updateRatio
+     * @return
+     */
+    public ClusterChurnBenchmark updateRatio(double updateRatio) {
+        this.updateRatio = updateRatio;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Sets the duration in milliseconds of the steady phases.
+     * </p>
+     *
+     * @param steadyTime
+     * @return
+     */
+    public ClusterChurnBenchmark steadyTime(long steadyTime) {
+        this.steadyTime = steadyTime;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Sets how long in milliseconds the benchmark waits for the cluster to rebalance after each event.
+     * </p>
+     *
+     * @param rebalanceTimeout
+     * @return
+     */
+    public ClusterChurnBenchmark rebalanceTimeout(long rebalanceTimeout) {
+        this.rebalanceTimeout = rebalanceTimeout;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Adds events to the scenario. Each event is <b>join</b>, <b>leave</b> or <b>crash</b>, optionally followed by the number
+     * of nodes affected, like <b>crash:2</b>. Nodes leave or crash starting with the oldest one, which is the coordinator.
+     * </p>
+     *
+     * @param events
+     * @return
+     */
+    public ClusterChurnBenchmark scenario(String... events) {
+        for (String event : events) {
+            this.scenario.add(event.trim());
+        }
+
+        return this;
+    }
+
+    /**
+     * <p>
+     * Runs the scenario and returns the results of each phase.
+     * </p>
+     *
+     * @return
+     * @throws Exception
+     */
+    public List<PhaseResult> run() throws Exception {
+        List<PhaseResult> results = new ArrayList<PhaseResult>();
+        ExecutorService executor = Executors.newFixedThreadPool(this.workers);
+
+        this.clusterName = "picketbox-churn-" + System.nanoTime();
+
+        try {
+            for (int i = 0; i < this.initialNodes; i++) {
+                this.liveNodes.add(startNode());
+            }
+
+            populate();
+
+            this.phase = new Phase("steady");
+            this.running = true;
+
+            for (int i = 0; i < this.workers; i++) {
+                executor.execute(new Worker(i));
+            }
+
+            results.add(runSteadyPhase());
+
+            for (String event : this.scenario) {
+                results.add(runEvent(event));
+                results.add(runSteadyPhase());
+            }
+        } finally {
+            this.running = false;
+
+            executor.shutdown();
+            executor.awaitTermination(this.rebalanceTimeout, TimeUnit.MILLISECONDS);
+
+            for (Node node : this.liveNodes) {
+                node.store.stop();
+            }
+
+            this.liveNodes.clear();
+            stopCrashedNodes();
+        }
+
+        return results;
+    }
+
+    private void populate() {
+        StringBuilder payload = new StringBuilder();
+
+        for (int i = 0; i < PAYLOAD_SIZE; i++) {
+            payload.append((char) ('a' + i % 26));
+        }
+
+        this.ids = new ArrayList<SessionId<? extends Serializable>>(this.sessions);
+        this.expected = new AtomicIntegerArray(this.sessions);
+
+        for (int i = 0; i < this.sessions; i++) {
+            PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+            session.setAttribute(COUNTER, 0);
+            session.setAttribute(PAYLOAD, payload.toString());
+
+            this.liveNodes.get(i % this.liveNodes.size()).store.store(session);
+            this.ids.add(session.getId());
+        }
+    }
+
+    private PhaseResult runSteadyPhase() throws InterruptedException {
+        Phase steady = new Phase("steady");
+
+        this.phase = steady;
+
+        Thread.sleep(this.steadyTime);
+
+        return new PhaseResult(this.configurationName, steady, this.liveNodes.size(), -1, -1, -1, -1, -1);
+    }
+
+    private PhaseResult runEvent(String event) throws Exception {
+        String[] parts = event.split(":");
+        String type = parts[0];
+        int count = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+
+        if (!"join".equals(type) && this.liveNodes.size() <= count) {
+            throw new IllegalStateException("At least one node must survive the event " + event + ".");
+        }
+
+        Phase eventPhase = new Phase(event);
+
+        this.phase = eventPhase;
+
+        long start = System.nanoTime();
+
+        if ("join".equals(type)) {
+            for (int i = 0; i < count; i++) {
+                this.liveNodes.add(startNode());
+            }
+        } else if ("leave".equals(type)) {
+            for (int i = 0; i < count; i++) {
+                this.liveNodes.remove(0).store.stop();
+            }
+        } else if ("crash".equals(type)) {
+            for (int i = 0; i < count; i++) {
+                Node node = this.liveNodes.remove(0);
+
+                CrashSimulator.crash(node.name);
+                this.crashedNodes.add(node);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown event " + event + ".");
+        }
+
+        long eventMillis = elapsedMillis(start);
+        long viewMillis = awaitView() ? elapsedMillis(start) : -1;
+        int[] lost = null;
+
+        while (lost == null && elapsedMillis(start) < this.rebalanceTimeout) {
+            lost = sweep();
+
+            if (lost == null) {
+                Thread.sleep(POLL_INTERVAL);
+            }
+        }
+
+        long rebalanceMillis = lost != null ? elapsedMillis(start) : -1;
+
+        // the crashed nodes only stop once excluded from the view, so the stop is not part of the event
+        stopCrashedNodes();
+
+        return new PhaseResult(this.configurationName, eventPhase, this.liveNodes.size(), eventMillis, viewMillis,
+                rebalanceMillis, lost != null ? lost[0] : -1, lost != null ? lost[1] : -1);
+    }
+
+    private Node startNode() {
+        String name = this.clusterName + "-" + this.nodeCounter++;
+        InfinispanSessionStore store = this.storeFactory.createBuilder().clusterName(this.clusterName).nodeName(name)
+                .jgroupsConfigurationFile(JGROUPS_CONFIGURATION_FILE).build();
+
+        store.start();
+
+        return new Node(name, store);
+    }
+
+    private void stopCrashedNodes() {
+        for (Node node : this.crashedNodes) {
+            node.store.stop();
+        }
+
+        this.crashedNodes.clear();
+    }
+
+    /**
+     * <p>
+     * Waits until every live node installed a view with all the live nodes.
+     * </p>
+     *
+     * @return false if the rebalance timeout expired.
+     */
+    private boolean awaitView() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + this.rebalanceTimeout;
+
+        while (System.currentTimeMillis() < deadline) {
+            boolean installed = true;
+
+            for (Node node : this.liveNodes) {
+                installed &= CrashSimulator.getViewSize(node.name) == this.liveNodes.size();
+            }
+
+            if (installed) {
+                return true;
+            }
+
+            Thread.sleep(POLL_INTERVAL);
+        }
+
+        return false;
+    }
+
+    /**
+     * <p>
+     * Loads every session from the live nodes. A session is stale if its counter is lower than the last update acknowledged
+     * before it was loaded.
+     * </p>
+     *
+     * @return the number of missing and stale sessions, or null if a load failed.
+     */
+    private int[] sweep() {
+        int missing = 0;
+        int stale = 0;
+
+        for (int i = 0; i < this.sessions; i++) {
+            int acknowledged = this.expected.get(i);
+            PicketBoxSession session;
+
+            try {
+                session = this.liveNodes.get(i % this.liveNodes.size()).store.load(this.ids.get(i));
+            } catch (RuntimeException e) {
+                return null;
+            }
+
+            if (session == null) {
+                missing++;
+            } else if (acknowledged != UNKNOWN && (Integer) session.getAttribute(COUNTER) < acknowledged) {
+                stale++;
+            }
+        }
+
+        return new int[] { missing, stale };
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * <p>
+     * Loads and updates the sessions assigned to it, so the last acknowledged update of each session is known.
+     * </p>
+     */
+    private class Worker implements Runnable {
+
+        private final int index;
+        private final Random random = new Random();
+
+        Worker(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            int assigned = (sessions - this.index + workers - 1) / workers;
+
+            while (running) {
+                int i = this.index + workers * this.random.nextInt(assigned);
+                Node[] nodes = liveNodes.toArray(new Node[0]);
+                Node node = nodes[this.random.nextInt(nodes.length)];
+                Phase current = phase;
+                boolean update = this.random.nextDouble() < updateRatio;
+                long start = System.nanoTime();
+
+                try {
+                    PicketBoxSession session = node.store.load(ids.get(i));
+
+                    if (session == null) {
+                        current.misses.incrementAndGet();
+                    } else if (update) {
+                        int counter = (Integer) session.getAttribute(COUNTER) + 1;
+
+                        session.setAttribute(COUNTER, counter);
+                        expected.set(i, UNKNOWN);
+                        node.store.update(session);
+                        expected.set(i, counter);
+                    }
+                } catch (RuntimeException e) {
+                    current.errors.incrementAndGet();
+                } finally {
+                    current.latencies.record(System.nanoTime() - start);
+                }
+            }
+        }
+    }
+
+    private static class Node {
+
+        private final String name;
+        private final InfinispanSessionStore store;
+
+        Node(String name, InfinispanSessionStore store) {
+            this.name = name;
+            this.store = store;
+        }
+    }
+
+    private static class Phase {
+
+        private final String name;
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        Phase(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * <p>
+     * Results of a phase of the benchmark. Times are in milliseconds, -1 when they do not apply or the rebalance timeout
+     * expired.
+     * </p>
+     */
+    public static class PhaseResult {
+
+        private static final String FORMAT = "%-20s %-10s %5s %8s %7s %7s %9s %9s %9s %8s %8s %11s %8s %6s";
+
+        private final String configuration;
+        private final String phase;
+        private final int nodes;
+        private final long operations;
+        private final long errors;
+        private final long misses;
+        private final double p50Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+        private final long eventMillis;
+        private final long viewMillis;
+        private final long rebalanceMillis;
+        private final int missingSessions;
+        private final int staleSessions;
+
+        PhaseResult(String configuration, Phase phase, int nodes, long eventMillis, long viewMillis, long rebalanceMillis,
+                int missingSessions, int staleSessions) {
+            this.configuration = configuration;
+            this.phase = phase.name;
+            this.nodes = nodes;
+            this.operations = phase.latencies.getCount();
+            this.errors = phase.errors.get();
+            this.misses = phase.misses.get();
+            this.p50Millis = toMillis(phase.latencies.getPercentile(50));
+            this.p99Millis = toMillis(phase.latencies.getPercentile(99));
+            this.maxMillis = toMillis(phase.latencies.getMax());
+            this.eventMillis = eventMillis;
+            this.viewMillis = viewMillis;
+            this.rebalanceMillis = rebalanceMillis;
+            this.missingSessions = missingSessions;
+            this.staleSessions = staleSessions;
+        }
+
+        public static String header() {
+            return String.format(FORMAT, "configuration", "phase", "nodes", "ops", "errors", "misses", "p50 ms", "p99 ms",
+                    "max ms", "event ms", "view ms", "rebalance ms", "missing", "stale");
+        }
+
+        /**
+         * @return the header of the comma separated values.
+         */
+        public static String csvHeader() {
+            return "configuration,phase,nodes,operations,errors,misses,p50Millis,p99Millis,maxMillis,eventMillis,viewMillis,"
+                    + "rebalanceMillis,missingSessions,staleSessions";
+        }
+
+        public String toCsv() {
+            return this.configuration + "," + this.phase + "," + this.nodes + "," + this.operations + "," + this.errors + ","
+                    + this.misses + "," + this.p50Millis + "," + this.p99Millis + "," + this.maxMillis + "," + this.eventMillis
+                    + "," + this.viewMillis + "," + this.rebalanceMillis + "," + this.missingSessions + ","
+                    + this.staleSessions;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(FORMAT, this.configuration, this.phase, this.nodes, this.operations, this.errors, this.misses,
+                    String.format("%.2f", this.p50Millis), String.format("%.2f", this.p99Millis),
+                    String.format("%.2f", this.maxMillis), this.eventMillis, this.viewMillis, this.rebalanceMillis,
+                    this.missingSessions, this.staleSessions);
+        }
+
+        public boolean isEvent() {
+            return !"steady".equals(this.phase);
+        }
+
+        public String getPhase() {
+            return this.phase;
+        }
+
+        public long getRebalanceMillis() {
+            return this.rebalanceMillis;
+        }
+
+        public int getMissingSessions() {
+            return this.missingSessions;
+        }
+
+        public int getStaleSessions() {
+            return this.staleSessions;
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / 1000000d;
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.infinispan.benchmark;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+import org.junit.Test;
+import org.picketbox.infinispan.session.store.InfinispanSessionStoreBuilder;
+import org.picketbox.test.infinispan.benchmark.ClusterChurnBenchmark.PhaseResult;
+import org.picketbox.test.infinispan.benchmark.ClusterChurnBenchmark.StoreFactory;
+
+/**
+ * <p>
+ * Runs the {@link ClusterChurnBenchmark} for one or more store configurations and logs a report. It is not part of the test
+ * suite and is run on its own with <code>mvn test -Dtest=ClusterChurnBenchmarkRunner</code>. The run can be changed with the
+ * following system properties:
+ * </p>
+ * <ul>
+ * <li><b>picketbox.benchmark.configurations</b>: comma separated configurations, from <b>distributed</b>,
+ * <b>distributed-l1</b>, <b>replicated</b>, <b>distributed-binary</b> and <b>distributed-async</b>. Defaults to
+ * <b>distributed</b>.</li>
+ * <li><b>picketbox.benchmark.scenario</b>: comma separated events. Defaults to <b>join,leave,crash</b>.</li>
+ * <li><b>picketbox.benchmark.nodes</b>, <b>picketbox.benchmark.sessions</b> and <b>picketbox.benchmark.workers</b>.</li>
+ * <li><b>picketbox.benchmark.report</b>: file the results are appended to as comma separated values, so runs of different
+ * configurations or versions can be compared.</li>
+ * </ul>
+ */
+public class ClusterChurnBenchmarkRunner {
+
+    private static final Logger LOGGER = Logger.getLogger(ClusterChurnBenchmarkRunner.class);
+
+    private static final String DEFAULT_SCENARIO = "join,leave,crash";
+
+    /**
+     * <p>
+     * Tests if the cluster rebalances after each event and, with the default scenario, if no session is lost. Lost updates are
+     * only reported, since updates based on stale L1 entries can overwrite newer ones while the cluster rebalances.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testClusterChurn() throws Exception {
+        String scenario = System.getProperty("picketbox.benchmark.scenario", DEFAULT_SCENARIO);
+        List<PhaseResult> results = new ArrayList<PhaseResult>();
+
+        for (String configuration : System.getProperty("picketbox.benchmark.configurations", "distributed").split(",")) {
+            ClusterChurnBenchmark benchmark = new ClusterChurnBenchmark(configuration.trim(),
+                    createStoreFactory(configuration.trim()))
+                .initialNodes(Integer.getInteger("picketbox.benchmark.nodes", 3))
+                .sessions(Integer.getInteger("picketbox.benchmark.sessions", 500))
+                .workers(Integer.getInteger("picketbox.benchmark.workers", 4))
+                .scenario(scenario.split(","));
+
+            results.addAll(benchmark.run());
+        }
+
+        StringBuilder report = new StringBuilder(PhaseResult.header());
+
+        for (PhaseResult result : results) {
+            report.append('\n').append(result);
+        }
+
+        LOGGER.info(report);
+
+        writeReport(results);
+
+        for (PhaseResult result : results) {
+            if (result.isEvent()) {
+                assertTrue("No rebalance after " + result.getPhase(), result.getRebalanceMillis() >= 0);
+
+                if (DEFAULT_SCENARIO.equals(scenario)) {
+                    assertEquals("Sessions lost after " + result.getPhase(), 0, result.getMissingSessions());
+                }
+            }
+        }
+    }
+
+    private StoreFactory createStoreFactory(final String configuration) {
+        return new StoreFactory() {
+            @Override
+            public InfinispanSessionStoreBuilder createBuilder() {
+                if ("distributed".equals(configuration)) {
+                    return new InfinispanSessionStoreBuilder().distributed().numOwners(2);
+                } else if ("distributed-l1".equals(configuration)) {
+                    return new InfinispanSessionStoreBuilder().distributed().numOwners(2).l1Lifespan(60000);
+                } else if ("replicated".equals(configuration)) {
+                    return new InfinispanSessionStoreBuilder().replicated();
+                } else if ("distributed-binary".equals(configuration)) {
+                    return new InfinispanSessionStoreBuilder().distributed().numOwners(2).storeAsBinary();
+                } else if ("distributed-async".equals(configuration)) {
+                    return new InfinispanSessionStoreBuilder().distributed().async().numOwners(2);
+                }
+
+                throw new IllegalArgumentException("Unknown configuration " + configuration + ".");
+            }
+        };
+    }
+
+    private void writeReport(List<PhaseResult> results) throws Exception {
+        String report = System.getProperty("picketbox.benchmark.report");
+
+        if (report == null) {
+            return;
+        }
+
+        File file = new File(report);
+        boolean newFile = !file.exists();
+        PrintWriter writer = new PrintWriter(new FileWriter(file, true));
+
+        try {
+            if (newFile) {
+                writer.println(PhaseResult.csvHeader());
+            }
+
+            for (PhaseResult result : results) {
+                writer.println(result.toCsv());
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.infinispan.benchmark;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.View;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.UUID;
+
+/**
+ * <p>
+ * JGroups protocol simulating the crash of a node in the same JVM. Once crashed the node silently drops every message it sends
+ * or receives, so the other nodes only notice it through failure detection, as they would for a killed process.
+ * </p>
+ * <p>
+ * It also keeps the size of the last view installed by each node. Nodes are found by the node name set in the transport
+ * configuration, which Infinispan suffixes to build the logical name of the channel. The protocol must be placed right above
+ * the transport protocol.
+ * </p>
+ */
+public class CrashSimulator extends Protocol {
+
+    private static final Set<CrashSimulator> instances = new CopyOnWriteArraySet<CrashSimulator>();
+
+    private volatile String logicalName;
+    private volatile boolean crashed;
+    private volatile int viewSize;
+
+    /**
+     * <p>
+     * Crashes the node with the given name.
+     * </p>
+     *
+     * @param nodeName
+     */
+    public static void crash(String nodeName) {
+        CrashSimulator instance = find(nodeName);
+
+        if (instance == null) {
+            throw new IllegalArgumentException("No node named " + nodeName + " uses the CrashSimulator protocol.");
+        }
+
+        instance.crashed = true;
+    }
+
+    /**
+     * <p>
+     * Returns the size of the last view installed by the node with the given name, or zero if it is unknown.
+     * </p>
+     *
+     * @param nodeName
+     * @return
+     */
+    public static int getViewSize(String nodeName) {
+        CrashSimulator instance = find(nodeName);
+
+        return instance == null ? 0 : instance.viewSize;
+    }
+
+    private static CrashSimulator find(String nodeName) {
+        for (CrashSimulator instance : instances) {
+            String logicalName = instance.logicalName;
+
+            if (logicalName != null && (logicalName.equals(nodeName) || logicalName.startsWith(nodeName + "-"))) {
+                return instance;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public Object up(Event evt) {
+        if (this.crashed && evt.getType() == Event.MSG) {
+            return null;
+        }
+
+        return super.up(evt);
+    }
+
+    @Override
+    public Object down(Event evt) {
+        switch (evt.getType()) {
+            case Event.MSG:
+                if (this.crashed) {
+                    return null;
+                }
+                break;
+            case Event.SET_LOCAL_ADDRESS:
+                this.logicalName = UUID.get((Address) evt.getArg());
+                instances.add(this);
+                break;
+            case Event.VIEW_CHANGE:
+                this.viewSize = ((View) evt.getArg()).size();
+                break;
+        }
+
+        return super.down(evt);
+    }
+
+    @Override
+    public void destroy() {
+        instances.remove(this);
+
+        super.destroy();
+    }
+
+}
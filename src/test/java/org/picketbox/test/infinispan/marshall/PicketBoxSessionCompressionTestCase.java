@@ -0,0 +1,314 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.marshall;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.factories.KnownComponentNames;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.marshall.StreamingMarshaller;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.marshall.DefaultSessionIdExternalizer;
+import org.picketbox.infinispan.marshall.DeflateSessionCodec;
+import org.picketbox.infinispan.marshall.PicketBoxSessionExternalizer;
+import org.picketbox.infinispan.marshall.SessionCompression;
+import org.picketbox.infinispan.metrics.DefaultSessionStoreMetrics;
+
+/**
+ * <p>
+ * Tests the compression of the sessions written by the {@link PicketBoxSessionExternalizer}, with cache managers standing for
+ * nodes with compression enabled, disabled, or using another codec.
+ * </p>
+ */
+public class PicketBoxSessionCompressionTestCase {
+
+    private static final int THRESHOLD = 512;
+
+    private static DefaultSessionStoreMetrics metrics = new DefaultSessionStoreMetrics();
+    private static DefaultCacheManager compressingCacheManager;
+    private static DefaultCacheManager plainCacheManager;
+    private static DefaultCacheManager customCacheManager;
+    private static CustomCodec customCodec = new CustomCodec();
+
+    @BeforeClass
+    public static void onSetup() throws Exception {
+        PicketBoxSessionExternalizer compressingExternalizer = new PicketBoxSessionExternalizer();
+
+        compressingExternalizer.setCompression(new SessionCompression(new DeflateSessionCodec(), THRESHOLD, metrics));
+
+        PicketBoxSessionExternalizer customExternalizer = new PicketBoxSessionExternalizer();
+
+        customExternalizer.setCompression(new SessionCompression(customCodec, THRESHOLD, null));
+
+        compressingCacheManager = createCacheManager(compressingExternalizer);
+        plainCacheManager = createCacheManager(new PicketBoxSessionExternalizer());
+        customCacheManager = createCacheManager(customExternalizer);
+    }
+
+    private static DefaultCacheManager createCacheManager(PicketBoxSessionExternalizer externalizer) {
+        GlobalConfigurationBuilder globalConfiguration = new GlobalConfigurationBuilder();
+
+        globalConfiguration.serialization().addAdvancedExternalizer(externalizer);
+        globalConfiguration.serialization().addAdvancedExternalizer(new DefaultSessionIdExternalizer());
+
+        return new DefaultCacheManager(globalConfiguration.build(), new ConfigurationBuilder().build());
+    }
+
+    @AfterClass
+    public static void onFinish() throws Exception {
+        compressingCacheManager.stop();
+        plainCacheManager.stop();
+        customCacheManager.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if only the sessions whose serialized form reaches the threshold are compressed, and if both are read back.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testThreshold() throws Exception {
+        StreamingMarshaller marshaller = getMarshaller(compressingCacheManager);
+        PicketBoxSession smallSession = createSession(1);
+        PicketBoxSession largeSession = createSession(100);
+        long compressions = metrics.getCompressionCount();
+
+        byte[] smallData = marshaller.objectToByteBuffer(smallSession);
+
+        assertEquals(getMarshaller(plainCacheManager).objectToByteBuffer(smallSession).length, smallData.length);
+        assertEquals(compressions, metrics.getCompressionCount());
+
+        byte[] largeData = marshaller.objectToByteBuffer(largeSession);
+
+        assertTrue(largeData.length < getMarshaller(plainCacheManager).objectToByteBuffer(largeSession).length);
+        assertEquals(compressions + 1, metrics.getCompressionCount());
+
+        assertSameSession(smallSession, (PicketBoxSession) marshaller.objectFromByteBuffer(smallData));
+        assertSameSession(largeSession, (PicketBoxSession) marshaller.objectFromByteBuffer(largeData));
+    }
+
+    /**
+     * <p>
+     * Tests if a node with compression disabled reads the sessions compressed by another node, and the other way round.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMixedNodes() throws Exception {
+        PicketBoxSession session = createSession(100);
+        StreamingMarshaller compressingMarshaller = getMarshaller(compressingCacheManager);
+        StreamingMarshaller plainMarshaller = getMarshaller(plainCacheManager);
+
+        assertSameSession(session,
+                (PicketBoxSession) plainMarshaller.objectFromByteBuffer(compressingMarshaller.objectToByteBuffer(session)));
+        assertSameSession(session,
+                (PicketBoxSession) compressingMarshaller.objectFromByteBuffer(plainMarshaller.objectToByteBuffer(session)));
+    }
+
+    /**
+     * <p>
+     * Tests if the sessions compressed by a codec are only read by the nodes where it is registered.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCodecRegistration() throws Exception {
+        PicketBoxSession session = createSession(100);
+        byte[] data = getMarshaller(customCacheManager).objectToByteBuffer(session);
+
+        try {
+            getMarshaller(plainCacheManager).objectFromByteBuffer(data);
+            fail("The session compressed by an unregistered codec was read.");
+        } catch (IOException expected) {
+        }
+
+        PicketBoxSessionExternalizer externalizer = new PicketBoxSessionExternalizer();
+
+        externalizer.addCodec(new CustomCodec());
+
+        DefaultCacheManager cacheManager = createCacheManager(externalizer);
+
+        try {
+            assertSameSession(session, (PicketBoxSession) getMarshaller(cacheManager).objectFromByteBuffer(data));
+        } finally {
+            cacheManager.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if a corrupted compressed length is rejected before the compressed data is allocated.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidLength() throws Exception {
+        byte[] data = getMarshaller(customCacheManager).objectToByteBuffer(createSession(100));
+        ByteBuffer header = ByteBuffer.allocate(9).put(CustomCodec.ID).putInt(customCodec.length)
+                .putInt(customCodec.compressedLength);
+        int offset = indexOf(data, header.array());
+
+        assertTrue(offset >= 0);
+
+        ByteBuffer.wrap(data).putInt(offset + 5, Integer.MAX_VALUE);
+
+        PicketBoxSessionExternalizer externalizer = new PicketBoxSessionExternalizer();
+
+        externalizer.addCodec(new CustomCodec());
+
+        DefaultCacheManager cacheManager = createCacheManager(externalizer);
+
+        try {
+            getMarshaller(cacheManager).objectFromByteBuffer(data);
+            fail("The session with a corrupted length was read.");
+        } catch (IOException expected) {
+        } finally {
+            cacheManager.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the deflate codec rejects an invalid length before allocating the decompressed data.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDeflateInvalidLength() throws Exception {
+        DeflateSessionCodec codec = new DeflateSessionCodec();
+        byte[] compressed = codec.compress(new byte[THRESHOLD]);
+
+        for (int length : new int[] { -1, Integer.MAX_VALUE }) {
+            try {
+                codec.decompress(compressed, length);
+                fail("The length " + length + " was accepted.");
+            } catch (IOException expected) {
+            }
+        }
+
+        assertEquals(THRESHOLD, codec.decompress(compressed, THRESHOLD).length);
+    }
+
+    /**
+     * <p>
+     * Tests if marshalling a session to measure it does not compress it.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUncompressedBytes() throws Exception {
+        PicketBoxSession session = createSession(100);
+        long compressions = metrics.getCompressionCount();
+        byte[] data = PicketBoxSessionExternalizer.toUncompressedBytes(getMarshaller(compressingCacheManager), session);
+
+        assertEquals(getMarshaller(plainCacheManager).objectToByteBuffer(session).length, data.length);
+        assertEquals(compressions, metrics.getCompressionCount());
+        assertTrue(getMarshaller(compressingCacheManager).objectToByteBuffer(session).length < data.length);
+    }
+
+    private void assertSameSession(PicketBoxSession expected, PicketBoxSession actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getAttributes(), actual.getAttributes());
+    }
+
+    private int indexOf(byte[] data, byte[] sequence) {
+        for (int i = 0; i <= data.length - sequence.length; i++) {
+            int j = 0;
+
+            while (j < sequence.length && data[i + j] == sequence[j]) {
+                j++;
+            }
+
+            if (j == sequence.length) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private StreamingMarshaller getMarshaller(DefaultCacheManager cacheManager) {
+        return cacheManager.getCache().getAdvancedCache().getComponentRegistry()
+                .getComponent(StreamingMarshaller.class, KnownComponentNames.CACHE_MARSHALLER);
+    }
+
+    private PicketBoxSession createSession(int roles) {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+        StringBuilder value = new StringBuilder();
+
+        for (int i = 0; i < roles; i++) {
+            value.append("role-").append(i % 10).append(',');
+        }
+
+        session.setAttribute("username", "admin");
+        session.setAttribute("roles", value.toString());
+
+        return session;
+    }
+
+    /**
+     * <p>
+     * Deflate codec registered with another id, keeping the sizes of the last session compressed.
+     * </p>
+     */
+    private static class CustomCodec extends DeflateSessionCodec {
+
+        private static final byte ID = 42;
+
+        private volatile int length;
+        private volatile int compressedLength;
+
+        @Override
+        public byte getId() {
+            return ID;
+        }
+
+        @Override
+        public byte[] compress(byte[] data) throws IOException {
+            byte[] compressed = super.compress(data);
+
+            this.length = data.length;
+            this.compressedLength = compressed.length;
+
+            return compressed;
+        }
+    }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.infinispan.marshall;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.factories.KnownComponentNames;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.marshall.StreamingMarshaller;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.marshall.DefaultSessionIdExternalizer;
+import org.picketbox.infinispan.marshall.LazyPicketBoxSession;
+import org.picketbox.infinispan.marshall.PicketBoxSessionExternalizer;
+import org.picketbox.infinispan.marshall.TrackedPicketBoxSession;
+
+/**
+ * <p>
+ * Compares the size of {@link PicketBoxSession} instances written with the {@link PicketBoxSessionExternalizer} against the
+ * default Java serialization path.
+ * </p>
+ */
+public class PicketBoxSessionExternalizerTestCase {
+
+    private static DefaultCacheManager defaultCacheManager;
+    private static DefaultCacheManager externalizerCacheManager;
+    private static DefaultCacheManager lazyCacheManager;
+
+    @BeforeClass
+    public static void onSetup() throws Exception {
+        defaultCacheManager = new DefaultCacheManager(new GlobalConfigurationBuilder().build(),
+                new ConfigurationBuilder().build());
+
+        GlobalConfigurationBuilder globalConfiguration = new GlobalConfigurationBuilder();
+
+        globalConfiguration.serialization().addAdvancedExternalizer(new PicketBoxSessionExternalizer());
+        globalConfiguration.serialization().addAdvancedExternalizer(new DefaultSessionIdExternalizer());
+
+        externalizerCacheManager = new DefaultCacheManager(globalConfiguration.build(), new ConfigurationBuilder().build());
+
+        PicketBoxSessionExternalizer lazyExternalizer = new PicketBoxSessionExternalizer();
+
+        lazyExternalizer.setLazyAttributes(true);
+
+        globalConfiguration = new GlobalConfigurationBuilder();
+
+        globalConfiguration.serialization().addAdvancedExternalizer(lazyExternalizer);
+        globalConfiguration.serialization().addAdvancedExternalizer(new DefaultSessionIdExternalizer());
+
+        lazyCacheManager = new DefaultCacheManager(globalConfiguration.build(), new ConfigurationBuilder().build());
+    }
+
+    @AfterClass
+    public static void onFinish() throws Exception {
+        defaultCacheManager.stop();
+        externalizerCacheManager.stop();
+        lazyCacheManager.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if a session is properly written and read using the {@link PicketBoxSessionExternalizer}, and if the read session
+     * counts its modifications from the state read.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        PicketBoxSession session = createSession();
+        StreamingMarshaller marshaller = getMarshaller(externalizerCacheManager);
+
+        TrackedPicketBoxSession readSession = (TrackedPicketBoxSession) marshaller.objectFromByteBuffer(marshaller
+                .objectToByteBuffer(session));
+
+        assertEquals(session.getId(), readSession.getId());
+        assertTrue(readSession.isValid());
+        assertEquals(session.getAttributes(), readSession.getAttributes());
+        assertFalse(readSession.isModified());
+
+        assertEquals("admin", readSession.getAttribute("username"));
+        assertFalse(readSession.isModified());
+
+        readSession.setAttribute("locale", "pt_BR");
+
+        assertTrue(readSession.isModified());
+    }
+
+    /**
+     * <p>
+     * Tests if sessions written with lazy attributes only deserialize the attributes that are read, and if the attributes never
+     * read are written again unchanged.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLazyAttributes() throws Exception {
+        PicketBoxSession session = createSession();
+        StreamingMarshaller marshaller = getMarshaller(lazyCacheManager);
+
+        LazyPicketBoxSession readSession = (LazyPicketBoxSession) marshaller.objectFromByteBuffer(marshaller
+                .objectToByteBuffer(session));
+
+        assertEquals(session.getId(), readSession.getId());
+        assertEquals(3, readSession.getSerializedAttributeCount());
+        assertEquals("admin", readSession.getAttribute("username"));
+        assertEquals(2, readSession.getSerializedAttributeCount());
+
+        readSession.setAttribute("locale", "pt_BR");
+        readSession.setAttribute("theme", "dark");
+
+        assertEquals(1, readSession.getSerializedAttributeCount());
+
+        LazyPicketBoxSession rereadSession = (LazyPicketBoxSession) marshaller.objectFromByteBuffer(marshaller
+                .objectToByteBuffer(readSession));
+
+        assertEquals(4, rereadSession.getSerializedAttributeCount());
+        assertEquals(session.getAttribute("loginTime"), rereadSession.getAttribute("loginTime"));
+        assertEquals("pt_BR", rereadSession.getAttribute("locale"));
+        assertEquals("dark", rereadSession.getAttribute("theme"));
+
+        readSession.invalidate(false);
+
+        PicketBoxSession deserializedSession = (PicketBoxSession) deserialize(serialize(readSession));
+
+        assertFalse(deserializedSession instanceof LazyPicketBoxSession);
+        assertFalse(deserializedSession.isValid());
+        assertEquals(readSession.getAttributes(), deserializedSession.getAttributes());
+    }
+
+    /**
+     * <p>
+     * Tests if the externalized form is smaller than the Java serialization and the default marshaller forms. Their throughput
+     * is compared by the <code>SessionMarshallingBenchmark</code> of the benchmarks module.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSize() throws Exception {
+        PicketBoxSession session = createSession();
+
+        int javaSerializationSize = serialize(session).length;
+        int defaultSize = getMarshaller(defaultCacheManager).objectToByteBuffer(session).length;
+        int externalizerSize = getMarshaller(externalizerCacheManager).objectToByteBuffer(session).length;
+
+        assertTrue(externalizerSize < javaSerializationSize);
+        assertTrue(externalizerSize < defaultSize);
+    }
+
+    private byte[] serialize(Object object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+
+        output.writeObject(object);
+        output.close();
+
+        return bytes.toByteArray();
+    }
+
+    private Object deserialize(byte[] data) throws Exception {
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data));
+
+        try {
+            return input.readObject();
+        } finally {
+            input.close();
+        }
+    }
+
+    private StreamingMarshaller getMarshaller(DefaultCacheManager cacheManager) {
+        return cacheManager.getCache().getAdvancedCache().getComponentRegistry()
+                .getComponent(StreamingMarshaller.class, KnownComponentNames.CACHE_MARSHALLER);
+    }
+
+    private PicketBoxSession createSession() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("username", "admin");
+        session.setAttribute("loginTime", System.currentTimeMillis());
+        session.setAttribute("locale", "en_US");
+
+        return session;
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.metrics;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.metrics.DefaultSessionStoreMetrics;
+import org.picketbox.infinispan.metrics.LatencyHistogram;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.InfinispanSessionStoreBuilder;
+
+/**
+ * <p>
+ * Tests the {@link DefaultSessionStoreMetrics} collected by an {@link InfinispanSessionStore} and their exposure through JMX.
+ * </p>
+ */
+public class DefaultSessionStoreMetricsTestCase {
+
+    private static final String OBJECT_NAME_PATTERN = "org.picketbox.infinispan:type=SessionStore,*";
+    private static final String OBJECT_NAME_PREFIX = "org.picketbox.infinispan:type=SessionStore,name=";
+    private static final String CACHE_NAME = "picketbox-session-cache";
+
+    /**
+     * <p>
+     * Tests if the percentiles of the {@link LatencyHistogram} are reported within a factor of two and never above the maximum.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLatencyHistogram() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50500, histogram.getAverage());
+        assertEquals(100000, histogram.getMax());
+
+        long median = histogram.getPercentile(50);
+
+        assertTrue(median >= 50000 && median < 100000);
+        assertEquals(100000, histogram.getPercentile(99));
+
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    /**
+     * <p>
+     * Tests if the operations of a store are counted and exposed by its MBean, and if the MBean is unregistered when the
+     * store is stopped.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOperationsAreExposedThroughJmx() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Set<ObjectName> existingNames = server.queryNames(new ObjectName(OBJECT_NAME_PATTERN), null);
+
+        InfinispanSessionStore store = new InfinispanSessionStoreBuilder().local().statistics().build();
+
+        store.start();
+
+        ObjectName objectName;
+
+        try {
+            PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+            store.store(session);
+            store.load(session.getId());
+            store.update(session);
+            store.remove(session.getId());
+            store.load(session.getId());
+
+            Set<ObjectName> names = server.queryNames(new ObjectName(OBJECT_NAME_PATTERN), null);
+
+            names.removeAll(existingNames);
+
+            assertEquals(1, names.size());
+
+            objectName = names.iterator().next();
+
+            assertEquals(new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(CACHE_NAME)), objectName);
+
+            assertEquals(2L, server.getAttribute(objectName, "LoadCount"));
+            assertEquals(1L, server.getAttribute(objectName, "LoadHits"));
+            assertEquals(0.5, server.getAttribute(objectName, "LoadHitRatio"));
+            assertEquals(1L, server.getAttribute(objectName, "StoreCount"));
+            assertEquals(1L, server.getAttribute(objectName, "UpdateCount"));
+            assertEquals(1L, server.getAttribute(objectName, "RemoveCount"));
+
+            server.invoke(objectName, "reset", null, null);
+
+            assertEquals(0L, server.getAttribute(objectName, "LoadCount"));
+            assertEquals(0L, server.getAttribute(objectName, "StoreCount"));
+        } finally {
+            store.stop();
+        }
+
+        assertFalse(server.isRegistered(objectName));
+    }
+
+    /**
+     * <p>
+     * Tests if the statistics of stores of the same cache are registered under the name given to each store, and if a store
+     * whose statistics name is already registered fails to start.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStatisticsNames() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        InfinispanSessionStore storeA = new InfinispanSessionStoreBuilder().local().statistics("realmA").build();
+        InfinispanSessionStore storeB = new InfinispanSessionStoreBuilder().local().statistics("realmB").build();
+        InfinispanSessionStore duplicateStore = new InfinispanSessionStoreBuilder().local().statistics("realmA").build();
+
+        storeA.start();
+
+        try {
+            storeB.start();
+
+            try {
+                assertTrue(server.isRegistered(new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(CACHE_NAME + ".realmA"))));
+                assertTrue(server.isRegistered(new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(CACHE_NAME + ".realmB"))));
+
+                try {
+                    duplicateStore.start();
+                    fail("The statistics of two stores can not be registered with the same name.");
+                } catch (IllegalStateException expected) {
+                }
+
+                assertTrue(server.isRegistered(new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(CACHE_NAME + ".realmA"))));
+            } finally {
+                storeB.stop();
+            }
+        } finally {
+            storeA.stop();
+        }
+    }
+
+}
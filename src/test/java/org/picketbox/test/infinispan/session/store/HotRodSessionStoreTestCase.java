@@ -0,0 +1,298 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.server.hotrod.HotRodServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+import org.picketbox.infinispan.session.store.HotRodSessionStore;
+import org.picketbox.infinispan.session.store.HotRodSessionStoreBuilder;
+import org.picketbox.infinispan.session.store.WriteMode;
+
+/**
+ * <p>
+ * Tests the {@link HotRodSessionStore} against a Hot Rod server running in the same JVM.
+ * </p>
+ */
+public class HotRodSessionStoreTestCase {
+
+    private static final String CACHE_NAME = "picketbox-hotrod-test";
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 11322;
+
+    private static DefaultCacheManager serverCacheManager;
+    private static HotRodServer server;
+
+    /**
+     * <p>
+     * Starts the Hot Rod server and defines the session cache.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @BeforeClass
+    public static void onSetup() throws Exception {
+        serverCacheManager = new DefaultCacheManager();
+        serverCacheManager.defineConfiguration(CACHE_NAME, new ConfigurationBuilder().build());
+        serverCacheManager.getCache(CACHE_NAME);
+
+        Properties properties = new Properties();
+
+        properties.setProperty("infinispan.server.host", HOST);
+        properties.setProperty("infinispan.server.port", String.valueOf(PORT));
+
+        server = new HotRodServer();
+        server.start(properties, serverCacheManager);
+    }
+
+    @AfterClass
+    public static void onFinish() throws Exception {
+        server.stop();
+        serverCacheManager.stop();
+    }
+
+    /**
+     * <p>
+     * Tests the session lifecycle using synchronous writes.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStoreLoadAndRemove() throws Exception {
+        HotRodSessionStore store = createBuilder().maxActive(4).sessionTimeout(30).build();
+
+        store.start();
+
+        try {
+            PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+            session.setAttribute("attributeA", "valueA");
+
+            store.store(session);
+
+            PicketBoxSession loadedSession = store.load(session.getId());
+
+            assertNotNull(loadedSession);
+            assertEquals(session.getId(), loadedSession.getId());
+            assertEquals("valueA", loadedSession.getAttribute("attributeA"));
+
+            session.setAttribute("attributeA", "changedValueA");
+
+            store.update(session);
+
+            assertEquals("changedValueA", store.load(session.getId()).getAttribute("attributeA"));
+
+            store.remove(session.getId());
+
+            assertNull(store.load(session.getId()));
+        } finally {
+            store.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests the asynchronous writes and the concurrent reads of many sessions.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAsyncWrites() throws Exception {
+        HotRodSessionStore store = createBuilder().writeMode(WriteMode.ASYNC).maxPendingWrites(16).build();
+
+        store.start();
+
+        try {
+            List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+            List<SessionId<? extends Serializable>> ids = new ArrayList<SessionId<? extends Serializable>>();
+
+            for (int i = 0; i < 100; i++) {
+                PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+                session.setAttribute("attributeA", "value" + i);
+
+                store.store(session);
+
+                sessions.add(session);
+                ids.add(session.getId());
+            }
+
+            assertTrue(store.awaitPendingWrites(10, TimeUnit.SECONDS));
+            assertEquals(sessions.size(), store.loadAll(ids).size());
+
+            for (PicketBoxSession session : sessions) {
+                store.remove(session.getId());
+            }
+
+            assertTrue(store.awaitPendingWrites(10, TimeUnit.SECONDS));
+            assertTrue(store.loadAll(ids).isEmpty());
+        } finally {
+            store.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if an asynchronous write failing in the background is reported once by the next wait for the pending writes, and
+     * again when the store is stopped.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFailedAsyncWritesAreReported() throws Exception {
+        HotRodSessionStore store = createBuilder().writeMode(WriteMode.ASYNC).build();
+
+        store.start();
+
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        // fails when marshalled by the client
+        session.setAttribute("attributeA", new Object());
+
+        try {
+            store.store(session);
+
+            try {
+                store.awaitPendingWrites(10, TimeUnit.SECONDS);
+                fail("The failed write was not reported.");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().startsWith("1 asynchronous writes"));
+            }
+
+            assertTrue(store.awaitPendingWrites(10, TimeUnit.SECONDS));
+
+            store.store(session);
+        } finally {
+            try {
+                store.stop();
+                fail("The failed write was not reported when stopping.");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().startsWith("1 asynchronous writes"));
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the sessions stored by one client are seen by another one and if near cache entries expire.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNearCache() throws Exception {
+        HotRodSessionStore storeA = createBuilder().nearCache(100, 500).build();
+        HotRodSessionStore storeB = createBuilder().nearCache(100, 500).build();
+
+        storeA.start();
+        storeB.start();
+
+        try {
+            PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+            session.setAttribute("attributeA", "valueA");
+
+            storeA.store(session);
+
+            assertEquals("valueA", storeB.load(session.getId()).getAttribute("attributeA"));
+
+            session.setAttribute("attributeA", "changedValueA");
+
+            storeA.update(session);
+
+            Thread.sleep(1000);
+
+            assertEquals("changedValueA", storeB.load(session.getId()).getAttribute("attributeA"));
+
+            storeB.remove(session.getId());
+
+            assertNull(storeB.load(session.getId()));
+        } finally {
+            storeA.stop();
+            storeB.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the store fails to start when the servers do not define the remote cache.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUndefinedCache() throws Exception {
+        HotRodSessionStore store = createBuilder().cacheName("picketbox-undefined").build();
+
+        try {
+            store.start();
+            fail("The store started without a remote cache.");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the store fails to start when its near cache entries never expire, since removals made through other clients
+     * would never be seen.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNearCacheWithoutTimeToLive() throws Exception {
+        HotRodSessionStore store = createBuilder().nearCache(100, 0).build();
+
+        try {
+            store.start();
+            fail("The store started with a near cache never expiring its entries.");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private HotRodSessionStoreBuilder createBuilder() {
+        return new HotRodSessionStoreBuilder().cacheName(CACHE_NAME).server(HOST, PORT);
+    }
+
+}
@@ -0,0 +1,383 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.Cache;
+import org.infinispan.commands.write.PutMapCommand;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.container.entries.InternalCacheEntry;
+import org.infinispan.context.InvocationContext;
+import org.infinispan.interceptors.base.CommandInterceptor;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+import org.junit.After;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.WriteMode;
+
+/**
+ * <p>
+ * Tests the access times of the {@link InfinispanSessionStore}: the max idle time kept by the session entries as a safety
+ * bound, the removal of the access times with the {@link WriteMode#ASYNC} write mode or during a flush, and the removal of
+ * the expired sessions by the primary owner of their access time.
+ * </p>
+ */
+public class InfinispanSessionStoreAccessTimesTestCase {
+
+    private static final String CACHE_NAME = "picketbox-session-cache";
+    private static final String ACCESS_CACHE_NAME = CACHE_NAME + ".access";
+    private static final int SESSION_TIMEOUT = 1;
+    private static final long TOUCH_INTERVAL = 100;
+
+    private List<DefaultCacheManager> cacheManagers = new ArrayList<DefaultCacheManager>();
+    private List<InfinispanSessionStore> stores = new ArrayList<InfinispanSessionStore>();
+
+    @After
+    public void onFinish() throws Exception {
+        for (InfinispanSessionStore store : this.stores) {
+            store.stop();
+        }
+
+        // the coordinator, started first, is stopped last
+        Collections.reverse(this.cacheManagers);
+
+        for (DefaultCacheManager cacheManager : this.cacheManagers) {
+            cacheManager.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the session entries keep twice the expiration time of the access times as max idle time.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSessionEntryKeepsSafetyBound() throws Exception {
+        DefaultCacheManager cacheManager = createCacheManager(null, CacheMode.LOCAL);
+        InfinispanSessionStore store = createStore(cacheManager, TOUCH_INTERVAL, WriteMode.SYNC);
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        store.store(session);
+
+        long expirationTime = TimeUnit.MINUTES.toMillis(SESSION_TIMEOUT) + TOUCH_INTERVAL;
+
+        assertEquals(2 * expirationTime, getEntry(cacheManager, session).getMaxIdle());
+    }
+
+    /**
+     * <p>
+     * Tests if the idle time of a session entry is reset when an access to the session is flushed, without loading it.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFlushedAccessResetsIdleTime() throws Exception {
+        DefaultCacheManager cacheManager = createCacheManager(null, CacheMode.LOCAL);
+        InfinispanSessionStore store = createStore(cacheManager, TOUCH_INTERVAL, WriteMode.SYNC);
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        store.store(session);
+
+        // lets the access recorded when storing the session be flushed
+        Thread.sleep(3 * TOUCH_INTERVAL);
+
+        long lastUsed = getEntry(cacheManager, session).getLastUsed();
+
+        Thread.sleep(3 * TOUCH_INTERVAL);
+
+        assertEquals(lastUsed, getEntry(cacheManager, session).getLastUsed());
+
+        store.touch(session.getId());
+
+        Thread.sleep(3 * TOUCH_INTERVAL);
+
+        assertTrue(getEntry(cacheManager, session).getLastUsed() > lastUsed);
+    }
+
+    /**
+     * <p>
+     * Tests if removing a session with the {@link WriteMode#ASYNC} write mode does not wait for the removal of its access time
+     * on the other nodes.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAsyncRemovalDoesNotWait() throws Exception {
+        DefaultCacheManager cacheManagerA = createCacheManager("picketbox-access-async-test", CacheMode.REPL_SYNC);
+        DefaultCacheManager cacheManagerB = createCacheManager("picketbox-access-async-test", CacheMode.REPL_SYNC);
+        InfinispanSessionStore storeA = createStore(cacheManagerA, TOUCH_INTERVAL, WriteMode.ASYNC);
+
+        createStore(cacheManagerB, TOUCH_INTERVAL, WriteMode.ASYNC);
+
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        storeA.store(session);
+        storeA.awaitPendingWrites(10, TimeUnit.SECONDS);
+
+        Cache<Serializable, Long> accessCacheB = cacheManagerB.getCache(ACCESS_CACHE_NAME);
+        long deadline = System.currentTimeMillis() + 10000;
+
+        while (!accessCacheB.containsKey(session.getId().getId()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(TOUCH_INTERVAL);
+        }
+
+        assertTrue(accessCacheB.containsKey(session.getId().getId()));
+
+        SlowRemoval slowRemoval = new SlowRemoval(2000);
+
+        accessCacheB.addListener(slowRemoval);
+
+        long start = System.currentTimeMillis();
+
+        storeA.remove(session.getId());
+
+        assertTrue(System.currentTimeMillis() - start < slowRemoval.delay / 2);
+    }
+
+    /**
+     * <p>
+     * Tests if an access time taken by a flush is not written after the removal of its session. The flush is held before
+     * writing its batch while the session is removed.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRemovalDuringFlush() throws Exception {
+        DefaultCacheManager cacheManager = createCacheManager(null, CacheMode.LOCAL);
+        final InfinispanSessionStore store = createStore(cacheManager, TOUCH_INTERVAL, WriteMode.SYNC);
+        final PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+        Cache<Serializable, Long> accessCache = cacheManager.getCache(ACCESS_CACHE_NAME);
+        HeldFlush heldFlush = new HeldFlush(session.getId().getId());
+
+        accessCache.getAdvancedCache().addInterceptor(heldFlush, 0);
+
+        store.store(session);
+
+        assertTrue(heldFlush.held.await(10, TimeUnit.SECONDS));
+
+        Thread removal = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                store.remove(session.getId());
+            }
+        });
+
+        removal.start();
+
+        // an unguarded removal completes meanwhile, before the flush writes the access time
+        removal.join(5 * TOUCH_INTERVAL);
+
+        heldFlush.release.countDown();
+
+        removal.join(10000);
+
+        assertFalse(removal.isAlive());
+        assertFalse(accessCache.containsKey(session.getId().getId()));
+        assertNull(store.load(session.getId()));
+    }
+
+    /**
+     * <p>
+     * Tests if the sessions not accessed for longer than the session timeout are removed from every node of a distributed
+     * cache, each by a single node, while the sessions accessed on another node are kept.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testExpiredSessionsAreRemovedOnce() throws Exception {
+        List<InfinispanSessionStore> nodes = new ArrayList<InfinispanSessionStore>();
+        RemovalCounter removals = new RemovalCounter();
+
+        for (int i = 0; i < 3; i++) {
+            DefaultCacheManager cacheManager = createCacheManager("picketbox-access-expiration-test", CacheMode.DIST_SYNC);
+
+            nodes.add(createStore(cacheManager, 5 * TOUCH_INTERVAL, WriteMode.SYNC));
+            cacheManager.getCache(CACHE_NAME).addListener(removals);
+        }
+
+        List<PicketBoxSession> accessedSessions = new ArrayList<PicketBoxSession>();
+        List<PicketBoxSession> idleSessions = new ArrayList<PicketBoxSession>();
+
+        for (int i = 0; i < 10; i++) {
+            PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+            nodes.get(0).store(session);
+            (i % 2 == 0 ? accessedSessions : idleSessions).add(session);
+        }
+
+        long end = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(SESSION_TIMEOUT) + 3000;
+
+        while (System.currentTimeMillis() < end) {
+            for (PicketBoxSession session : accessedSessions) {
+                nodes.get(1).touch(session.getId());
+            }
+
+            Thread.sleep(1000);
+        }
+
+        for (InfinispanSessionStore node : nodes) {
+            for (PicketBoxSession session : accessedSessions) {
+                assertNotNull(node.load(session.getId()));
+            }
+
+            for (PicketBoxSession session : idleSessions) {
+                assertNull(node.load(session.getId()));
+            }
+        }
+
+        assertEquals(idleSessions.size(), removals.get());
+    }
+
+    private DefaultCacheManager createCacheManager(String clusterName, CacheMode cacheMode) {
+        GlobalConfigurationBuilder globalConfiguration = new GlobalConfigurationBuilder();
+
+        if (clusterName != null) {
+            globalConfiguration.transport().transport(new JGroupsTransport()).clusterName(clusterName)
+                    .addProperty("configurationFile", "jgroups.xml");
+        }
+
+        ConfigurationBuilder configuration = new ConfigurationBuilder();
+
+        configuration.clustering().cacheMode(cacheMode);
+
+        DefaultCacheManager cacheManager = new DefaultCacheManager(globalConfiguration.build(), configuration.build());
+
+        this.cacheManagers.add(cacheManager);
+
+        return cacheManager;
+    }
+
+    private InfinispanSessionStore createStore(DefaultCacheManager cacheManager, long touchInterval, WriteMode writeMode) {
+        InfinispanSessionStore store = new InfinispanSessionStore(CACHE_NAME, cacheManager);
+
+        store.setSessionTimeout(SESSION_TIMEOUT);
+        store.setTouchInterval(touchInterval);
+        store.setWriteMode(writeMode);
+        store.start();
+
+        this.stores.add(store);
+
+        return store;
+    }
+
+    private InternalCacheEntry getEntry(DefaultCacheManager cacheManager, PicketBoxSession session) {
+        return cacheManager.getCache(CACHE_NAME).getAdvancedCache().getDataContainer().peek(session.getId().getId());
+    }
+
+    /**
+     * <p>
+     * Delays the removals of entries on the node it is registered on.
+     * </p>
+     */
+    @Listener
+    public static class SlowRemoval {
+
+        private final long delay;
+
+        SlowRemoval(long delay) {
+            this.delay = delay;
+        }
+
+        @CacheEntryRemoved
+        public void removed(CacheEntryRemovedEvent<?, ?> event) throws InterruptedException {
+            if (event.isPre()) {
+                Thread.sleep(this.delay);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Holds the first batch of access times holding the given key until released.
+     * </p>
+     */
+    static class HeldFlush extends CommandInterceptor {
+
+        private final Serializable key;
+        private final CountDownLatch held = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        HeldFlush(Serializable key) {
+            this.key = key;
+        }
+
+        @Override
+        public Object visitPutMapCommand(InvocationContext ctx, PutMapCommand command) throws Throwable {
+            if (this.held.getCount() > 0 && command.getMap().containsKey(this.key)) {
+                this.held.countDown();
+                this.release.await();
+            }
+
+            return invokeNextInterceptor(ctx, command);
+        }
+    }
+
+    /**
+     * <p>
+     * Counts the entries removed by the node they are registered on.
+     * </p>
+     */
+    @Listener
+    public static class RemovalCounter {
+
+        private final AtomicInteger removals = new AtomicInteger();
+
+        @CacheEntryRemoved
+        public void removed(CacheEntryRemovedEvent<?, ?> event) {
+            if (event.isPre() && event.isOriginLocal()) {
+                this.removals.incrementAndGet();
+            }
+        }
+
+        int get() {
+            return this.removals.get();
+        }
+    }
+
+}
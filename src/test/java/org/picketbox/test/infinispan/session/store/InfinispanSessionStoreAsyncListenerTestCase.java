@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.session.SessionInvalidator;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.InfinispanSessionStoreBuilder;
+
+/**
+ * <p>
+ * Tests the {@link InfinispanSessionStore} invalidating the sessions removed by other nodes with a {@link SessionInvalidator},
+ * without a near cache, in a cluster of two nodes. The sessions are replicated without being stored as binary, so a session
+ * loaded from a node is the instance held by its cache.
+ * </p>
+ */
+public class InfinispanSessionStoreAsyncListenerTestCase {
+
+    private static final long TIMEOUT = 10000;
+
+    private static InfinispanSessionStore storeA;
+    private static InfinispanSessionStore storeB;
+
+    @BeforeClass
+    public static void onSetup() throws Exception {
+        storeA = createStore();
+        storeB = createStore();
+    }
+
+    private static InfinispanSessionStore createStore() {
+        InfinispanSessionStore store = new InfinispanSessionStoreBuilder()
+            .replicated()
+            .sync()
+            .asyncListener(16)
+            .clusterName("picketbox-async-listener-test")
+            .jgroupsConfigurationFile("jgroups.xml")
+            .build();
+
+        store.start();
+
+        return store;
+    }
+
+    @AfterClass
+    public static void onFinish() throws Exception {
+        storeA.stop();
+        storeB.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if a session removed on one node is invalidated on the other, where it is not held by a near cache.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRemovedSessionIsInvalidated() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        storeA.store(session);
+
+        PicketBoxSession loadedSession = storeB.load(session.getId());
+
+        assertNotNull(loadedSession);
+        assertTrue(loadedSession.isValid());
+
+        storeA.remove(session.getId());
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+
+        while (loadedSession.isValid() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse(loadedSession.isValid());
+        assertTrue(session.isValid());
+    }
+
+}
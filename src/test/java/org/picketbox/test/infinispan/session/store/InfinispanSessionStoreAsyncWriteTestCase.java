@@ -0,0 +1,288 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.InfinispanSessionStoreBuilder;
+import org.picketbox.infinispan.session.store.WriteMode;
+
+/**
+ * <p>
+ * Tests the {@link InfinispanSessionStore} using the {@link WriteMode#ASYNC} write mode in a cluster of two nodes.
+ * </p>
+ */
+public class InfinispanSessionStoreAsyncWriteTestCase {
+
+    private static final long TIMEOUT = 10;
+    private static final int CONCURRENT_WRITES = 8;
+
+    private static InfinispanSessionStore storeA;
+    private static InfinispanSessionStore storeB;
+
+    @BeforeClass
+    public static void onSetup() throws Exception {
+        storeA = createStore();
+        storeB = createStore();
+    }
+
+    private static InfinispanSessionStore createStore() {
+        InfinispanSessionStore store = new InfinispanSessionStoreBuilder()
+            .replicated()
+            .sync()
+            .writeMode(WriteMode.ASYNC)
+            .maxPendingWrites(4)
+            .clusterName("picketbox-async-write-test")
+            .jgroupsConfigurationFile("jgroups.xml")
+            .build();
+
+        store.start();
+
+        return store;
+    }
+
+    @AfterClass
+    public static void onFinish() throws Exception {
+        storeA.stop();
+        storeB.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if the writes are applied to the other node once awaited, even when more writes than the maximum number of pending
+     * writes are issued.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAwaitedWritesAreReplicated() throws Exception {
+        PicketBoxSession[] sessions = new PicketBoxSession[20];
+
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = new PicketBoxSession(new DefaultSessionId());
+            sessions[i].setAttribute("attributeA", "value" + i);
+
+            storeA.store(sessions[i]);
+        }
+
+        assertTrue(storeA.awaitPendingWrites(TIMEOUT, TimeUnit.SECONDS));
+
+        for (int i = 0; i < sessions.length; i++) {
+            PicketBoxSession loadedSession = storeB.load(sessions[i].getId());
+
+            assertNotNull(loadedSession);
+            assertEquals("value" + i, loadedSession.getAttribute("attributeA"));
+        }
+
+        storeA.remove(sessions[0].getId());
+
+        assertTrue(storeA.awaitPendingWrites(TIMEOUT, TimeUnit.SECONDS));
+        assertNull(storeB.load(sessions[0].getId()));
+    }
+
+    /**
+     * <p>
+     * Tests if the writes to a session are applied in the order they were issued, so the last update of a session wins and a
+     * removed session is not written again by an earlier update.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testWritesToSessionAreOrdered() throws Exception {
+        PicketBoxSession[] sessions = new PicketBoxSession[20];
+
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = new PicketBoxSession(new DefaultSessionId());
+
+            storeA.store(sessions[i]);
+
+            for (int j = 0; j < 10; j++) {
+                PicketBoxSession session = new PicketBoxSession(sessions[i].getId());
+
+                session.setAttribute("counter", j);
+
+                storeA.update(session);
+            }
+
+            if (i % 2 == 0) {
+                storeA.remove(sessions[i].getId());
+            }
+        }
+
+        assertTrue(storeA.awaitPendingWrites(TIMEOUT, TimeUnit.SECONDS));
+
+        for (int i = 0; i < sessions.length; i++) {
+            PicketBoxSession loadedSession = storeB.load(sessions[i].getId());
+
+            if (i % 2 == 0) {
+                assertNull(loadedSession);
+            } else {
+                assertEquals(9, loadedSession.getAttribute("counter"));
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the pending writes are bounded by default, so a slow cluster applies back-pressure to the callers.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPendingWritesAreBoundedByDefault() throws Exception {
+        assertTrue(new InfinispanSessionStore().getMaxPendingWrites() > 0);
+        assertTrue(new InfinispanSessionStoreBuilder().build().getMaxPendingWrites() > 0);
+    }
+
+    /**
+     * <p>
+     * Tests if the asynchronous write mode keeps as many writes in flight as concurrent callers of the synchronous write mode.
+     * Each write waits in the cache until {@link #CONCURRENT_WRITES} writes are in flight, so a write mode issuing fewer writes
+     * at the same time fails them.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAsyncWritesAreNotThrottledBelowSyncWrites() throws Exception {
+        DefaultCacheManager cacheManager = new DefaultCacheManager(new ConfigurationBuilder().build());
+
+        try {
+            for (WriteMode writeMode : new WriteMode[] { WriteMode.SYNC, WriteMode.ASYNC }) {
+                String cacheName = "picketbox-concurrent-write-test-" + writeMode;
+                final InfinispanSessionStore store = new InfinispanSessionStore(cacheName, cacheManager);
+
+                store.setWriteMode(writeMode);
+                store.setAsyncWriteThreads(CONCURRENT_WRITES);
+                store.start();
+
+                ConcurrentWrites concurrentWrites = new ConcurrentWrites();
+
+                cacheManager.getCache(cacheName).addListener(concurrentWrites);
+
+                try {
+                    List<Thread> callers = new ArrayList<Thread>();
+
+                    for (final PicketBoxSession session : createSessionsOnDistinctThreads()) {
+                        callers.add(new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                store.store(session);
+                            }
+                        }));
+                    }
+
+                    for (Thread caller : callers) {
+                        caller.start();
+                    }
+
+                    for (Thread caller : callers) {
+                        caller.join(TimeUnit.SECONDS.toMillis(2 * TIMEOUT));
+                    }
+
+                    assertTrue(store.awaitPendingWrites(2 * TIMEOUT, TimeUnit.SECONDS));
+                    assertEquals(writeMode.toString(), 0, concurrentWrites.getFailures());
+                } finally {
+                    store.stop();
+                }
+            }
+        } finally {
+            cacheManager.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Creates sessions whose writes are issued by distinct threads in the asynchronous write mode, using the same hashing as
+     * the store.
+     * </p>
+     *
+     * @return
+     */
+    private List<PicketBoxSession> createSessionsOnDistinctThreads() {
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+        Set<Integer> threads = new HashSet<Integer>();
+
+        while (sessions.size() < CONCURRENT_WRITES) {
+            PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+            if (threads.add((session.getId().getId().hashCode() & Integer.MAX_VALUE) % CONCURRENT_WRITES)) {
+                sessions.add(session);
+            }
+        }
+
+        return sessions;
+    }
+
+    /**
+     * <p>
+     * Holds each write in the cache until {@link #CONCURRENT_WRITES} writes are in flight, counting the writes that gave up.
+     * </p>
+     */
+    @Listener
+    public static class ConcurrentWrites {
+
+        private final CyclicBarrier barrier = new CyclicBarrier(CONCURRENT_WRITES);
+        private final AtomicInteger failures = new AtomicInteger();
+
+        @CacheEntryModified
+        public void modified(CacheEntryModifiedEvent<?, ?> event) {
+            if (event.isPre()) {
+                try {
+                    this.barrier.await(TIMEOUT, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    this.failures.incrementAndGet();
+                }
+            }
+        }
+
+        int getFailures() {
+            return this.failures.get();
+        }
+    }
+
+}
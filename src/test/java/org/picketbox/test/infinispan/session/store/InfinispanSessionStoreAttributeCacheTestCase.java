@@ -0,0 +1,225 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.Configuration;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.eviction.EvictionStrategy;
+import org.infinispan.manager.DefaultCacheManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.ReplicationGranularity;
+
+/**
+ * <p>
+ * Tests the configuration of the companion cache holding the session attributes when the
+ * {@link ReplicationGranularity#ATTRIBUTE} granularity is used with a bounded session cache.
+ * </p>
+ */
+public class InfinispanSessionStoreAttributeCacheTestCase {
+
+    private static final String CACHE_NAME = "picketbox-session-cache";
+    private static final String ATTRIBUTE_CACHE_NAME = CACHE_NAME + ".attributes";
+    private static final int MAX_ENTRIES = 16;
+    private static final int SESSIONS = 200;
+    private static final int HOT_SESSIONS = 4;
+    private static final int SESSION_TIMEOUT = 2;
+    private static final long NEAR_CACHE_TIME_TO_LIVE = 200;
+    private static final long SHORT_MAX_IDLE = 100;
+
+    private DefaultCacheManager cacheManager;
+    private InfinispanSessionStore store;
+
+    @Before
+    public void onSetup() throws Exception {
+        ConfigurationBuilder builder = new ConfigurationBuilder();
+
+        builder.eviction().strategy(EvictionStrategy.LRU).maxEntries(MAX_ENTRIES);
+
+        this.cacheManager = new DefaultCacheManager(builder.build());
+    }
+
+    private void startStore(long touchInterval) {
+        startStore(touchInterval, 0);
+    }
+
+    private void startStore(long touchInterval, long nearCacheTimeToLive) {
+        this.store = new InfinispanSessionStore(CACHE_NAME, this.cacheManager);
+
+        this.store.setReplicationGranularity(ReplicationGranularity.ATTRIBUTE);
+        this.store.setSessionTimeout(SESSION_TIMEOUT);
+        this.store.setTouchInterval(touchInterval);
+
+        if (nearCacheTimeToLive > 0) {
+            this.store.setNearCacheMaxEntries(MAX_ENTRIES);
+            this.store.setNearCacheTimeToLive(nearCacheTimeToLive);
+        }
+
+        this.store.start();
+    }
+
+    @After
+    public void onFinish() throws Exception {
+        if (this.store != null) {
+            this.store.stop();
+        }
+
+        this.cacheManager.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if the attribute cache is not bounded and expires the attributes after the session timeout, like the session
+     * entries.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAttributeCacheExpiresWithSessions() throws Exception {
+        startStore(0);
+
+        Configuration configuration = this.cacheManager.getCache(ATTRIBUTE_CACHE_NAME).getCacheConfiguration();
+
+        assertEquals(EvictionStrategy.NONE, configuration.eviction().strategy());
+        assertEquals(TimeUnit.MINUTES.toMillis(SESSION_TIMEOUT), configuration.expiration().maxIdle());
+    }
+
+    /**
+     * <p>
+     * Tests if the attributes expire with the session entries when the session accesses are tracked using a touch interval,
+     * the session entries then only expiring if the expired sessions were not removed with their attributes.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAttributeCacheExpiresWithSessionsWithTouchInterval() throws Exception {
+        startStore(1000);
+
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        this.store.store(session);
+
+        Cache<Object, Object> sessionCache = this.cacheManager.getCache(CACHE_NAME);
+        long maxIdle = sessionCache.getAdvancedCache().getDataContainer().peek(session.getId().getId()).getMaxIdle();
+        Configuration configuration = this.cacheManager.getCache(ATTRIBUTE_CACHE_NAME).getCacheConfiguration();
+
+        assertTrue(maxIdle > TimeUnit.MINUTES.toMillis(SESSION_TIMEOUT));
+        assertEquals(maxIdle, configuration.expiration().maxIdle());
+    }
+
+    /**
+     * <p>
+     * Tests if a session whose entry expired is no longer loaded, even though the expiration fires no cache event invalidating
+     * its near cache entry. The session entry is written again with a short max idle time, so it expires during the test.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testExpiredSessionIsNotLoaded() throws Exception {
+        startStore(0, NEAR_CACHE_TIME_TO_LIVE);
+
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("attributeA", "valueA");
+
+        this.store.store(session);
+
+        Cache<Object, Object> sessionCache = this.cacheManager.getCache(CACHE_NAME);
+        Object key = session.getId().getId();
+
+        sessionCache.put(key, sessionCache.get(key), -1, TimeUnit.MILLISECONDS, SHORT_MAX_IDLE, TimeUnit.MILLISECONDS);
+
+        assertNotNull(this.store.load(session.getId()));
+
+        Thread.sleep(2 * Math.max(SHORT_MAX_IDLE, NEAR_CACHE_TIME_TO_LIVE));
+
+        assertNull(sessionCache.get(key));
+        assertNull(this.store.load(session.getId()));
+    }
+
+    /**
+     * <p>
+     * Tests if the attributes of the sessions evicted from the session cache are evicted with them, and if the sessions left
+     * still hold all their attributes. The first sessions are kept alive by reading their entries only, without their
+     * attributes, so the session and attribute caches would not evict the same sessions on their own.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAttributesAreEvictedWithSessions() throws Exception {
+        startStore(0);
+
+        Cache<Object, Object> sessionCache = this.cacheManager.getCache(CACHE_NAME);
+        Cache<Object, Object> attributeCache = this.cacheManager.getCache(ATTRIBUTE_CACHE_NAME);
+        PicketBoxSession[] sessions = new PicketBoxSession[SESSIONS];
+
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = new PicketBoxSession(new DefaultSessionId());
+            sessions[i].setAttribute("attributeA", "valueA" + i);
+            sessions[i].setAttribute("attributeB", "valueB" + i);
+
+            this.store.store(sessions[i]);
+
+            for (int j = 0; j < Math.min(i, HOT_SESSIONS); j++) {
+                sessionCache.get(sessions[j].getId().getId());
+            }
+        }
+
+        assertTrue(sessionCache.size() < SESSIONS);
+        assertEquals(sessionCache.size(), attributeCache.size());
+
+        int loaded = 0;
+
+        for (int i = 0; i < sessions.length; i++) {
+            PicketBoxSession loadedSession = this.store.load(sessions[i].getId());
+
+            if (loadedSession != null) {
+                assertEquals(2, loadedSession.getAttributes().size());
+                assertEquals("valueA" + i, loadedSession.getAttribute("attributeA"));
+                assertEquals("valueB" + i, loadedSession.getAttribute("attributeB"));
+
+                if (i < HOT_SESSIONS) {
+                    loaded++;
+                }
+            }
+        }
+
+        assertTrue(loaded > 0);
+    }
+
+}
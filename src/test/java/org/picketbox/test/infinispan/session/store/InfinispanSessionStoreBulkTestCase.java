@@ -0,0 +1,209 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.TransactionCompleted;
+import org.infinispan.notifications.cachelistener.event.TransactionCompletedEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+import org.picketbox.infinispan.session.store.AttributePrincipalResolver;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+
+/**
+ * <p>
+ * Tests the bulk operations of the {@link InfinispanSessionStore}. The batches committed in the cache holding the principal
+ * index are counted, to check that the sessions of a bulk operation are indexed and unindexed together.
+ * </p>
+ */
+public class InfinispanSessionStoreBulkTestCase {
+
+    private static final String CACHE_NAME = "picketbox-session-cache";
+    private static final String PRINCIPAL_CACHE_NAME = CACHE_NAME + ".principals";
+    private static final String ACCESS_CACHE_NAME = CACHE_NAME + ".access";
+    private static final String PRINCIPAL_ATTRIBUTE = "user";
+    private static final int SESSIONS = 20;
+    private static final long TOUCH_INTERVAL = 100;
+
+    private DefaultCacheManager cacheManager;
+    private InfinispanSessionStore store;
+    private BatchCounter principalCacheBatches = new BatchCounter();
+
+    @Before
+    public void onSetup() throws Exception {
+        this.cacheManager = new DefaultCacheManager(new ConfigurationBuilder().build());
+        this.store = new InfinispanSessionStore(CACHE_NAME, this.cacheManager);
+
+        this.store.setPrincipalResolver(new AttributePrincipalResolver(PRINCIPAL_ATTRIBUTE));
+        this.store.setTouchInterval(TOUCH_INTERVAL);
+        this.store.start();
+
+        this.cacheManager.getCache(PRINCIPAL_CACHE_NAME).addListener(this.principalCacheBatches);
+    }
+
+    @After
+    public void onFinish() throws Exception {
+        this.store.stop();
+        this.cacheManager.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if the sessions written by <code>storeAll</code> are all read back by <code>loadAll</code> and indexed by principal
+     * in a single batch, and if storing them again with the same principals does not touch the index.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStoreAll() throws Exception {
+        List<PicketBoxSession> sessions = createSessions();
+
+        this.store.storeAll(sessions);
+
+        assertEquals(1, this.principalCacheBatches.get());
+        assertEquals(SESSIONS / 2, this.store.findByPrincipal("bob").size());
+        assertEquals(SESSIONS / 2, this.store.findByPrincipal("alice").size());
+
+        List<PicketBoxSession> loaded = this.store.loadAll(getIds(sessions));
+
+        assertEquals(SESSIONS, loaded.size());
+
+        Set<Serializable> loadedKeys = new HashSet<Serializable>();
+
+        for (PicketBoxSession session : loaded) {
+            loadedKeys.add(session.getId().getId());
+        }
+
+        for (PicketBoxSession session : sessions) {
+            assertTrue(loadedKeys.contains(session.getId().getId()));
+        }
+
+        this.principalCacheBatches.reset();
+
+        this.store.storeAll(sessions);
+
+        assertEquals(0, this.principalCacheBatches.get());
+    }
+
+    /**
+     * <p>
+     * Tests if <code>removeAll</code> removes the sessions, unindexes them in a single batch and discards their access times.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRemoveAll() throws Exception {
+        List<PicketBoxSession> sessions = createSessions();
+        Cache<Object, Object> accessCache = this.cacheManager.getCache(ACCESS_CACHE_NAME);
+
+        this.store.storeAll(sessions);
+
+        // wait for the access times recorded by storeAll to be flushed
+        long deadline = System.currentTimeMillis() + 10 * TOUCH_INTERVAL;
+
+        while (accessCache.size() < SESSIONS && System.currentTimeMillis() < deadline) {
+            Thread.sleep(TOUCH_INTERVAL / 10);
+        }
+
+        assertEquals(SESSIONS, accessCache.size());
+
+        this.principalCacheBatches.reset();
+
+        this.store.removeAll(getIds(sessions));
+
+        assertEquals(1, this.principalCacheBatches.get());
+        assertEquals(0, this.store.loadAll(getIds(sessions)).size());
+        assertEquals(0, this.store.findByPrincipal("bob").size());
+        assertEquals(0, this.store.findByPrincipal("alice").size());
+        assertEquals(0, accessCache.size());
+    }
+
+    private List<PicketBoxSession> createSessions() {
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (int i = 0; i < SESSIONS; i++) {
+            PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+            session.setAttribute(PRINCIPAL_ATTRIBUTE, i % 2 == 0 ? "bob" : "alice");
+
+            sessions.add(session);
+        }
+
+        return sessions;
+    }
+
+    private List<SessionId<? extends Serializable>> getIds(List<PicketBoxSession> sessions) {
+        List<SessionId<? extends Serializable>> ids = new ArrayList<SessionId<? extends Serializable>>();
+
+        for (PicketBoxSession session : sessions) {
+            ids.add(session.getId());
+        }
+
+        return ids;
+    }
+
+    /**
+     * <p>
+     * Counts the batches committed in a cache.
+     * </p>
+     */
+    @Listener
+    public static class BatchCounter {
+
+        private final AtomicInteger batches = new AtomicInteger();
+
+        @TransactionCompleted
+        public void completed(TransactionCompletedEvent<?, ?> event) {
+            if (event.isTransactionSuccessful()) {
+                this.batches.incrementAndGet();
+            }
+        }
+
+        int get() {
+            return this.batches.get();
+        }
+
+        void reset() {
+            this.batches.set(0);
+        }
+    }
+
+}
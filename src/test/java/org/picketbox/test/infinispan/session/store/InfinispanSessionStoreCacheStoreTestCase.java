@@ -0,0 +1,198 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.InfinispanSessionStoreBuilder;
+
+/**
+ * <p>
+ * Tests if the sessions persisted in the file cache store of each node are available after all the nodes are restarted,
+ * with the replication and distribution modes. The distributed caches keep a copy of each session on every node, the file
+ * cache stores being local to each node.
+ * </p>
+ */
+public class InfinispanSessionStoreCacheStoreTestCase {
+
+    private static final int NODES = 3;
+    private static final int SESSIONS = 500;
+    private static final long STARTUP_BUDGET = 30000;
+    private static final File CACHE_STORE_LOCATION = new File("target/cache-store");
+
+    private List<InfinispanSessionStore> stores = new ArrayList<InfinispanSessionStore>();
+
+    @Before
+    public void onSetup() throws Exception {
+        delete(CACHE_STORE_LOCATION);
+    }
+
+    @After
+    public void onFinish() throws Exception {
+        stopNodes();
+        delete(CACHE_STORE_LOCATION);
+    }
+
+    /**
+     * <p>
+     * Tests the restart of all nodes when every write is stored in the background.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRestartWithWriteBehind() throws Exception {
+        assertSessionsSurviveRestart(false, 0, false);
+    }
+
+    /**
+     * <p>
+     * Tests the restart of all nodes when sessions are only stored when evicted or when the nodes stop. Sessions are not
+     * preloaded, they are loaded from the cache store when first accessed.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRestartWithPassivation() throws Exception {
+        assertSessionsSurviveRestart(true, SESSIONS / 2, false);
+    }
+
+    /**
+     * <p>
+     * Tests the restart of all nodes of a distributed cache when every write is stored in the background.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDistributedRestartWithWriteBehind() throws Exception {
+        assertSessionsSurviveRestart(false, 0, true);
+    }
+
+    /**
+     * <p>
+     * Tests the restart of all nodes of a distributed cache when sessions are only stored when evicted or when the nodes stop.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDistributedRestartWithPassivation() throws Exception {
+        assertSessionsSurviveRestart(true, SESSIONS / 2, true);
+    }
+
+    private void assertSessionsSurviveRestart(boolean passivation, int maxEntries, boolean distributed) throws Exception {
+        startNodes(passivation, maxEntries, distributed);
+
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (int i = 0; i < SESSIONS; i++) {
+            PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+            session.setAttribute("attributeA", "value" + i);
+
+            this.stores.get(i % NODES).store(session);
+
+            sessions.add(session);
+        }
+
+        stopNodes();
+
+        long start = System.currentTimeMillis();
+
+        startNodes(passivation, maxEntries, distributed);
+
+        long started = System.currentTimeMillis() - start;
+
+        for (int i = 0; i < SESSIONS; i++) {
+            PicketBoxSession session = sessions.get(i);
+            PicketBoxSession loadedSession = this.stores.get((i + 1) % NODES).load(session.getId());
+
+            assertNotNull(loadedSession);
+            assertEquals("value" + i, loadedSession.getAttribute("attributeA"));
+        }
+
+        assertTrue("Restarted " + NODES + " nodes with " + SESSIONS + " stored sessions in " + started + "ms.",
+            started < STARTUP_BUDGET);
+    }
+
+    private void startNodes(boolean passivation, int maxEntries, boolean distributed) {
+        for (int i = 0; i < NODES; i++) {
+            InfinispanSessionStoreBuilder builder = new InfinispanSessionStoreBuilder();
+
+            if (distributed) {
+                // owners are reassigned when the nodes rejoin, a node only stores the sessions it owned
+                builder.distributed().numOwners(NODES);
+            } else {
+                builder.replicated();
+            }
+
+            InfinispanSessionStore store = builder
+                .clusterName("picketbox-cache-store-test")
+                .jgroupsConfigurationFile("jgroups.xml")
+                .maxEntries(maxEntries)
+                .cacheStore(new File(CACHE_STORE_LOCATION, "node" + i).getPath())
+                .passivation(passivation)
+                .preload(true)
+                .writeBehindThreads(2)
+                .build();
+
+            store.start();
+
+            this.stores.add(store);
+        }
+    }
+
+    private void stopNodes() {
+        for (InfinispanSessionStore store : this.stores) {
+            store.stop();
+        }
+
+        this.stores.clear();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+}
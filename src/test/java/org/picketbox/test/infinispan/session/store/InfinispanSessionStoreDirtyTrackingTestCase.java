@@ -0,0 +1,266 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.event.CacheEntryModifiedEvent;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.marshall.DefaultSessionIdExternalizer;
+import org.picketbox.infinispan.marshall.PicketBoxSessionExternalizer;
+import org.picketbox.infinispan.marshall.TrackedPicketBoxSession;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+
+/**
+ * <p>
+ * Tests the dirty tracking of the {@link InfinispanSessionStore} in a cluster of two nodes. Sessions loaded from the node that
+ * did not store them are read by the {@link PicketBoxSessionExternalizer} as {@link TrackedPicketBoxSession} instances. The
+ * writes to the session cache of each node are counted.
+ * </p>
+ */
+public class InfinispanSessionStoreDirtyTrackingTestCase {
+
+    private static final String CACHE_NAME = "picketbox-session-cache";
+
+    private static DefaultCacheManager cacheManagerA;
+    private static DefaultCacheManager cacheManagerB;
+    private static InfinispanSessionStore storeA;
+    private static InfinispanSessionStore storeB;
+    private static WriteCounter writesA = new WriteCounter();
+    private static WriteCounter writesB = new WriteCounter();
+
+    @BeforeClass
+    public static void onSetup() throws Exception {
+        cacheManagerA = createCacheManager();
+        cacheManagerB = createCacheManager();
+        storeA = createStore(cacheManagerA);
+        storeB = createStore(cacheManagerB);
+
+        cacheManagerA.getCache(CACHE_NAME).addListener(writesA);
+        cacheManagerB.getCache(CACHE_NAME).addListener(writesB);
+    }
+
+    private static DefaultCacheManager createCacheManager() {
+        GlobalConfigurationBuilder globalConfiguration = new GlobalConfigurationBuilder();
+
+        globalConfiguration.transport().transport(new JGroupsTransport()).clusterName("picketbox-dirty-tracking-test")
+                .addProperty("configurationFile", "jgroups.xml");
+        globalConfiguration.serialization().addAdvancedExternalizer(new PicketBoxSessionExternalizer());
+        globalConfiguration.serialization().addAdvancedExternalizer(new DefaultSessionIdExternalizer());
+
+        ConfigurationBuilder configuration = new ConfigurationBuilder();
+
+        configuration.clustering().cacheMode(CacheMode.REPL_SYNC);
+
+        return new DefaultCacheManager(globalConfiguration.build(), configuration.build());
+    }
+
+    private static InfinispanSessionStore createStore(DefaultCacheManager cacheManager) {
+        InfinispanSessionStore store = new InfinispanSessionStore(CACHE_NAME, cacheManager);
+
+        store.setDirtyTrackingMaxEntries(1024);
+        store.start();
+
+        return store;
+    }
+
+    @AfterClass
+    public static void onFinish() throws Exception {
+        storeA.stop();
+        storeB.stop();
+        cacheManagerA.stop();
+        cacheManagerB.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if updating a loaded session that was not modified, or whose immutable attributes were only read, issues no write,
+     * and if setting an attribute does.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUnchangedUpdateIsSkipped() throws Exception {
+        PicketBoxSession session = createSession();
+
+        storeA.store(session);
+
+        PicketBoxSession loadedSession = storeB.load(session.getId());
+
+        assertTrue(loadedSession instanceof TrackedPicketBoxSession);
+
+        writesB.reset();
+
+        storeB.update(loadedSession);
+
+        assertEquals("admin", loadedSession.getAttribute("username"));
+
+        storeB.update(loadedSession);
+
+        assertEquals(0, writesB.get());
+
+        loadedSession.setAttribute("locale", "pt_BR");
+
+        storeB.update(loadedSession);
+        storeB.update(loadedSession);
+
+        assertEquals(1, writesB.get());
+        assertEquals("pt_BR", storeA.load(session.getId()).getAttribute("locale"));
+    }
+
+    /**
+     * <p>
+     * Tests if an attribute value that may be changed in place is written again once read.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testMutableAttributeIsWrittenOnceRead() throws Exception {
+        PicketBoxSession session = createSession();
+
+        storeA.store(session);
+
+        PicketBoxSession loadedSession = storeB.load(session.getId());
+
+        writesB.reset();
+
+        @SuppressWarnings("unchecked")
+        List<String> roles = (List<String>) loadedSession.getAttribute("roles");
+
+        roles.add("manager");
+
+        storeB.update(loadedSession);
+
+        assertEquals(1, writesB.get());
+        assertEquals(roles, storeA.load(session.getId()).getAttribute("roles"));
+    }
+
+    /**
+     * <p>
+     * Tests if updating a loaded session after only reading an attribute value that could have been changed in place issues
+     * no write when the value did not change.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReadOnlyRequestIsSkipped() throws Exception {
+        PicketBoxSession session = createSession();
+
+        storeA.store(session);
+
+        PicketBoxSession loadedSession = storeB.load(session.getId());
+
+        writesB.reset();
+
+        assertTrue(((List<?>) loadedSession.getAttribute("roles")).contains("user"));
+        assertEquals("admin", loadedSession.getAttribute("username"));
+
+        storeB.update(loadedSession);
+
+        assertEquals(0, writesB.get());
+    }
+
+    /**
+     * <p>
+     * Tests if updates of a session instance that does not count its modifications are skipped when it did not change.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUntrackedSession() throws Exception {
+        PicketBoxSession session = createSession();
+
+        storeA.store(session);
+
+        writesA.reset();
+
+        storeA.update(session);
+
+        assertEquals(0, writesA.get());
+
+        session.setAttribute("locale", "pt_BR");
+
+        storeA.update(session);
+
+        assertEquals(1, writesA.get());
+    }
+
+    private PicketBoxSession createSession() {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+        List<String> roles = new ArrayList<String>();
+
+        roles.add("user");
+
+        session.setAttribute("username", "admin");
+        session.setAttribute("locale", "en_US");
+        session.setAttribute("roles", roles);
+
+        return session;
+    }
+
+    /**
+     * <p>
+     * Counts the entries written in a cache.
+     * </p>
+     */
+    @Listener
+    public static class WriteCounter {
+
+        private final AtomicInteger writes = new AtomicInteger();
+
+        @CacheEntryModified
+        public void modified(CacheEntryModifiedEvent<?, ?> event) {
+            if (event.isPre()) {
+                this.writes.incrementAndGet();
+            }
+        }
+
+        int get() {
+            return this.writes.get();
+        }
+
+        void reset() {
+            this.writes.set(0);
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.core.session.SessionId;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.InfinispanSessionStoreBuilder;
+
+/**
+ * <p>
+ * Tests the {@link InfinispanSessionStore} configured programmatically with the distribution profile of the
+ * {@link InfinispanSessionStoreBuilder}.
+ * </p>
+ */
+public class InfinispanSessionStoreDistributionTestCase {
+
+    private static final int INITIAL_NODES = 3;
+    private static final int NODES = 5;
+    private static final int SESSIONS = 200;
+
+    private List<InfinispanSessionStore> stores = new ArrayList<InfinispanSessionStore>();
+
+    /**
+     * <p>
+     * Creates the initial cache nodes. Each session will be held by two of them, so some loads are remote from the start.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Before
+    public void onSetup() throws Exception {
+        for (int i = 0; i < INITIAL_NODES; i++) {
+            addNode();
+        }
+    }
+
+    private void addNode() {
+        InfinispanSessionStore store = new InfinispanSessionStoreBuilder()
+            .distributed()
+            .sync()
+            .numOwners(2)
+            .clusterName("picketbox-dist-test")
+            .jgroupsConfigurationFile("jgroups.xml")
+            .build();
+
+        store.start();
+
+        this.stores.add(store);
+    }
+
+    @After
+    public void onFinish() throws Exception {
+        for (InfinispanSessionStore store : this.stores) {
+            store.stop();
+        }
+
+        this.stores.clear();
+    }
+
+    /**
+     * <p>
+     * Tests if sessions stored in one node are available in all the others, before and after nodes are added.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSessionDistribution() throws Exception {
+        List<PicketBoxSession> sessions = storeSessions();
+
+        assertLoadedByEveryNode(sessions);
+
+        while (this.stores.size() < NODES) {
+            addNode();
+        }
+
+        // the sessions stored before the new nodes joined are rehashed to them
+        assertLoadedByEveryNode(sessions);
+        assertLoadedByEveryNode(storeSessions());
+    }
+
+    /**
+     * <p>
+     * Stores the sessions on every node in turn.
+     * </p>
+     *
+     * @return the stored sessions.
+     */
+    private List<PicketBoxSession> storeSessions() {
+        List<PicketBoxSession> sessions = new ArrayList<PicketBoxSession>();
+
+        for (int i = 0; i < SESSIONS; i++) {
+            PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+            session.setAttribute("attributeA", "value" + i);
+
+            this.stores.get(i % this.stores.size()).store(session);
+
+            sessions.add(session);
+        }
+
+        return sessions;
+    }
+
+    private void assertLoadedByEveryNode(List<PicketBoxSession> sessions) {
+        for (InfinispanSessionStore store : this.stores) {
+            for (PicketBoxSession session : sessions) {
+                PicketBoxSession loadedSession = store.load(session.getId());
+
+                assertNotNull(loadedSession);
+                assertEquals(session.getId(), loadedSession.getId());
+                assertEquals(session.getAttribute("attributeA"), loadedSession.getAttribute("attributeA"));
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if a session removed in one node is removed from all the others.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSessionRemoval() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        this.stores.get(0).store(session);
+
+        for (InfinispanSessionStore store : this.stores) {
+            assertNotNull(store.load(session.getId()));
+        }
+
+        this.stores.get(this.stores.size() - 1).remove(session.getId());
+
+        for (InfinispanSessionStore store : this.stores) {
+            assertNull(store.load(session.getId()));
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if <code>loadAll</code> reads the sessions owned by other nodes, like <code>load</code> does.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLoadAll() throws Exception {
+        List<SessionId<? extends Serializable>> ids = new ArrayList<SessionId<? extends Serializable>>();
+
+        for (PicketBoxSession session : storeSessions()) {
+            ids.add(session.getId());
+        }
+
+        for (InfinispanSessionStore store : this.stores) {
+            assertEquals(SESSIONS, store.loadAll(ids).size());
+        }
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.InfinispanSessionStoreBuilder;
+import org.picketbox.infinispan.session.store.ReplicationGranularity;
+
+/**
+ * <p>
+ * Tests the {@link InfinispanSessionStore} using the {@link ReplicationGranularity#ATTRIBUTE} granularity in a cluster of two
+ * nodes.
+ * </p>
+ */
+public class InfinispanSessionStoreGranularityTestCase {
+
+    private static InfinispanSessionStore storeA;
+    private static InfinispanSessionStore storeB;
+
+    @BeforeClass
+    public static void onSetup() throws Exception {
+        storeA = createStore();
+        storeB = createStore();
+    }
+
+    private static InfinispanSessionStore createStore() {
+        InfinispanSessionStore store = new InfinispanSessionStoreBuilder()
+            .replicated()
+            .sync()
+            .replicationGranularity(ReplicationGranularity.ATTRIBUTE)
+            .clusterName("picketbox-granularity-test")
+            .jgroupsConfigurationFile("jgroups.xml")
+            .build();
+
+        store.start();
+
+        return store;
+    }
+
+    @AfterClass
+    public static void onFinish() throws Exception {
+        storeA.stop();
+        storeB.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if an update writes only the attribute that changed. The unchanged attribute is set again with an equal value
+     * holding a different revision, which the other node must not see.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOnlyChangedAttributeIsWritten() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("changed", "value1");
+        session.setAttribute("unchanged", new RevisedValue("value", 1));
+
+        storeA.store(session);
+
+        PicketBoxSession loadedSession = storeB.load(session.getId());
+
+        assertNotNull(loadedSession);
+        assertEquals("value1", loadedSession.getAttribute("changed"));
+        assertEquals(1, ((RevisedValue) loadedSession.getAttribute("unchanged")).revision);
+
+        session.setAttribute("changed", "value2");
+        session.setAttribute("unchanged", new RevisedValue("value", 2));
+
+        storeA.update(session);
+
+        loadedSession = storeB.load(session.getId());
+
+        assertEquals("value2", loadedSession.getAttribute("changed"));
+        assertEquals(1, ((RevisedValue) loadedSession.getAttribute("unchanged")).revision);
+        assertEquals(2, loadedSession.getAttributes().size());
+    }
+
+    /**
+     * <p>
+     * Tests if an attribute removed in one node is removed in the other, while the remaining attributes are kept.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testAttributeRemoval() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("attributeA", "valueA");
+        session.setAttribute("attributeB", "valueB");
+
+        storeA.store(session);
+
+        PicketBoxSession loadedSession = storeB.load(session.getId());
+
+        loadedSession.removeAttribute("attributeB");
+
+        storeB.update(loadedSession);
+
+        loadedSession = storeA.load(session.getId());
+
+        assertEquals("valueA", loadedSession.getAttribute("attributeA"));
+        assertNull(loadedSession.getAttribute("attributeB"));
+
+        storeA.remove(session.getId());
+
+        assertNull(storeB.load(session.getId()));
+    }
+
+    /**
+     * <p>
+     * Tests if an attribute value changed in place in one node is replicated to the other. The loaded session tracks the
+     * attribute as modified, so it is written without being compared with the stored value.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAttributeChangedInPlace() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("items", new ArrayList<String>(Arrays.asList("itemA")));
+
+        storeA.store(session);
+
+        PicketBoxSession loadedSession = storeB.load(session.getId());
+        List<String> items = (List<String>) loadedSession.getAttribute("items");
+
+        items.add("itemB");
+        loadedSession.setAttribute("items", items);
+
+        storeB.update(loadedSession);
+
+        loadedSession = storeA.load(session.getId());
+
+        assertEquals(Arrays.asList("itemA", "itemB"), loadedSession.getAttribute("items"));
+
+        storeA.remove(session.getId());
+    }
+
+    /**
+     * <p>
+     * Tests if an attribute value loaded from the store and changed in place is not changed in the store until the session
+     * is updated, the loaded value being a copy of the value held by the attribute cache.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLoadedAttributeIsCopied() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("items", new ArrayList<String>(Arrays.asList("itemA")));
+
+        storeA.store(session);
+
+        for (InfinispanSessionStore store : new InfinispanSessionStore[] { storeA, storeB }) {
+            ((List<String>) store.load(session.getId()).getAttribute("items")).add("itemB");
+
+            assertEquals(Arrays.asList("itemA"), store.load(session.getId()).getAttribute("items"));
+        }
+
+        storeA.remove(session.getId());
+    }
+
+    /**
+     * <p>
+     * Tests if the invalidation of a session is kept by the session entry, both when the session is stored and updated.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidationIsStored() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("username", "admin");
+
+        storeA.store(session);
+
+        PicketBoxSession loadedSession = storeB.load(session.getId());
+
+        loadedSession.invalidate(false);
+
+        storeB.update(loadedSession);
+
+        loadedSession = storeA.load(session.getId());
+
+        assertFalse(loadedSession.isValid());
+        assertEquals("admin", loadedSession.getAttribute("username"));
+
+        PicketBoxSession invalidSession = new PicketBoxSession(new DefaultSessionId());
+
+        invalidSession.invalidate(false);
+
+        storeA.store(invalidSession);
+
+        assertFalse(storeB.load(invalidSession.getId()).isValid());
+
+        storeA.remove(session.getId());
+        storeA.remove(invalidSession.getId());
+    }
+
+    /**
+     * <p>
+     * Attribute value whose equality ignores its revision.
+     * </p>
+     */
+    static class RevisedValue implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String value;
+        private final int revision;
+
+        RevisedValue(String value, int revision) {
+            this.value = value;
+            this.revision = revision;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof RevisedValue && this.value.equals(((RevisedValue) obj).value);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.value.hashCode();
+        }
+    }
+
+}
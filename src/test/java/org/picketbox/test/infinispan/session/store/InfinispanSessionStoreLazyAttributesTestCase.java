@@ -0,0 +1,238 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.VersioningScheme;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+import org.infinispan.transaction.LockingMode;
+import org.infinispan.transaction.TransactionMode;
+import org.infinispan.util.concurrent.IsolationLevel;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.marshall.DefaultSessionIdExternalizer;
+import org.picketbox.infinispan.marshall.LazyPicketBoxSession;
+import org.picketbox.infinispan.marshall.PicketBoxSessionExternalizer;
+import org.picketbox.infinispan.session.store.AttributePrincipalResolver;
+import org.picketbox.infinispan.session.store.ConcurrencyMode;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+
+/**
+ * <p>
+ * Tests if the attributes of the sessions stored as binary stay serialized when the sessions are loaded and updated by
+ * another node without being read, using dirty tracking, the {@link ConcurrencyMode#OPTIMISTIC} concurrency mode or the
+ * principal index.
+ * </p>
+ */
+public class InfinispanSessionStoreLazyAttributesTestCase {
+
+    private static final String CACHE_NAME = "picketbox-session-cache";
+    private static final String OPTIMISTIC_CACHE_NAME = "picketbox-optimistic-session-cache";
+    private static final String INDEXED_CACHE_NAME = "picketbox-indexed-session-cache";
+
+    private static DefaultCacheManager cacheManagerA;
+    private static DefaultCacheManager cacheManagerB;
+    private static InfinispanSessionStore storeA;
+    private static InfinispanSessionStore storeB;
+    private static InfinispanSessionStore optimisticStoreA;
+    private static InfinispanSessionStore optimisticStoreB;
+    private static InfinispanSessionStore indexedStoreA;
+    private static InfinispanSessionStore indexedStoreB;
+
+    @BeforeClass
+    public static void onSetup() throws Exception {
+        cacheManagerA = createCacheManager();
+        cacheManagerB = createCacheManager();
+        storeA = createStore(cacheManagerA, CACHE_NAME, ConcurrencyMode.LAST_WRITE_WINS);
+        storeB = createStore(cacheManagerB, CACHE_NAME, ConcurrencyMode.LAST_WRITE_WINS);
+        optimisticStoreA = createStore(cacheManagerA, OPTIMISTIC_CACHE_NAME, ConcurrencyMode.OPTIMISTIC);
+        optimisticStoreB = createStore(cacheManagerB, OPTIMISTIC_CACHE_NAME, ConcurrencyMode.OPTIMISTIC);
+        indexedStoreA = createIndexedStore(cacheManagerA);
+        indexedStoreB = createIndexedStore(cacheManagerB);
+    }
+
+    private static DefaultCacheManager createCacheManager() {
+        GlobalConfigurationBuilder globalConfiguration = new GlobalConfigurationBuilder();
+
+        globalConfiguration.transport().transport(new JGroupsTransport()).clusterName("picketbox-lazy-attributes-test")
+                .addProperty("configurationFile", "jgroups.xml");
+        globalConfiguration.serialization().addAdvancedExternalizer(new PicketBoxSessionExternalizer());
+        globalConfiguration.serialization().addAdvancedExternalizer(new DefaultSessionIdExternalizer());
+
+        ConfigurationBuilder configuration = new ConfigurationBuilder();
+
+        configuration.clustering().cacheMode(CacheMode.REPL_SYNC);
+        configuration.storeAsBinary().enable().storeKeysAsBinary(false).storeValuesAsBinary(true);
+
+        DefaultCacheManager cacheManager = new DefaultCacheManager(globalConfiguration.build(), configuration.build());
+
+        configuration.transaction().transactionMode(TransactionMode.TRANSACTIONAL).lockingMode(LockingMode.OPTIMISTIC)
+                .autoCommit(true);
+        configuration.locking().isolationLevel(IsolationLevel.REPEATABLE_READ).writeSkewCheck(true);
+        configuration.versioning().enable().scheme(VersioningScheme.SIMPLE);
+
+        cacheManager.defineConfiguration(OPTIMISTIC_CACHE_NAME, configuration.build());
+
+        return cacheManager;
+    }
+
+    private static InfinispanSessionStore createStore(DefaultCacheManager cacheManager, String cacheName,
+            ConcurrencyMode concurrencyMode) {
+        InfinispanSessionStore store = new InfinispanSessionStore(cacheName, cacheManager);
+
+        store.setStoreAsBinary(true);
+        store.setDirtyTrackingMaxEntries(100);
+        store.setConcurrencyMode(concurrencyMode);
+        store.start();
+
+        return store;
+    }
+
+    private static InfinispanSessionStore createIndexedStore(DefaultCacheManager cacheManager) {
+        InfinispanSessionStore store = new InfinispanSessionStore(INDEXED_CACHE_NAME, cacheManager);
+
+        store.setStoreAsBinary(true);
+        store.setPrincipalResolver(new AttributePrincipalResolver("username"));
+        store.start();
+
+        return store;
+    }
+
+    @AfterClass
+    public static void onFinish() throws Exception {
+        indexedStoreB.stop();
+        indexedStoreA.stop();
+        optimisticStoreB.stop();
+        optimisticStoreA.stop();
+        storeB.stop();
+        storeA.stop();
+        cacheManagerB.stop();
+        cacheManagerA.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if loading and updating a session only deserializes the attributes read.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUpdate() throws Exception {
+        LazyPicketBoxSession updatedSession = update(storeA, storeB);
+
+        // the attribute set concurrently was overwritten
+        assertEquals(2, updatedSession.getSerializedAttributeCount());
+        assertEquals("guest", updatedSession.getAttribute("username"));
+    }
+
+    /**
+     * <p>
+     * Tests if merging an update with the session stored concurrently only deserializes the attributes read.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testOptimisticUpdate() throws Exception {
+        LazyPicketBoxSession updatedSession = update(optimisticStoreA, optimisticStoreB);
+
+        assertEquals(3, updatedSession.getSerializedAttributeCount());
+        assertEquals("guest", updatedSession.getAttribute("username"));
+        assertEquals(1, updatedSession.getAttribute("counter"));
+    }
+
+    /**
+     * <p>
+     * Tests if indexing an updated session by principal only deserializes the principal attribute.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPrincipalIndex() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("username", "admin");
+        session.setAttribute("locale", "en_US");
+        session.setAttribute("theme", "dark");
+
+        indexedStoreA.store(session);
+
+        LazyPicketBoxSession loadedSession = (LazyPicketBoxSession) indexedStoreB.load(session.getId());
+
+        loadedSession.setAttribute("locale", "pt_BR");
+        indexedStoreB.update(loadedSession);
+
+        assertEquals(1, loadedSession.getSerializedAttributeCount());
+        assertEquals(1, indexedStoreB.findByPrincipal("admin").size());
+    }
+
+    /**
+     * <p>
+     * Updates a session from the second node, reading a single attribute, after the first node updated it concurrently.
+     * </p>
+     *
+     * @return the updated session, loaded again from the second node.
+     */
+    private LazyPicketBoxSession update(InfinispanSessionStore storeA, InfinispanSessionStore storeB) {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("username", "admin");
+        session.setAttribute("locale", "en_US");
+        session.setAttribute("theme", "dark");
+
+        storeA.store(session);
+
+        LazyPicketBoxSession loadedSession = (LazyPicketBoxSession) storeB.load(session.getId());
+
+        assertEquals(3, loadedSession.getSerializedAttributeCount());
+        assertEquals("admin", loadedSession.getAttribute("username"));
+
+        // stored concurrently by the other node
+        PicketBoxSession otherSession = storeA.load(session.getId());
+
+        otherSession.setAttribute("counter", 1);
+        storeA.update(otherSession);
+
+        loadedSession.setAttribute("username", "guest");
+        storeB.update(loadedSession);
+
+        assertEquals(2, loadedSession.getSerializedAttributeCount());
+
+        PicketBoxSession updatedSession = storeB.load(session.getId());
+
+        assertTrue(updatedSession instanceof LazyPicketBoxSession);
+
+        return (LazyPicketBoxSession) updatedSession;
+    }
+
+}
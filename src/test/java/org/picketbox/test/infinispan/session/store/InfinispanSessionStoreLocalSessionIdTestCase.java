@@ -0,0 +1,150 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.distribution.DistributionManager;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.LocalSessionIdGenerator;
+
+/**
+ * <p>
+ * Tests the {@link LocalSessionIdGenerator} of the {@link InfinispanSessionStore} in a distributed cache of three nodes, each
+ * session being held by a single owner.
+ * </p>
+ */
+public class InfinispanSessionStoreLocalSessionIdTestCase {
+
+    private static final String CACHE_NAME = "picketbox-session-cache";
+    private static final int NODES = 3;
+    private static final int SESSIONS = 50;
+    private static final long STABLE_CLUSTER_TIMEOUT = 30000;
+
+    private static List<DefaultCacheManager> cacheManagers = new ArrayList<DefaultCacheManager>();
+    private static List<InfinispanSessionStore> stores = new ArrayList<InfinispanSessionStore>();
+
+    @BeforeClass
+    public static void onSetup() throws Exception {
+        for (int i = 0; i < NODES; i++) {
+            cacheManagers.add(createCacheManager());
+        }
+
+        for (DefaultCacheManager cacheManager : cacheManagers) {
+            InfinispanSessionStore store = new InfinispanSessionStore(CACHE_NAME, cacheManager);
+
+            store.setSessionIdBufferSize(16);
+            store.start();
+
+            stores.add(store);
+        }
+
+        awaitStableCluster();
+    }
+
+    /**
+     * <p>
+     * Waits for all the nodes to join the distributed cache, then for the generators to fill their buffers again since the keys
+     * generated before the last rehash may be owned by other nodes.
+     * </p>
+     */
+    private static void awaitStableCluster() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + STABLE_CLUSTER_TIMEOUT;
+
+        for (DefaultCacheManager cacheManager : cacheManagers) {
+            DistributionManager distributionManager = cacheManager.getCache(CACHE_NAME).getAdvancedCache()
+                    .getDistributionManager();
+
+            while (cacheManager.getMembers().size() < NODES || !distributionManager.isJoinComplete()
+                    || distributionManager.isRehashInProgress()) {
+                assertTrue("The cluster did not stabilize.", System.currentTimeMillis() < deadline);
+                Thread.sleep(100);
+            }
+        }
+
+        Thread.sleep(1000);
+    }
+
+    private static DefaultCacheManager createCacheManager() {
+        GlobalConfigurationBuilder globalConfiguration = new GlobalConfigurationBuilder();
+
+        globalConfiguration.transport().transport(new JGroupsTransport()).clusterName("picketbox-local-session-id-test")
+                .addProperty("configurationFile", "jgroups.xml");
+
+        ConfigurationBuilder configuration = new ConfigurationBuilder();
+
+        configuration.clustering().cacheMode(CacheMode.DIST_SYNC).hash().numOwners(1);
+
+        return new DefaultCacheManager(globalConfiguration.build(), configuration.build());
+    }
+
+    @AfterClass
+    public static void onFinish() throws Exception {
+        for (int i = NODES - 1; i >= 0; i--) {
+            stores.get(i).stop();
+            cacheManagers.get(i).stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the sessions created by each node are owned by that node.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSessionsAreOwnedLocally() throws Exception {
+        for (int i = 0; i < NODES; i++) {
+            Cache<Serializable, Object> cache = cacheManagers.get(i).getCache(CACHE_NAME);
+            DistributionManager distributionManager = cache.getAdvancedCache().getDistributionManager();
+
+            for (int j = 0; j < SESSIONS; j++) {
+                PicketBoxSession session = stores.get(i).getSessionIdGenerator().createSession();
+
+                assertEquals(cache.getCacheManager().getAddress(),
+                        distributionManager.getPrimaryLocation(session.getId().getId()));
+
+                stores.get(i).store(session);
+
+                assertNotNull(cache.getAdvancedCache().getDataContainer().peek(session.getId().getId()));
+            }
+        }
+    }
+
+}
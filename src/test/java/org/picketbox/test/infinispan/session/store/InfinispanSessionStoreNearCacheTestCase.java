@@ -0,0 +1,233 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.util.concurrent.BoundedConcurrentHashMap.Eviction;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.session.NearCache;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.InfinispanSessionStoreBuilder;
+
+/**
+ * <p>
+ * Tests the {@link NearCache} of the {@link InfinispanSessionStore} in a distributed cluster of two nodes without L1 caching.
+ * Each session is owned by a single node, the other node is never notified of its changes.
+ * </p>
+ */
+public class InfinispanSessionStoreNearCacheTestCase {
+
+    private static final String CACHE_NAME = "picketbox-session-cache";
+    private static final long TIME_TO_LIVE = 500;
+    private static final int SESSION_TIMEOUT = 1;
+    private static final int SESSIONS = 20;
+
+    private static InfinispanSessionStore storeA;
+    private static InfinispanSessionStore storeB;
+
+    @BeforeClass
+    public static void onSetup() throws Exception {
+        storeA = createBuilder(TIME_TO_LIVE).build();
+        storeB = createBuilder(TIME_TO_LIVE).build();
+
+        storeA.start();
+        storeB.start();
+    }
+
+    private static InfinispanSessionStoreBuilder createBuilder(long timeToLive) {
+        return new InfinispanSessionStoreBuilder()
+            .distributed()
+            .sync()
+            .numOwners(1)
+            .l1Lifespan(0)
+            .nearCache(100, timeToLive, Eviction.LRU)
+            .clusterName("picketbox-near-cache-test")
+            .jgroupsConfigurationFile("jgroups.xml");
+    }
+
+    @AfterClass
+    public static void onFinish() throws Exception {
+        storeA.stop();
+        storeB.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if a near cache without time to live is rejected for a distributed cache.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNearCacheWithoutTimeToLiveIsRejected() throws Exception {
+        InfinispanSessionStore store = createBuilder(0).clusterName("picketbox-near-cache-rejected-test").build();
+
+        try {
+            store.start();
+            fail("The near cache of a distributed cache requires a time to live.");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the sessions updated or removed by another node are refreshed once their near cache entries expired, whichever
+     * node owns them.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStaleSessionsExpire() throws Exception {
+        PicketBoxSession[] sessions = new PicketBoxSession[SESSIONS];
+
+        for (int i = 0; i < sessions.length; i++) {
+            sessions[i] = new PicketBoxSession(new DefaultSessionId());
+            sessions[i].setAttribute("attributeA", "initial");
+
+            storeA.store(sessions[i]);
+
+            assertEquals("initial", storeB.load(sessions[i].getId()).getAttribute("attributeA"));
+        }
+
+        for (int i = 0; i < sessions.length; i++) {
+            PicketBoxSession session = storeA.load(sessions[i].getId());
+
+            session.setAttribute("attributeA", "updated");
+
+            storeA.update(session);
+        }
+
+        storeA.remove(sessions[0].getId());
+
+        Thread.sleep(TIME_TO_LIVE * 2);
+
+        assertNull(storeB.load(sessions[0].getId()));
+
+        for (int i = 1; i < sessions.length; i++) {
+            PicketBoxSession loadedSession = storeB.load(sessions[i].getId());
+
+            assertNotNull(loadedSession);
+            assertEquals("updated", loadedSession.getAttribute("attributeA"));
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if a near cache whose entries outlive the session timeout is rejected, since sessions read from it would never
+     * expire.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNearCacheOutlivingSessionTimeoutIsRejected() throws Exception {
+        InfinispanSessionStore store = createBuilder(TimeUnit.MINUTES.toMillis(SESSION_TIMEOUT))
+            .sessionTimeout(SESSION_TIMEOUT)
+            .clusterName("picketbox-near-cache-timeout-test")
+            .build();
+
+        try {
+            store.start();
+            fail("The near cache time to live must be shorter than the session timeout.");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if an idle session read only through the near cache stops being loaded once its near cache entry expired. The
+     * expiration of the cache entry is simulated by removing it from the data container, which fires no event, like the
+     * expiration itself.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testExpiredSessionIsNotLoadedFromNearCache() throws Exception {
+        DefaultCacheManager cacheManager = new DefaultCacheManager(new ConfigurationBuilder().build());
+        InfinispanSessionStore store = new InfinispanSessionStore(CACHE_NAME, cacheManager);
+
+        store.setSessionTimeout(SESSION_TIMEOUT);
+        store.setNearCacheMaxEntries(10);
+        store.setNearCacheTimeToLive(TIME_TO_LIVE);
+        store.start();
+
+        try {
+            PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+            store.store(session);
+
+            cacheManager.getCache(CACHE_NAME).getAdvancedCache().getDataContainer().remove(session.getId().getId());
+
+            // the near cache still serves the session, nothing told it the cache entry expired
+            assertNotNull(store.load(session.getId()));
+
+            Thread.sleep(TIME_TO_LIVE * 2);
+
+            assertNull(store.load(session.getId()));
+        } finally {
+            store.stop();
+            cacheManager.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if a session loaded while its key is invalidated is not kept by the near cache.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLoadRacingWithInvalidationIsDropped() throws Exception {
+        NearCache nearCache = new NearCache(10, 0, Eviction.LRU);
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        long stamp = nearCache.beginLoad(session.getId().getId());
+
+        nearCache.invalidate(session.getId().getId());
+
+        assertFalse(nearCache.putLoaded(session.getId().getId(), session, stamp));
+        assertNull(nearCache.get(session.getId().getId()));
+
+        stamp = nearCache.beginLoad(session.getId().getId());
+
+        nearCache.putLoaded(session.getId().getId(), session, stamp);
+
+        assertEquals(session, nearCache.get(session.getId().getId()));
+    }
+
+}
@@ -0,0 +1,371 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.VersioningScheme;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.remoting.transport.jgroups.JGroupsTransport;
+import org.infinispan.transaction.LockingMode;
+import org.infinispan.transaction.TransactionMode;
+import org.infinispan.util.concurrent.IsolationLevel;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.marshall.DefaultSessionIdExternalizer;
+import org.picketbox.infinispan.marshall.PicketBoxSessionExternalizer;
+import org.picketbox.infinispan.marshall.TrackedPicketBoxSession;
+import org.picketbox.infinispan.session.store.ConcurrencyMode;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+
+/**
+ * <p>
+ * Tests the {@link ConcurrencyMode#OPTIMISTIC} concurrency mode of the {@link InfinispanSessionStore} in a cluster of two
+ * nodes, with several threads of each node updating the same session concurrently.
+ * </p>
+ */
+public class InfinispanSessionStoreOptimisticTestCase {
+
+    private static final String CACHE_NAME = "picketbox-session-cache";
+    private static final int THREADS_PER_NODE = 4;
+    private static final int UPDATES_PER_THREAD = 10;
+
+    private static DefaultCacheManager cacheManagerA;
+    private static DefaultCacheManager cacheManagerB;
+    private static InfinispanSessionStore storeA;
+    private static InfinispanSessionStore storeB;
+
+    @BeforeClass
+    public static void onSetup() throws Exception {
+        cacheManagerA = createCacheManager();
+        cacheManagerB = createCacheManager();
+        storeA = createStore(cacheManagerA);
+        storeB = createStore(cacheManagerB);
+    }
+
+    private static DefaultCacheManager createCacheManager() {
+        GlobalConfigurationBuilder globalConfiguration = new GlobalConfigurationBuilder();
+
+        globalConfiguration.transport().transport(new JGroupsTransport()).clusterName("picketbox-optimistic-test")
+                .addProperty("configurationFile", "jgroups.xml");
+        globalConfiguration.serialization().addAdvancedExternalizer(new PicketBoxSessionExternalizer());
+        globalConfiguration.serialization().addAdvancedExternalizer(new DefaultSessionIdExternalizer());
+
+        ConfigurationBuilder configuration = new ConfigurationBuilder();
+
+        configuration.clustering().cacheMode(CacheMode.REPL_SYNC);
+        configuration.transaction().transactionMode(TransactionMode.TRANSACTIONAL).lockingMode(LockingMode.OPTIMISTIC)
+                .autoCommit(true);
+        configuration.locking().isolationLevel(IsolationLevel.REPEATABLE_READ).writeSkewCheck(true);
+        configuration.versioning().enable().scheme(VersioningScheme.SIMPLE);
+
+        return new DefaultCacheManager(globalConfiguration.build(), configuration.build());
+    }
+
+    private static InfinispanSessionStore createStore(DefaultCacheManager cacheManager) {
+        InfinispanSessionStore store = new InfinispanSessionStore(CACHE_NAME, cacheManager);
+
+        store.setConcurrencyMode(ConcurrencyMode.OPTIMISTIC);
+        store.setMaxUpdateAttempts(100);
+        store.start();
+
+        return store;
+    }
+
+    @AfterClass
+    public static void onFinish() throws Exception {
+        storeB.stop();
+        storeA.stop();
+        cacheManagerB.stop();
+        cacheManagerA.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if the attributes set by concurrent updates from both nodes are all kept, and if an attribute removed concurrently
+     * is not written again by the other updates.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("username", "admin");
+        session.setAttribute("locale", "en_US");
+
+        storeA.store(session);
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS_PER_NODE * 2);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<Void>> updates = new ArrayList<Future<Void>>();
+
+        try {
+            for (int i = 0; i < THREADS_PER_NODE * 2; i++) {
+                final InfinispanSessionStore store = i % 2 == 0 ? storeA : storeB;
+                final String prefix = "thread-" + i + "-";
+                final boolean remover = i == 1;
+
+                updates.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        startLatch.await();
+
+                        for (int j = 0; j < UPDATES_PER_THREAD; j++) {
+                            PicketBoxSession loadedSession = store.load(session.getId());
+
+                            loadedSession.setAttribute(prefix + j, j);
+
+                            if (remover && j == 0) {
+                                loadedSession.removeAttribute("locale");
+                            }
+
+                            store.update(loadedSession);
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            startLatch.countDown();
+
+            for (Future<Void> update : updates) {
+                update.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (InfinispanSessionStore store : new InfinispanSessionStore[] { storeA, storeB }) {
+            PicketBoxSession loadedSession = store.load(session.getId());
+
+            assertEquals(THREADS_PER_NODE * 2 * UPDATES_PER_THREAD + 1, loadedSession.getAttributes().size());
+            assertEquals("admin", loadedSession.getAttribute("username"));
+            assertNull(loadedSession.getAttribute("locale"));
+
+            for (int i = 0; i < THREADS_PER_NODE * 2; i++) {
+                for (int j = 0; j < UPDATES_PER_THREAD; j++) {
+                    assertEquals(j, loadedSession.getAttribute("thread-" + i + "-" + j));
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if an attribute removed from a session instance that was neither loaded nor stored by this node is removed from
+     * the stored session, the given session replacing it.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRemovalWithoutSnapshot() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("username", "admin");
+        session.setAttribute("locale", "en_US");
+
+        storeA.store(session);
+
+        PicketBoxSession copy = new PicketBoxSession(session.getId());
+
+        copy.setAttribute("username", "admin");
+
+        storeB.update(copy);
+
+        assertFalse(storeA.load(session.getId()).getAttributes().containsKey("locale"));
+        assertFalse(storeB.load(session.getId()).getAttributes().containsKey("locale"));
+    }
+
+    /**
+     * <p>
+     * Tests if a session instance whose snapshot is no longer held, here by a store started after it was stored, replaces the
+     * stored session as a session tracking its modifications, including its invalidation, instead of being written as is.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUpdateWithoutSnapshotIsTracked() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("username", "admin");
+        session.setAttribute("locale", "en_US");
+
+        storeB.store(session);
+
+        InfinispanSessionStore restartedStoreB = createStore(cacheManagerB);
+
+        try {
+            session.removeAttribute("locale");
+            session.invalidate(false);
+
+            restartedStoreB.update(session);
+
+            PicketBoxSession updatedSession = restartedStoreB.load(session.getId());
+
+            assertTrue(updatedSession instanceof TrackedPicketBoxSession);
+            assertNotSame(session, updatedSession);
+            assertEquals("admin", updatedSession.getAttribute("username"));
+            assertNull(updatedSession.getAttribute("locale"));
+            assertFalse(updatedSession.isValid());
+            assertFalse(storeA.load(session.getId()).isValid());
+        } finally {
+            restartedStoreB.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if an update of the session instance stored by this node keeps the attributes set concurrently by the other node.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUntrackedSessionMerge() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("username", "admin");
+        session.setAttribute("locale", "en_US");
+
+        storeA.store(session);
+
+        PicketBoxSession loadedSession = storeB.load(session.getId());
+
+        loadedSession.setAttribute("theme", "dark");
+
+        storeB.update(loadedSession);
+
+        session.removeAttribute("locale");
+
+        storeA.update(session);
+
+        PicketBoxSession updatedSession = storeB.load(session.getId());
+
+        assertEquals("dark", updatedSession.getAttribute("theme"));
+        assertNull(updatedSession.getAttribute("locale"));
+        assertEquals("dark", session.getAttribute("theme"));
+    }
+
+    /**
+     * <p>
+     * Tests if a session invalidated by one node stays invalid when merged with the stored session, and is not made valid
+     * again by a concurrent update of the other node.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidationIsMerged() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute("username", "admin");
+
+        storeA.store(session);
+
+        PicketBoxSession loadedSession = storeB.load(session.getId());
+
+        loadedSession.invalidate(false);
+
+        storeB.update(loadedSession);
+
+        session.setAttribute("locale", "en_US");
+
+        storeA.update(session);
+
+        PicketBoxSession updatedSession = storeB.load(session.getId());
+
+        assertFalse(updatedSession.isValid());
+        assertEquals("en_US", updatedSession.getAttribute("locale"));
+        assertFalse(storeA.load(session.getId()).isValid());
+    }
+
+    /**
+     * <p>
+     * Tests if an update of a session removed by another node is dropped instead of writing the session again.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUpdateOfRemovedSessionIsDropped() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        storeA.store(session);
+
+        PicketBoxSession loadedSession = storeA.load(session.getId());
+
+        loadedSession.setAttribute("locale", "pt_BR");
+
+        storeB.remove(session.getId());
+
+        storeA.update(loadedSession);
+
+        assertNull(storeA.load(session.getId()));
+        assertNull(storeB.load(session.getId()));
+    }
+
+    /**
+     * <p>
+     * Tests if the store fails to start without update attempts.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNoUpdateAttempts() throws Exception {
+        InfinispanSessionStore store = new InfinispanSessionStore(CACHE_NAME, cacheManagerA);
+
+        store.setConcurrencyMode(ConcurrencyMode.OPTIMISTIC);
+        store.setMaxUpdateAttempts(0);
+
+        try {
+            store.start();
+            fail("The optimistic concurrency mode requires at least one update attempt.");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
+
+import java.io.Serializable;
+import java.security.Principal;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryModified;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.Event;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.marshall.TrackedPicketBoxSession;
+import org.picketbox.infinispan.session.store.AttributePrincipalResolver;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.InfinispanSessionStoreBuilder;
+
+/**
+ * <p>
+ * Tests the principal index of the {@link InfinispanSessionStore}. The writes to the cache holding the index are counted, to
+ * check that sessions are only reindexed when their principal changes.
+ * </p>
+ */
+public class InfinispanSessionStorePrincipalIndexTestCase {
+
+    private static final String CACHE_NAME = "picketbox-session-cache";
+    private static final String PRINCIPAL_CACHE_NAME = CACHE_NAME + ".principals";
+    private static final String PRINCIPAL_ATTRIBUTE = "user";
+
+    private DefaultCacheManager cacheManager;
+    private InfinispanSessionStore store;
+    private WriteCounter principalCacheWrites = new WriteCounter();
+    private WriteCounter sessionCacheWrites = new WriteCounter();
+
+    @Before
+    public void onSetup() throws Exception {
+        this.cacheManager = new DefaultCacheManager(new ConfigurationBuilder().build());
+        this.store = new InfinispanSessionStore(CACHE_NAME, this.cacheManager);
+
+        this.store.setPrincipalResolver(new AttributePrincipalResolver(PRINCIPAL_ATTRIBUTE));
+        this.store.setDirtyTrackingMaxEntries(1024);
+        this.store.start();
+
+        this.cacheManager.getCache(PRINCIPAL_CACHE_NAME).addListener(this.principalCacheWrites);
+        this.cacheManager.getCache(CACHE_NAME).addListener(this.sessionCacheWrites);
+    }
+
+    @After
+    public void onFinish() throws Exception {
+        this.store.stop();
+        this.cacheManager.stop();
+    }
+
+    /**
+     * <p>
+     * Tests if updating a session without changing its principal does not write to the index, and if changing or removing
+     * the principal moves the session in the index.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSessionIsReindexedOnlyWhenPrincipalChanges() throws Exception {
+        PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute(PRINCIPAL_ATTRIBUTE, "bob");
+
+        this.store.store(session);
+
+        assertEquals(1, this.store.findByPrincipal("bob").size());
+
+        this.principalCacheWrites.reset();
+
+        session.setAttribute("attributeA", "valueA");
+
+        this.store.update(session);
+        this.store.update(session);
+
+        assertEquals(0, this.principalCacheWrites.get());
+
+        session.setAttribute(PRINCIPAL_ATTRIBUTE, "alice");
+
+        this.store.update(session);
+
+        assertEquals(0, this.store.findByPrincipal("bob").size());
+        assertEquals(1, this.store.findByPrincipal("alice").size());
+
+        session.removeAttribute(PRINCIPAL_ATTRIBUTE);
+
+        this.store.update(session);
+
+        assertEquals(0, this.store.findByPrincipal("alice").size());
+    }
+
+    /**
+     * <p>
+     * Tests if a session reindexed by another store is reindexed again when this store updates it with its previous
+     * principal, so the index is never left with a principal the session no longer has.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSessionReindexedElsewhereIsReindexed() throws Exception {
+        InfinispanSessionStore otherStore = new InfinispanSessionStore(CACHE_NAME, this.cacheManager);
+
+        otherStore.setPrincipalResolver(new AttributePrincipalResolver(PRINCIPAL_ATTRIBUTE));
+        otherStore.start();
+
+        try {
+            PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+            session.setAttribute(PRINCIPAL_ATTRIBUTE, "bob");
+
+            this.store.store(session);
+
+            PicketBoxSession otherSession = new PicketBoxSession(session.getId());
+
+            otherSession.setAttribute(PRINCIPAL_ATTRIBUTE, "alice");
+
+            otherStore.update(otherSession);
+
+            assertEquals(0, this.store.findByPrincipal("bob").size());
+
+            session.setAttribute("attributeA", "valueA");
+
+            this.store.update(session);
+
+            assertEquals(1, this.store.findByPrincipal("bob").size());
+            assertEquals(0, this.store.findByPrincipal("alice").size());
+        } finally {
+            otherStore.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if indexing a tracked session whose principal is not of a well known immutable type does not count as a
+     * modification, so updating the session afterwards writes nothing.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testIndexingDoesNotModifyTrackedSession() throws Exception {
+        TrackedPicketBoxSession session = new TrackedPicketBoxSession(new DefaultSessionId());
+
+        session.setAttribute(PRINCIPAL_ATTRIBUTE, new NamedPrincipal("bob"));
+
+        this.store.store(session);
+
+        assertFalse(session.isModified());
+        assertEquals(1, this.store.findByPrincipal("bob").size());
+
+        this.sessionCacheWrites.reset();
+
+        this.store.update(session);
+
+        assertEquals(0, this.sessionCacheWrites.get());
+
+        session.setAttribute(PRINCIPAL_ATTRIBUTE, new NamedPrincipal("alice"));
+
+        this.store.update(session);
+
+        assertFalse(session.isModified());
+        assertEquals(0, this.store.findByPrincipal("bob").size());
+        assertEquals(1, this.store.findByPrincipal("alice").size());
+    }
+
+    /**
+     * <p>
+     * Tests if removing the sessions of a principal removes them all from the cache and the index, and keeps the sessions of
+     * the other principals.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRemoveAllForPrincipal() throws Exception {
+        PicketBoxSession sessionA = new PicketBoxSession(new DefaultSessionId());
+        PicketBoxSession sessionB = new PicketBoxSession(new DefaultSessionId());
+        PicketBoxSession otherSession = new PicketBoxSession(new DefaultSessionId());
+
+        sessionA.setAttribute(PRINCIPAL_ATTRIBUTE, "bob");
+        sessionB.setAttribute(PRINCIPAL_ATTRIBUTE, "bob");
+        otherSession.setAttribute(PRINCIPAL_ATTRIBUTE, "alice");
+
+        this.store.store(sessionA);
+        this.store.store(sessionB);
+        this.store.store(otherSession);
+
+        assertEquals(2, this.store.removeAllForPrincipal("bob"));
+
+        assertNull(this.store.load(sessionA.getId()));
+        assertNull(this.store.load(sessionB.getId()));
+        assertEquals(0, this.store.findByPrincipal("bob").size());
+        assertNotNull(this.store.load(otherSession.getId()));
+        assertEquals(1, this.store.findByPrincipal("alice").size());
+        assertEquals(0, this.store.removeAllForPrincipal("bob"));
+    }
+
+    /**
+     * <p>
+     * Tests if the principal index is rejected when the session cache, and so the index cache, uses the invalidation mode.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testInvalidationCacheIsRejected() throws Exception {
+        InfinispanSessionStore invalidationStore = new InfinispanSessionStoreBuilder()
+            .invalidation()
+            .principalIndex(new AttributePrincipalResolver(PRINCIPAL_ATTRIBUTE))
+            .clusterName("picketbox-principal-invalidation-test")
+            .jgroupsConfigurationFile("jgroups.xml")
+            .build();
+
+        try {
+            invalidationStore.start();
+            fail("The principal index can not be kept in an invalidation cache.");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * <p>
+     * Principal of a type not known to be immutable, so reading it through {@link PicketBoxSession#getAttribute(String)} is
+     * recorded by a tracked session.
+     * </p>
+     */
+    static class NamedPrincipal implements Principal, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        NamedPrincipal(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return this.name;
+        }
+    }
+
+    /**
+     * <p>
+     * Counts the entries written or removed in a cache.
+     * </p>
+     */
+    @Listener
+    public static class WriteCounter {
+
+        private final AtomicInteger writes = new AtomicInteger();
+
+        @CacheEntryModified
+        @CacheEntryRemoved
+        public void written(Event<?, ?> event) {
+            if (event.isPre()) {
+                this.writes.incrementAndGet();
+            }
+        }
+
+        int get() {
+            return this.writes.get();
+        }
+
+        void reset() {
+            this.writes.set(0);
+        }
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2012, Red Hat, Inc., and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.picketbox.test.infinispan.session.store;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import org.infinispan.configuration.parsing.ConfigurationBuilderHolder;
+import org.junit.Test;
+import org.picketbox.core.session.DefaultSessionId;
+import org.picketbox.core.session.PicketBoxSession;
+import org.picketbox.infinispan.session.store.InfinispanSessionStore;
+import org.picketbox.infinispan.session.store.InfinispanSessionStoreBuilder;
+
+/**
+ * <p>
+ * Tests the {@link InfinispanSessionStore} instances sharing a cache manager.
+ * </p>
+ */
+public class InfinispanSessionStoreSharedCacheManagerTestCase {
+
+    private static final String CACHE_NAME = "picketbox-session-cache";
+    private static final String CACHE_MANAGER_NAME = "picketbox-shared-test";
+
+    private static InfinispanSessionStore createStore(String cacheManagerName) {
+        return createStore(CACHE_NAME, cacheManagerName);
+    }
+
+    private static InfinispanSessionStore createStore(String cacheName, String cacheManagerName) {
+        InfinispanSessionStore store = new InfinispanSessionStore(cacheName, new InfinispanSessionStoreBuilder().local()
+                .cacheName(cacheName).buildConfiguration());
+
+        store.setCacheManagerName(cacheManagerName);
+        store.setMaxEntries(100);
+
+        return store;
+    }
+
+    /**
+     * <p>
+     * Tests if stores given the same cache manager name share the cache manager, and so the session cache.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSameNameSharesCacheManager() throws Exception {
+        InfinispanSessionStore storeA = createStore(CACHE_MANAGER_NAME);
+        InfinispanSessionStore storeB = createStore(CACHE_MANAGER_NAME);
+
+        storeA.start();
+
+        try {
+            storeB.start();
+
+            try {
+                PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+                session.setAttribute("attributeA", "valueA");
+
+                storeA.store(session);
+
+                PicketBoxSession loadedSession = storeB.load(session.getId());
+
+                assertNotNull(loadedSession);
+                assertEquals("valueA", loadedSession.getAttribute("attributeA"));
+            } finally {
+                storeB.stop();
+            }
+        } finally {
+            storeA.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if stores given different cache manager names do not share the cache manager, even with equal configurations.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDifferentNamesDoNotShareCacheManager() throws Exception {
+        InfinispanSessionStore storeA = createStore(CACHE_MANAGER_NAME);
+        InfinispanSessionStore storeB = createStore(CACHE_MANAGER_NAME + "-other");
+
+        storeA.start();
+
+        try {
+            storeB.start();
+
+            try {
+                PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+                storeA.store(session);
+
+                assertNull(storeB.load(session.getId()));
+            } finally {
+                storeB.stop();
+            }
+        } finally {
+            storeA.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if a store defining the running session cache of a shared cache manager differently is rejected, leaving the
+     * store already using it unaffected.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDifferentCacheDefinitionIsRejected() throws Exception {
+        InfinispanSessionStore storeA = createStore(CACHE_MANAGER_NAME);
+        InfinispanSessionStore storeB = createStore(CACHE_MANAGER_NAME);
+
+        storeB.setMaxEntries(200);
+
+        storeA.start();
+
+        try {
+            try {
+                storeB.start();
+                storeB.stop();
+                fail("The store defining the session cache with different eviction settings was started.");
+            } catch (IllegalStateException expected) {
+            }
+
+            PicketBoxSession session = new PicketBoxSession(new DefaultSessionId());
+
+            storeA.store(session);
+
+            assertNotNull(storeA.load(session.getId()));
+        } finally {
+            storeA.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if a store compressing the sessions differently from the store already using the shared cache manager is
+     * rejected, even for another cache, since the stores share the externalizer of the cache manager.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDifferentCompressionIsRejected() throws Exception {
+        InfinispanSessionStore storeA = createStore(CACHE_NAME, CACHE_MANAGER_NAME);
+        InfinispanSessionStore storeB = createStore(CACHE_NAME + "-other", CACHE_MANAGER_NAME);
+        InfinispanSessionStore storeC = createStore(CACHE_NAME + "-another", CACHE_MANAGER_NAME);
+
+        storeA.setCompressionThreshold(256);
+        storeB.setCompressionThreshold(1024);
+        storeC.setCompressionThreshold(256);
+
+        storeA.start();
+
+        try {
+            try {
+                storeB.start();
+                storeB.stop();
+                fail("The store compressing the sessions above another threshold was started.");
+            } catch (IllegalStateException expected) {
+            }
+
+            storeC.start();
+            storeC.stop();
+        } finally {
+            storeA.stop();
+        }
+    }
+
+    /**
+     * <p>
+     * Tests if the configuration given to a store is left unchanged when the store is started, so it can be started again
+     * or given to another store.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testConfigurationIsNotModified() throws Exception {
+        ConfigurationBuilderHolder holder = new InfinispanSessionStoreBuilder().local().cacheName(CACHE_NAME)
+                .buildConfiguration();
+        InfinispanSessionStore store = new InfinispanSessionStore(CACHE_NAME, holder);
+
+        store.setMaxEntries(100);
+
+        for (int i = 0; i < 2; i++) {
+            store.start();
+            store.stop();
+        }
+
+        assertTrue(holder.getGlobalConfigurationBuilder().build().serialization().advancedExternalizers().isEmpty());
+        assertEquals(-1, holder.getNamedConfigurationBuilders().get(CACHE_NAME).build().eviction().maxEntries());
+    }
+
+    /**
+     * <p>
+     * Tests if stores whose session cache is named "default" share the cache manager, the named cache being defined apart
+     * from the default cache.
+     * </p>
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCacheNamedDefaultIsNotTheDefaultCache() throws Exception {
+        InfinispanSessionStore storeA = createStore("default", CACHE_MANAGER_NAME);
+        InfinispanSessionStore storeB = createStore("default", CACHE_MANAGER_NAME);
+
+        storeA.start();
+
+        try {
+            storeB.start();
+            storeB.stop();
+        } finally {
+            storeA.stop();
+        }
+    }
+
+}